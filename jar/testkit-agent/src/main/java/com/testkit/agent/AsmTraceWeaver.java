@@ -0,0 +1,371 @@
+package com.testkit.agent;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.TypePath;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于 asm 的业务类增强,与 javassist 版本的 enhanceMethod 语义一致:
+ * 方法入口 TraceInfo.open + stepIn,每个 return 前 stepOut,整个方法体包一层 Throwable 处理器
+ * <p>
+ * 与 javassist 相比: 直接流式改写字节码,不需要全局 ClassPool,也不编译源码片段;
+ * 基本类型返回值不装箱,直接以 OK 状态结束 span(与装箱后的状态判定结果相同);
+ * 异常处理器直接读取局部变量里的 span,不再通过 getCurrent 间接获取
+ * <p>
+ * 原方法的局部变量整体后移两个槽位,给 span 和跳过标记使用;栈帧交给 ClassWriter 重新计算,
+ * 计算公共父类时只读取 class 资源,不触发类加载
+ */
+class AsmTraceWeaver {
+
+    private static final String TRACE_INFO = "com/testkit/trace/TraceInfo";
+    private static final String TRACE_INFO_DESC = "L" + TRACE_INFO + ";";
+    private static final String TRACE_SINK = "com/testkit/trace/TraceSink";
+    private static final String OBJECT = "java/lang/Object";
+
+    /**
+     * 公共父类计算用的类结构缓存,按类加载器区分
+     */
+    private static final Map<ClassLoader, Map<String, ClassInfo>> HIERARCHY = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<String, ClassInfo> BOOT_HIERARCHY = new ConcurrentHashMap<>();
+
+    /**
+     * @param className 内部名,/ 分隔
+     * @return 不需要增强或增强失败时返回 null
+     */
+    static byte[] enhance(ClassLoader loader, String group, String className, byte[] classfileBuffer, TraceAgent.TraceConfig config) {
+        String dotName = className.replace('/', '.');
+        String simpleClassName = dotName.substring(dotName.lastIndexOf('.') + 1);
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            int access = reader.getAccess();
+            // 跳过接口、枚举和抽象类
+            if ((access & (Opcodes.ACC_INTERFACE | Opcodes.ACC_ENUM | Opcodes.ACC_ABSTRACT | Opcodes.ACC_ANNOTATION)) != 0) {
+                return null;
+            }
+            hierarchy(loader).put(className, new ClassInfo(reader.getSuperName(), false));
+            ClassWriter writer = new HierarchyClassWriter(loader);
+            TraceClassVisitor visitor = new TraceClassVisitor(writer, group, dotName, simpleClassName, config);
+            // 原有栈帧丢弃,由 COMPUTE_FRAMES 按新的局部变量布局重算
+            reader.accept(visitor, ClassReader.SKIP_FRAMES);
+            return visitor.enhanced ? writer.toByteArray() : null;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            TransformMetrics.failed(className, e);
+            System.err.println("Testkit asm enhance fail:" + simpleClassName + " errorType:" + e.getClass().getName() + ":" + e.getMessage());
+            return null;
+        }
+    }
+
+    private static class TraceClassVisitor extends ClassVisitor {
+
+        private final String group;
+        private final String className;
+        private final String simpleClassName;
+        private final TraceAgent.TraceConfig config;
+        private boolean enhanced;
+
+        TraceClassVisitor(ClassVisitor cv, String group, String className, String simpleClassName, TraceAgent.TraceConfig config) {
+            super(Opcodes.ASM9, cv);
+            this.group = group;
+            this.className = className;
+            this.simpleClassName = simpleClassName;
+            this.config = config;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+            // 与 javassist 版本一致: 只增强 public 非抽象的普通方法,跳过构造器和 lambda
+            if ((access & Opcodes.ACC_PUBLIC) == 0 || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0
+                    || name.startsWith("<") || TraceAgent.isGeneratedMethod(name)) {
+                return mv;
+            }
+            if (!config.shouldTraceMethod(className, name)) {
+                return mv;
+            }
+            enhanced = true;
+            return new TraceMethodVisitor(mv, access, descriptor, group, simpleClassName, name);
+        }
+    }
+
+    private static class TraceMethodVisitor extends MethodVisitor {
+
+        private final String group;
+        private final String simpleClassName;
+        private final String methodName;
+        private final int argsSize;
+        private final int spanVar;
+        private final int skipVar;
+        private final Label tryStart = new Label();
+        private final Label tryEnd = new Label();
+        private final Label handler = new Label();
+
+        TraceMethodVisitor(MethodVisitor mv, int access, String descriptor, String group, String simpleClassName, String methodName) {
+            super(Opcodes.ASM9, mv);
+            this.group = group;
+            this.simpleClassName = simpleClassName;
+            this.methodName = methodName;
+            int size = (access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+            for (Type type : Type.getArgumentTypes(descriptor)) {
+                size += type.getSize();
+            }
+            this.argsSize = size;
+            this.spanVar = size;
+            this.skipVar = size + 1;
+        }
+
+        private int remap(int var) {
+            return var < argsSize ? var : var + 2;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            // boolean skip = false; TraceInfo span = TraceInfo.getCurrent();
+            // if (span != null) { span = TraceInfo.open(span, group, cls, method); if (span == null) skip = true; else span.stepIn(); }
+            Label prologueEnd = new Label();
+            Label stepIn = new Label();
+            mv.visitInsn(Opcodes.ICONST_0);
+            mv.visitVarInsn(Opcodes.ISTORE, skipVar);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, TRACE_INFO, "getCurrent", "()" + TRACE_INFO_DESC, false);
+            mv.visitVarInsn(Opcodes.ASTORE, spanVar);
+            mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+            mv.visitJumpInsn(Opcodes.IFNULL, prologueEnd);
+            mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+            mv.visitLdcInsn(group);
+            mv.visitLdcInsn(simpleClassName);
+            mv.visitLdcInsn(methodName);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, TRACE_INFO, "open",
+                    "(" + TRACE_INFO_DESC + "Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)" + TRACE_INFO_DESC, false);
+            mv.visitVarInsn(Opcodes.ASTORE, spanVar);
+            mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+            mv.visitJumpInsn(Opcodes.IFNONNULL, stepIn);
+            mv.visitInsn(Opcodes.ICONST_1);
+            mv.visitVarInsn(Opcodes.ISTORE, skipVar);
+            mv.visitJumpInsn(Opcodes.GOTO, prologueEnd);
+            mv.visitLabel(stepIn);
+            mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TRACE_INFO, "stepIn", "()" + TRACE_INFO_DESC, false);
+            mv.visitInsn(Opcodes.POP);
+            mv.visitLabel(prologueEnd);
+            mv.visitLabel(tryStart);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                onReturn(opcode);
+            }
+            super.visitInsn(opcode);
+        }
+
+        /**
+         * if (span != null) TraceSink.span(span.stepOut(...)); else if (skip) TraceInfo.skipOut();
+         */
+        private void onReturn(int opcode) {
+            Label skipped = new Label();
+            Label done = new Label();
+            mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+            mv.visitJumpInsn(Opcodes.IFNULL, skipped);
+            if (opcode == Opcodes.ARETURN) {
+                // 引用类型按返回值计算状态: [ret] -> [ret, span, ret, null]
+                mv.visitInsn(Opcodes.DUP);
+                mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+                mv.visitInsn(Opcodes.SWAP);
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TRACE_INFO, "stepOut", "(Ljava/lang/Object;Ljava/lang/Throwable;)" + TRACE_INFO_DESC, false);
+            } else if (opcode == Opcodes.RETURN) {
+                mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TRACE_INFO, "stepOut", "(Ljava/lang/Object;Ljava/lang/Throwable;)" + TRACE_INFO_DESC, false);
+            } else {
+                // 基本类型装箱后状态一定是 OK,这里直接给状态,不装箱
+                mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                mv.visitLdcInsn("OK");
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TRACE_INFO, "stepOut", "(Ljava/lang/Object;Ljava/lang/Throwable;Ljava/lang/String;Ljava/util/List;)" + TRACE_INFO_DESC, false);
+            }
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, TRACE_SINK, "span", "(" + TRACE_INFO_DESC + ")V", false);
+            mv.visitJumpInsn(Opcodes.GOTO, done);
+            mv.visitLabel(skipped);
+            mv.visitVarInsn(Opcodes.ILOAD, skipVar);
+            mv.visitJumpInsn(Opcodes.IFEQ, done);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, TRACE_INFO, "skipOut", "()Z", false);
+            mv.visitInsn(Opcodes.POP);
+            mv.visitLabel(done);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // 处理器放在异常表最后,原有的 catch 优先匹配
+            Label skipped = new Label();
+            Label rethrow = new Label();
+            mv.visitLabel(tryEnd);
+            mv.visitLabel(handler);
+            mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+            mv.visitJumpInsn(Opcodes.IFNULL, skipped);
+            // [e] -> [e, span, null, e]
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitVarInsn(Opcodes.ALOAD, spanVar);
+            mv.visitInsn(Opcodes.SWAP);
+            mv.visitInsn(Opcodes.ACONST_NULL);
+            mv.visitInsn(Opcodes.SWAP);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TRACE_INFO, "stepOut", "(Ljava/lang/Object;Ljava/lang/Throwable;)" + TRACE_INFO_DESC, false);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, TRACE_SINK, "span", "(" + TRACE_INFO_DESC + ")V", false);
+            mv.visitJumpInsn(Opcodes.GOTO, rethrow);
+            mv.visitLabel(skipped);
+            mv.visitVarInsn(Opcodes.ILOAD, skipVar);
+            mv.visitJumpInsn(Opcodes.IFEQ, rethrow);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, TRACE_INFO, "skipOut", "()Z", false);
+            mv.visitInsn(Opcodes.POP);
+            mv.visitLabel(rethrow);
+            mv.visitInsn(Opcodes.ATHROW);
+            mv.visitTryCatchBlock(tryStart, tryEnd, handler, "java/lang/Throwable");
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            super.visitVarInsn(opcode, remap(var));
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            super.visitIincInsn(remap(var), increment);
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+            super.visitLocalVariable(name, descriptor, signature, start, end, remap(index));
+        }
+
+        @Override
+        public org.objectweb.asm.AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start, Label[] end,
+                                                                                int[] index, String descriptor, boolean visible) {
+            int[] remapped = new int[index.length];
+            for (int i = 0; i < index.length; i++) {
+                remapped[i] = remap(index[i]);
+            }
+            return super.visitLocalVariableAnnotation(typeRef, typePath, start, end, remapped, descriptor, visible);
+        }
+    }
+
+    /**
+     * 重算栈帧时需要公共父类,默认实现会 Class.forName,在 transform 里可能触发循环加载
+     */
+    private static class HierarchyClassWriter extends ClassWriter {
+
+        private final ClassLoader loader;
+
+        HierarchyClassWriter(ClassLoader loader) {
+            super(ClassWriter.COMPUTE_FRAMES);
+            this.loader = loader;
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            if (type1.equals(type2)) {
+                return type1;
+            }
+            // 与 ASM 默认实现一致,有一方是接口时按 Object 处理
+            List<String> chain1 = superChain(type1);
+            if (chain1 == null) {
+                return OBJECT;
+            }
+            List<String> chain2 = superChain(type2);
+            if (chain2 == null) {
+                return OBJECT;
+            }
+            for (String type : chain1) {
+                if (chain2.contains(type)) {
+                    return type;
+                }
+            }
+            return OBJECT;
+        }
+
+        /**
+         * 读取不到时不能猜 Object,算错的栈帧会在加载时 VerifyError,抛出让这个类放弃增强
+         *
+         * @return 从自身到 Object 的父类链,接口返回 null
+         */
+        private List<String> superChain(String type) {
+            List<String> chain = new ArrayList<>();
+            String current = type;
+            while (current != null) {
+                ClassInfo info = classInfo(current);
+                if (info == null) {
+                    throw new TypeNotPresentException(current.replace('/', '.'), null);
+                }
+                if (info.isInterface) {
+                    return null;
+                }
+                chain.add(current);
+                current = info.superName;
+            }
+            return chain;
+        }
+
+        private ClassInfo classInfo(String type) {
+            Map<String, ClassInfo> cache = hierarchy(loader);
+            ClassInfo info = cache.get(type);
+            if (info != null) {
+                return info;
+            }
+            try (InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(type + ".class") : loader.getResourceAsStream(type + ".class")) {
+                if (in == null) {
+                    return null;
+                }
+                ClassReader reader = new ClassReader(in);
+                info = new ClassInfo(reader.getSuperName(), (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+                cache.put(type, info);
+                return info;
+            } catch (Throwable e) {
+                return null;
+            }
+        }
+    }
+
+    private static Map<String, ClassInfo> hierarchy(ClassLoader loader) {
+        if (loader == null) {
+            return BOOT_HIERARCHY;
+        }
+        Map<String, ClassInfo> cache = HIERARCHY.get(loader);
+        if (cache == null) {
+            synchronized (HIERARCHY) {
+                cache = HIERARCHY.get(loader);
+                if (cache == null) {
+                    cache = new ConcurrentHashMap<>();
+                    HIERARCHY.put(loader, cache);
+                }
+            }
+        }
+        return cache;
+    }
+
+    private static class ClassInfo {
+        private final String superName;
+        private final boolean isInterface;
+
+        ClassInfo(String superName, boolean isInterface) {
+            this.superName = superName;
+            this.isInterface = isInterface;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.testkit.agent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 增强规则预编译,每个加载的类都会匹配一次
+ * packages 编译成前缀 trie,clsSuffix 编译成倒序 trie,allows/denys 的类名编译成精确匹配 trie,
+ * 直接在 jvm 内部名(/ 分隔)或类名(. 分隔)上逐字符匹配,不创建新字符串
+ * <p>
+ * 方法规则写在类名后面,# 分隔: 方法名精确匹配,带 * ? 的按 glob 匹配,re: 开头的按正则匹配
+ * 例如 com.Test#query, com.Test#get*, com.Test#re:(get|find).*ById;只写类名表示整个类
+ */
+final class ClassMatcher {
+
+    private final CharTrie packages;
+    private final CharTrie suffixes;
+    private final CharTrie allows;
+    private final CharTrie denys;
+
+    private ClassMatcher(CharTrie packages, CharTrie suffixes, CharTrie allows, CharTrie denys) {
+        this.packages = packages;
+        this.suffixes = suffixes;
+        this.allows = allows;
+        this.denys = denys;
+    }
+
+    /**
+     * @throws IllegalArgumentException 方法规则的正则不合法
+     */
+    static ClassMatcher compile(Set<String> packages, Set<String> clsSuffix, Set<String> allows, Set<String> denys) {
+        CharTrie.Builder packageTrie = new CharTrie.Builder();
+        for (String pkg : packages) {
+            packageTrie.put(pkg, false, Boolean.TRUE);
+        }
+        CharTrie.Builder suffixTrie = new CharTrie.Builder();
+        for (String suffix : clsSuffix) {
+            suffixTrie.put(suffix, true, suffix);
+        }
+        return new ClassMatcher(packageTrie.build(), suffixTrie.build(), methodRules(allows), methodRules(denys));
+    }
+
+    private static CharTrie methodRules(Set<String> entries) {
+        Map<String, List<String>> grouped = new HashMap<>();
+        for (String entry : entries) {
+            int idx = entry.indexOf('#');
+            List<String> specs = grouped.computeIfAbsent(idx == -1 ? entry : entry.substring(0, idx), k -> new ArrayList<>());
+            // null 表示整个类
+            specs.add(idx == -1 ? null : entry.substring(idx + 1));
+        }
+        CharTrie.Builder builder = new CharTrie.Builder();
+        for (Map.Entry<String, List<String>> entry : grouped.entrySet()) {
+            builder.put(entry.getKey(), false, new MethodRule(entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 包名前缀和类名后缀都命中时返回命中的后缀作为分组,多个后缀命中时取最长的
+     */
+    String group(String className) {
+        return packages.anyPrefix(className) ? (String) suffixes.longestSuffix(className) : null;
+    }
+
+    MethodRule allowRule(String className) {
+        return (MethodRule) allows.exact(className);
+    }
+
+    MethodRule denyRule(String className) {
+        return (MethodRule) denys.exact(className);
+    }
+
+    static final class MethodRule {
+
+        private final boolean wholeClass;
+        /**
+         * 原始写法,用于判断规则是否变化
+         */
+        private final Set<String> specs = new TreeSet<>();
+        private final Set<String> names = new HashSet<>();
+        private final List<Pattern> patterns = new ArrayList<>();
+
+        private MethodRule(List<String> specs) {
+            boolean whole = false;
+            for (String spec : specs) {
+                if (spec == null) {
+                    whole = true;
+                    continue;
+                }
+                this.specs.add(spec);
+                if (spec.startsWith("re:")) {
+                    patterns.add(compileRegex(spec, spec.substring(3)));
+                } else if (spec.indexOf('*') >= 0 || spec.indexOf('?') >= 0) {
+                    patterns.add(compileRegex(spec, globToRegex(spec)));
+                } else {
+                    names.add(spec);
+                }
+            }
+            this.wholeClass = whole;
+        }
+
+        boolean isWholeClass() {
+            return wholeClass;
+        }
+
+        boolean matches(String methodName) {
+            if (wholeClass || names.contains(methodName)) {
+                return true;
+            }
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(methodName).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static Pattern compileRegex(String spec, String regex) {
+            try {
+                return Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("illegal trace method rule:" + spec + ", " + e.getDescription());
+            }
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder sb = new StringBuilder(glob.length() + 8);
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*') {
+                    sb.append(".*");
+                } else if (c == '?') {
+                    sb.append('.');
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MethodRule)) {
+                return false;
+            }
+            MethodRule that = (MethodRule) o;
+            return wholeClass == that.wholeClass && specs.equals(that.specs);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(wholeClass, specs);
+        }
+
+        @Override
+        public String toString() {
+            return wholeClass ? "*" + (specs.isEmpty() ? "" : specs.toString()) : specs.toString();
+        }
+    }
+
+    /**
+     * 只读的字符 trie,节点的子节点按字符排序存放在数组里
+     * 匹配时 / 和 . 视为同一个字符,所以内部名和类名都可以直接匹配
+     */
+    static final class CharTrie {
+
+        /**
+         * 子节点不超过这个数时顺序查找
+         */
+        private static final int LINEAR_SCAN = 8;
+
+        private final char[][] keys;
+        private final int[][] next;
+        private final Object[] values;
+
+        private CharTrie(char[][] keys, int[][] next, Object[] values) {
+            this.keys = keys;
+            this.next = next;
+            this.values = values;
+        }
+
+        /**
+         * 是否有任意一个 key 是 s 的前缀
+         */
+        boolean anyPrefix(String s) {
+            if (values[0] != null) {
+                return true;
+            }
+            int node = 0;
+            for (int i = 0, len = s.length(); i < len; i++) {
+                node = child(node, normalize(s.charAt(i)));
+                if (node < 0) {
+                    return false;
+                }
+                if (values[node] != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Object exact(String s) {
+            int node = 0;
+            for (int i = 0, len = s.length(); i < len; i++) {
+                node = child(node, normalize(s.charAt(i)));
+                if (node < 0) {
+                    return null;
+                }
+            }
+            return values[node];
+        }
+
+        /**
+         * 倒序构建的 trie 上从 s 的末尾开始匹配,返回最长的后缀对应的值
+         */
+        Object longestSuffix(String s) {
+            Object found = values[0];
+            int node = 0;
+            for (int i = s.length() - 1; i >= 0; i--) {
+                node = child(node, normalize(s.charAt(i)));
+                if (node < 0) {
+                    break;
+                }
+                if (values[node] != null) {
+                    found = values[node];
+                }
+            }
+            return found;
+        }
+
+        private int child(int node, char c) {
+            char[] k = keys[node];
+            int n = k.length;
+            if (n <= LINEAR_SCAN) {
+                for (int i = 0; i < n; i++) {
+                    if (k[i] == c) {
+                        return next[node][i];
+                    }
+                }
+                return -1;
+            }
+            int low = 0;
+            int high = n - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char m = k[mid];
+                if (m < c) {
+                    low = mid + 1;
+                } else if (m > c) {
+                    high = mid - 1;
+                } else {
+                    return next[node][mid];
+                }
+            }
+            return -1;
+        }
+
+        private static char normalize(char c) {
+            return c == '/' ? '.' : c;
+        }
+
+        static final class Builder {
+
+            private final Node root = new Node();
+
+            void put(String key, boolean reverse, Object value) {
+                Node node = root;
+                for (int i = 0, len = key.length(); i < len; i++) {
+                    char c = normalize(key.charAt(reverse ? len - 1 - i : i));
+                    node = node.children.computeIfAbsent(c, k -> new Node());
+                }
+                node.value = value;
+            }
+
+            CharTrie build() {
+                // 广度优先编号,根节点为 0
+                List<Node> nodes = new ArrayList<>();
+                Map<Node, Integer> ids = new HashMap<>();
+                ArrayDeque<Node> queue = new ArrayDeque<>();
+                queue.add(root);
+                ids.put(root, 0);
+                nodes.add(root);
+                while (!queue.isEmpty()) {
+                    for (Node child : queue.poll().children.values()) {
+                        ids.put(child, nodes.size());
+                        nodes.add(child);
+                        queue.add(child);
+                    }
+                }
+                char[][] keys = new char[nodes.size()][];
+                int[][] next = new int[nodes.size()][];
+                Object[] values = new Object[nodes.size()];
+                for (int i = 0; i < nodes.size(); i++) {
+                    Node node = nodes.get(i);
+                    keys[i] = new char[node.children.size()];
+                    next[i] = new int[node.children.size()];
+                    int j = 0;
+                    for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                        keys[i][j] = entry.getKey();
+                        next[i][j] = ids.get(entry.getValue());
+                        j++;
+                    }
+                    values[i] = node.value;
+                }
+                return new CharTrie(keys, next, values);
+            }
+        }
+
+        private static final class Node {
+            private final TreeMap<Character, Node> children = new TreeMap<>();
+            private Object value;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.testkit.agent;
 
+import com.testkit.trace.TraceRules;
 import javassist.*;
 
 import java.io.File;
@@ -10,11 +11,59 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.ProtectionDomain;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class TraceAgent {
 
+    /**
+     * 运行时重新增强一批类的数量
+     */
+    private static final int RETRANSFORM_BATCH = 64;
+
+    private static volatile Instrumentation instrumentation;
+
+    /**
+     * 需要传递链路的线程池类(内部名)
+     */
+    private static final Set<String> EXECUTOR_CLASSES = new HashSet<>(Arrays.asList(
+            "java/util/concurrent/ThreadPoolExecutor",
+            "java/util/concurrent/ScheduledThreadPoolExecutor",
+            "java/util/concurrent/ForkJoinPool",
+            "java/util/concurrent/ForkJoinTask"));
+
+    /**
+     * 每个任务新建线程的执行器,key 为内部类名,value 为创建线程前接收任务的方法
+     * 虚拟线程都通过 ThreadBuilders.newVirtualThread 创建(jdk 21)
+     */
+    private static final Map<String, String> THREAD_PER_TASK = new HashMap<>();
+
+    static {
+        THREAD_PER_TASK.put("java/lang/ThreadBuilders", "newVirtualThread");
+        THREAD_PER_TASK.put("java/util/concurrent/ThreadPerTaskExecutor", "execute");
+        THREAD_PER_TASK.put("java/util/concurrent/CompletableFuture$ThreadPerTaskExecutor", "execute");
+        THREAD_PER_TASK.put("org/springframework/core/task/SimpleAsyncTaskExecutor", "doExecute");
+    }
+
+    /**
+     * 当前生效的配置,运行时修改规则时整体替换
+     */
+    private static volatile TraceConfig activeConfig;
+
+    /**
+     * 延迟增强模式下,启动完成前为 true
+     */
+    private static volatile boolean deferring;
+
+    private static final AtomicBoolean ready = new AtomicBoolean();
+
     public static void premain(String agentArgs, Instrumentation inst) {
         TraceConfig config = new TraceConfig();
         try {
@@ -60,29 +109,20 @@ public class TraceAgent {
                     }
                 }).collect(Collectors.toSet()));
             }
+            config.setAsmEngine("asm".equalsIgnoreCase(jsonObject.get("engine")));
+            // 插件的 trace 配置里没有这一项,也可以通过 -Dtestkit.trace.transform.defer=true 开启
+            config.setDeferTransform("true".equals(jsonObject.get("deferTransform")) || Boolean.getBoolean("testkit.trace.transform.defer"));
             config.setTraceWeb("true".equals(jsonObject.get("traceWeb")));
             config.setTraceMybatis("true".equals(jsonObject.get("traceMybatis")));
             config.setLogMybatis("true".equals(jsonObject.get("logMybatis")));
-
-            config.preprocessedAllows = new HashMap<>();
-            config.preprocessedDenys = new HashMap<>();
-            for (String entry : config.allows) {
-                // 移除方法名部分（如果有）
-                int idx = entry.indexOf('#');
-                Set<String> strings = config.preprocessedAllows.computeIfAbsent(idx == -1 ? entry : entry.substring(0, idx), k -> new HashSet<>());
-                if(idx != -1) {
-                    strings.add(entry.substring(idx + 1));
+            // 链路输出、采样的配置透传给 TraceSink/TraceSampler,命令行已经指定的优先
+            for (Map.Entry<String, String> entry : jsonObject.entrySet()) {
+                if (entry.getKey().startsWith("testkit.trace.") && System.getProperty(entry.getKey()) == null) {
+                    System.setProperty(entry.getKey(), entry.getValue());
                 }
             }
 
-            for (String entry : config.denys) {
-                // 移除方法名部分（如果有）
-                int idx = entry.indexOf('#');
-                Set<String> strings = config.preprocessedDenys.computeIfAbsent(idx == -1 ? entry : entry.substring(0, idx), k -> new HashSet<>());
-                if(idx != -1) {
-                    strings.add(entry.substring(idx + 1));
-                }
-            }
+            config.preprocess();
 
             System.err.println("Testkit trace config: " + config);
 
@@ -106,39 +146,151 @@ public class TraceAgent {
                 throw new RuntimeException(e);
             }
         }
+        activeConfig = config;
+        instrumentation = inst;
+        deferring = config.isDeferTransform() && inst.isRetransformClassesSupported();
         inst.addTransformer(new ClassFileTransformer() {
             @Override
             public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
                                     ProtectionDomain protectionDomain, byte[] classfileBuffer) {
-                if ("java/util/concurrent/ThreadPoolExecutor".equals(className) || "java/util/concurrent/ScheduledExecutorService".equals(className)) {
-                    return enhanceThreadPoolExecutor(classPool, classfileBuffer);
+                TraceConfig config = activeConfig;
+                long begin = System.nanoTime();
+                byte[] bytes;
+                if ("java/util/concurrent/ThreadPoolExecutor".equals(className) || "java/util/concurrent/ScheduledThreadPoolExecutor".equals(className)) {
+                    bytes = enhanceThreadPoolExecutor(classPool, classfileBuffer);
+                } else if ("java/util/concurrent/ForkJoinPool".equals(className)) {
+                    bytes = enhanceForkJoinPool(classPool, classfileBuffer);
+                } else if ("java/util/concurrent/ForkJoinTask".equals(className)) {
+                    bytes = enhanceForkJoinTask(classPool, classfileBuffer);
+                } else if (THREAD_PER_TASK.containsKey(className)) {
+                    bytes = enhanceThreadPerTask(classPool, className, classfileBuffer);
                 } else if (config.isTraceWeb() && "org/springframework/web/servlet/DispatcherServlet".equals(className)) {
-                    return enhanceWebDispatcher(classPool, classfileBuffer);
+                    bytes = enhanceWebDispatcher(classPool, classfileBuffer);
                 } else if (config.isTraceMybatis() && "org/apache/ibatis/plugin/InterceptorChain".equals(className)) {
-                    return enhanceMybatis(classPool, classfileBuffer, config.isLogMybatis());
+                    bytes = enhanceMybatis(classPool, classfileBuffer, config.isLogMybatis());
+                } else {
+                    if (classBeingRedefined != null && classBeingRedefined.isEnum()) {
+                        return null;
+                    }
+                    String group = ismatch(className, config, true);
+                    if (group == null) {
+                        // 运行时删除规则后重新增强时返回 null,jvm 恢复原始字节码
+                        return null;
+                    }
+                    if (deferring && classBeingRedefined == null) {
+                        // 延迟增强: 首次加载保持原样,启动完成后统一重新增强
+                        TransformMetrics.deferred();
+                        return null;
+                    }
+                    begin = System.nanoTime();
+                    if (config.isAsmEngine()) {
+                        bytes = AsmTraceWeaver.enhance(loader, group, className, classfileBuffer, config);
+                    } else {
+                        bytes = enhanceClass(classPool, group, className.replace("/", "."), classfileBuffer, config);
+                    }
+                }
+                TransformMetrics.record(className, System.nanoTime() - begin, classfileBuffer.length, bytes, classBeingRedefined != null);
+                return bytes;
+            }
+        }, true);
+        if (inst.isRetransformClassesSupported()) {
+            // 已经加载的线程池类重新增强,其余的在加载时增强
+            for (Class<?> aClass : inst.getAllLoadedClasses()) {
+                String name = aClass.getName().replace('.', '/');
+                if (!EXECUTOR_CLASSES.contains(name) && !THREAD_PER_TASK.containsKey(name)) {
+                    continue;
                 }
-                if (classBeingRedefined != null && classBeingRedefined.isEnum()) {
-                    return null;
+                try {
+                    inst.retransformClasses(aClass);
+                } catch (Throwable e) {
+                    System.err.println("Testkit trace retransform executor class error:" + aClass.getName());
+                    e.printStackTrace();
                 }
-                String group = ismatch(className, config);
-                if (group == null) {
-                    return null;
+            }
+        }
+        TraceRules.register(new RuleHandler());
+        if (deferring) {
+            // 没有 starter 通知启动完成时,超时后自行执行
+            final long timeoutMs = Long.getLong("testkit.trace.transform.defer-timeout-ms", 300_000L);
+            Thread timer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(timeoutMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    onReady("timeout");
                 }
+            }, "testkit-trace-defer-timer");
+            timer.setDaemon(true);
+            timer.start();
+        }
+    }
 
-                return enhanceClass(classPool, group, className.replace("/","."), classfileBuffer,config);
+    /**
+     * 应用启动完成,延迟增强模式下并行重新增强所有命中规则的已加载类,然后输出增强耗时报告
+     */
+    private static void onReady(String trigger) {
+        if (!ready.compareAndSet(false, true)) {
+            return;
+        }
+        if (!deferring) {
+            TransformMetrics.startupReport(trigger, null);
+            return;
+        }
+        // 先关闭延迟,之后加载的类直接增强;扫描前后重复增强的类基于原始字节码,结果一致
+        deferring = false;
+        long begin = System.currentTimeMillis();
+        Instrumentation inst = instrumentation;
+        TraceConfig config = activeConfig;
+        List<Class<?>> targets = new ArrayList<>();
+        for (Class<?> type : inst.getAllLoadedClasses()) {
+            if (isRetransformCandidate(inst, type) && ismatch(type.getName(), config, false) != null) {
+                targets.add(type);
             }
-        }, true);
-        if (inst.isRetransformClassesSupported()) {
+        }
+        int threads = Math.max(1, Integer.getInteger("testkit.trace.transform.defer-threads",
+                Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "testkit-trace-transform-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i += RETRANSFORM_BATCH) {
+            final List<Class<?>> batch = targets.subList(i, Math.min(targets.size(), i + RETRANSFORM_BATCH));
+            futures.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return retransformBatch(inst, batch, errors);
+                }
+            }));
+        }
+        int failed = 0;
+        for (Future<Integer> future : futures) {
             try {
-                Class<?> aClass = Class.forName("java.util.concurrent.ThreadPoolExecutor");
-                inst.retransformClasses(aClass);
-                aClass = Class.forName("java.util.concurrent.ScheduledExecutorService");
-                inst.retransformClasses(aClass);
+                failed += future.get();
             } catch (Throwable e) {
-                System.err.println("Testkit trace retransformThreadPoolExecutor class error");
-                e.printStackTrace();
+                errors.add(String.valueOf(e));
             }
         }
+        pool.shutdown();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("deferredClasses", targets.size());
+        map.put("deferredFailed", failed);
+        map.put("deferredThreads", threads);
+        map.put("deferredCostMs", System.currentTimeMillis() - begin);
+        if (!errors.isEmpty()) {
+            map.put("deferredErrors", new ArrayList<>(errors.subList(0, Math.min(20, errors.size()))));
+        }
+        TransformMetrics.startupReport(trigger, map);
     }
 
     private static byte[] enhanceWebDispatcher(ClassPool classPool, byte[] classfileBuffer) {
@@ -159,13 +311,22 @@ public class TraceAgent {
 
             // execute(Runnable)
             // 在方法前后插入日志
-            method.insertBefore("{ _t_t_ = new com.testkit.trace.TraceInfo(com.testkit.trace.TraceInfo.getCurrent(),\"DispatcherServlet\",$1.getMethod(),$1.getServletPath()).stepIn(); }");
-            method.insertAfter("{ System.err.println(\"TRACE_PROFILER - \" + _t_t_.stepOut(null, null, java.lang.String.valueOf($2.getStatus()),null).toProfilerString()); }");
+            method.addLocalVariable("_t_s_", CtClass.booleanType);
+            // 根链路按采样策略开启,_t_s_ 表示因为 span 预算被跳过
+            method.insertBefore("{ com.testkit.trace.TraceInfo _t_p_ = com.testkit.trace.TraceInfo.getCurrent();" +
+                    "  _t_t_ = com.testkit.trace.TraceInfo.open(_t_p_,\"DispatcherServlet\",$1.getMethod(),$1.getServletPath());" +
+                    "  _t_s_ = _t_t_ == null && _t_p_ != null;" +
+                    "  if (_t_t_ != null) { _t_t_.stepIn(); } }");
+            method.insertAfter("{ if (_t_t_ != null) {" +
+                    "    com.testkit.trace.TraceSink.profiler(_t_t_.stepOut(null, null, java.lang.String.valueOf($2.getStatus()),null));" +
+                    "} else if (_t_s_) {" +
+                    "    com.testkit.trace.TraceInfo.skipOut();" +
+                    "} }");
 
             method.addCatch(
                     "{ com.testkit.trace.TraceInfo _t_t_1 = com.testkit.trace.TraceInfo.getCurrent();" +
-                            "    if (_t_t_1 != null) {" +
-                            "        System.err.println(\"TRACE_PROFILER - \" + _t_t_1.stepOut(null, $e,java.lang.String.valueOf($2.getStatus()),null).toProfilerString());" +
+                            "    if (_t_t_1 != null && !com.testkit.trace.TraceInfo.skipOut()) {" +
+                            "        com.testkit.trace.TraceSink.profiler(_t_t_1.stepOut(null, $e,java.lang.String.valueOf($2.getStatus()),null));" +
                             "    }" +
                             "    throw $e;" +
                             "}",
@@ -175,6 +336,7 @@ public class TraceAgent {
             ctClass.detach();
             return enhancedByteCode;
         } catch (Exception e) {
+            TransformMetrics.failed("org.springframework.web.servlet.DispatcherServlet", e);
             System.err.println("Testkit javassist enhance fail: DispatcherServlet errorType:" + e.getClass().getName() + ":" + e.getMessage());
             e.printStackTrace();
             return null;
@@ -205,6 +367,7 @@ public class TraceAgent {
             ctClass.detach();
             return enhancedByteCode;
         } catch (Exception e) {
+            TransformMetrics.failed("org.apache.ibatis.plugin.InterceptorChain", e);
             System.err.println("Testkit javassist enhance fail: InterceptorChain errorType:" + e.getClass().getName() + ":" + e.getMessage());
             e.printStackTrace();
             return null;
@@ -224,6 +387,9 @@ public class TraceAgent {
                     enhanceInvokeAllMethod(classPool, method);
                 } else if ("invokeAny".equals(method.getName())) {
                     enhanceInvokeAnyMethod(classPool, method);
+                } else if ("schedule".equals(method.getName())) {
+                    // ScheduledThreadPoolExecutor 的 execute/submit 都转到 schedule,周期任务不传递
+                    enhanceScheduleMethod(classPool, method);
                 }
             }
 
@@ -231,12 +397,126 @@ public class TraceAgent {
             ctClass.detach();
             return enhancedByteCode;
         } catch (Exception e) {
-            System.err.println("Testkit javassist enhance fail: ThreadPoolExecutor/ScheduledExecutorService errorType:" + e.getClass().getName() + ":" + e.getMessage());
+            TransformMetrics.failed("ThreadPoolExecutor/ScheduledThreadPoolExecutor", e);
+            System.err.println("Testkit javassist enhance fail: ThreadPoolExecutor/ScheduledThreadPoolExecutor errorType:" + e.getClass().getName() + ":" + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * ForkJoinPool 提交的 ForkJoinTask 按任务对象记录链路(CompletableFuture.supplyAsync 也是这种),
+     * 普通 Runnable/Callable 包装后提交
+     */
+    private static byte[] enhanceForkJoinPool(ClassPool classPool, byte[] classfileBuffer) {
+        try {
+            CtClass ctClass = classPool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+            for (CtMethod method : ctClass.getDeclaredMethods()) {
+                String name = method.getName();
+                CtClass[] parameterTypes = method.getParameterTypes();
+                if (parameterTypes.length == 0 || Modifier.isAbstract(method.getModifiers())) {
+                    continue;
+                }
+                String first = parameterTypes[0].getName();
+                if ("execute".equals(name) || "submit".equals(name) || "invoke".equals(name)) {
+                    if ("java.util.concurrent.ForkJoinTask".equals(first)) {
+                        method.insertBefore("{ com.testkit.trace.TraceThreadContextTransferTool.captureFork($1); }");
+                    } else if ("java.lang.Runnable".equals(first)) {
+                        method.insertBefore(
+                                "{ if ($1 instanceof java.util.concurrent.ForkJoinTask) {" +
+                                        "    com.testkit.trace.TraceThreadContextTransferTool.captureFork((java.util.concurrent.ForkJoinTask)$1);" +
+                                        "} else {" +
+                                        "    $1 = com.testkit.trace.TraceThreadContextTransferTool.wrap((java.lang.Runnable)$1);" +
+                                        "} }"
+                        );
+                    } else if ("java.util.concurrent.Callable".equals(first)) {
+                        method.insertBefore("{ $1 = com.testkit.trace.TraceThreadContextTransferTool.wrap((java.util.concurrent.Callable)$1); }");
+                    }
+                } else if (("invokeAll".equals(name) || "invokeAny".equals(name)) && "java.util.Collection".equals(first)) {
+                    method.insertBefore("{ $1 = com.testkit.trace.TraceThreadContextTransferTool.wrapCalls((java.util.Collection)$1); }");
+                }
+            }
+            byte[] enhancedByteCode = ctClass.toBytecode();
+            ctClass.detach();
+            return enhancedByteCode;
+        } catch (Exception e) {
+            TransformMetrics.failed("java.util.concurrent.ForkJoinPool", e);
+            System.err.println("Testkit javassist enhance fail: ForkJoinPool errorType:" + e.getClass().getName() + ":" + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * fork 时记录链路,doExec 执行前切换到 fork 时的链路,结束后恢复
+     * 并行流的子任务都是这样执行的
+     */
+    private static byte[] enhanceForkJoinTask(ClassPool classPool, byte[] classfileBuffer) {
+        try {
+            CtClass ctClass = classPool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+            for (CtMethod method : ctClass.getDeclaredMethods()) {
+                if ("fork".equals(method.getName()) && method.getParameterTypes().length == 0) {
+                    method.insertBefore("{ com.testkit.trace.TraceThreadContextTransferTool.captureFork(this); }");
+                } else if ("doExec".equals(method.getName()) && method.getParameterTypes().length == 0) {
+                    method.insertBefore("{ com.testkit.trace.TraceThreadContextTransferTool.enterForked(this); }");
+                    method.insertAfter("{ com.testkit.trace.TraceThreadContextTransferTool.exitForked(this); }", true);
+                }
+            }
+            byte[] enhancedByteCode = ctClass.toBytecode();
+            ctClass.detach();
+            return enhancedByteCode;
+        } catch (Exception e) {
+            TransformMetrics.failed("java.util.concurrent.ForkJoinTask", e);
+            System.err.println("Testkit javassist enhance fail: ForkJoinTask errorType:" + e.getClass().getName() + ":" + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 每个任务新建线程的执行器,在创建线程前包装任务
+     */
+    private static byte[] enhanceThreadPerTask(ClassPool classPool, String className, byte[] classfileBuffer) {
+        String methodName = THREAD_PER_TASK.get(className);
+        try {
+            CtClass ctClass = classPool.makeClass(new java.io.ByteArrayInputStream(classfileBuffer));
+            for (CtMethod method : ctClass.getDeclaredMethods()) {
+                if (!methodName.equals(method.getName()) || Modifier.isAbstract(method.getModifiers())) {
+                    continue;
+                }
+                CtClass[] parameterTypes = method.getParameterTypes();
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    if ("java.lang.Runnable".equals(parameterTypes[i].getName())) {
+                        method.insertBefore("{ $" + (i + 1) + " = com.testkit.trace.TraceThreadContextTransferTool.wrap((java.lang.Runnable)$" + (i + 1) + "); }");
+                    }
+                }
+            }
+            byte[] enhancedByteCode = ctClass.toBytecode();
+            ctClass.detach();
+            return enhancedByteCode;
+        } catch (Exception e) {
+            TransformMetrics.failed(className, e);
+            System.err.println("Testkit javassist enhance fail: " + className + " errorType:" + e.getClass().getName() + ":" + e.getMessage());
             e.printStackTrace();
             return null;
         }
     }
 
+    private static void enhanceScheduleMethod(ClassPool classPool, CtMethod method) throws CannotCompileException, NotFoundException {
+        CtClass[] parameterTypes = method.getParameterTypes();
+        if (parameterTypes.length == 3 && "java.lang.Runnable".equals(parameterTypes[0].getName())) {
+            // schedule(Runnable, long, TimeUnit)
+            method.insertBefore(
+                    "{ $1 = com.testkit.trace.TraceThreadContextTransferTool.wrap((java.lang.Runnable)$1); }"
+            );
+        } else if (parameterTypes.length == 3 && "java.util.concurrent.Callable".equals(parameterTypes[0].getName())) {
+            // schedule(Callable, long, TimeUnit)
+            method.insertBefore(
+                    "{ $1 = com.testkit.trace.TraceThreadContextTransferTool.wrap((java.util.concurrent.Callable)$1); }"
+            );
+        }
+    }
+
     private static void enhanceExecuteMethod(ClassPool classPool, CtMethod method) throws CannotCompileException, NotFoundException {
         CtClass[] parameterTypes = method.getParameterTypes();
         if (parameterTypes.length == 1 && "java.lang.Runnable".equals(parameterTypes[0].getName())) {
@@ -292,36 +572,31 @@ public class TraceAgent {
     }
 
 
-    private static String ismatch(String className, TraceConfig config) {
-        if (className.contains("$")) {
+    private static String ismatch(String className, TraceConfig config, boolean log) {
+        if (className.indexOf('$') >= 0) {
             return null;
         }
-        className = className.replace('/', '.');
+        ClassMatcher matcher = config.matcher;
 
         // 检查黑名单
-        if (config.preprocessedDenys.containsKey(className) && config.preprocessedDenys.get(className).isEmpty()) {
-            System.err.println("Testkit trace deny: " + className);
+        ClassMatcher.MethodRule deny = matcher.denyRule(className);
+        if (deny != null && deny.isWholeClass()) {
+            if (log) {
+                System.err.println("Testkit trace deny: " + className.replace('/', '.'));
+            }
             return null;
         }
 
         // 检查白名单
-        if (config.preprocessedAllows.containsKey((className))) {
-            System.err.println("Testkit trace allow: " + className);
+        if (matcher.allowRule(className) != null) {
+            if (log) {
+                System.err.println("Testkit trace allow: " + className.replace('/', '.'));
+            }
             return "white";
         }
 
-        // 检查包名匹配
-        for (String pkg : config.packages) {
-            if (className.startsWith(pkg)) {
-                // 检查类后缀匹配
-                for (String suffix : config.clsSuffix) {
-                    if (className.endsWith(suffix)) {
-                        return suffix; // 包名和后缀都匹配
-                    }
-                }
-            }
-        }
-        return null; // 如果没有匹配，返回不匹配
+        // 包名和类后缀都匹配
+        return matcher.group(className);
     }
 
     private static byte[] enhanceClass(ClassPool classPool, String group, String className, byte[] classfileBuffer, TraceConfig config) {
@@ -342,15 +617,7 @@ public class TraceAgent {
                     continue;
                 }
 
-                Set<String> blackMethods = config.preprocessedDenys.get(className);
-                if (blackMethods != null && blackMethods.contains(method.getName())) {
-                    System.err.println("Testkit trace skip method: " + className+"#"+method.getName());
-                    continue;
-                }
-
-                Set<String> whiteMethods = config.preprocessedAllows.get(className);
-                if(whiteMethods != null && !whiteMethods.contains(method.getName())) {
-                    System.err.println("Testkit trace skip method: " + className+"#"+method.getName());
+                if (!config.shouldTraceMethod(className, method.getName())) {
                     continue;
                 }
 
@@ -363,13 +630,14 @@ public class TraceAgent {
             return enhancedByteCode;
         } catch (Throwable e) {
             e.printStackTrace();
+            TransformMetrics.failed(className, e);
             System.err.println("Testkit javassist enhance fail:" + simpleClassName + "," + methodSign + " errorType:" + e.getClass().getName() + ":" + e.getMessage());
             return null;
         }
 
     }
 
-    private static boolean isGeneratedMethod(String methodName) {
+    static boolean isGeneratedMethod(String methodName) {
         // 判断是否为 Lambda 表达式的方法
 //        if (methodName.contains("$$Lambda$")) {
 //            return true;
@@ -391,11 +659,18 @@ public class TraceAgent {
         String methodName = method.getName();
         // 开始对方法进行增强
         method.addLocalVariable("_t_t_", classPool.get("com.testkit.trace.TraceInfo"));
-// 在方法开始处插入 stepIn
+        method.addLocalVariable("_t_s_", CtClass.booleanType);
+// 在方法开始处插入 stepIn,没有链路时只有一次 ThreadLocal 读取
         method.insertBefore(
-                "_t_t_ = com.testkit.trace.TraceInfo.getCurrent();" +
+                "_t_s_ = false;" +
+                        "_t_t_ = com.testkit.trace.TraceInfo.getCurrent();" +
                         "if (_t_t_ != null) {" +
-                        "    _t_t_ = new com.testkit.trace.TraceInfo(_t_t_,\"" + group + "\",\"" + className + "\", \"" + methodName + "\").stepIn();" +
+                        "    _t_t_ = com.testkit.trace.TraceInfo.open(_t_t_,\"" + group + "\",\"" + className + "\", \"" + methodName + "\");" +
+                        "    if (_t_t_ == null) {" +
+                        "        _t_s_ = true;" +
+                        "    } else {" +
+                        "        _t_t_.stepIn();" +
+                        "    }" +
                         "}"
         );
 
@@ -406,27 +681,35 @@ public class TraceAgent {
         if (returnType.equals(CtClass.voidType)) {
             method.insertAfter(
                     "{ if (_t_t_ != null) {" +
-                            "    System.err.println(_t_t_.stepOut(null, null));" + // void 方法的默认返回值
+                            "    com.testkit.trace.TraceSink.span(_t_t_.stepOut(null, null));" + // void 方法的默认返回值
+                            "} else if (_t_s_) {" +
+                            "    com.testkit.trace.TraceInfo.skipOut();" +
                             "} }"
             );
         } else if (returnType.isArray()) {
             // 处理数组类型，不区分是否基本类型数组，因为数组都可以作为 Object 处理
             method.insertAfter(
                     "{ if (_t_t_ != null) {" +
-                            "    System.err.println(_t_t_.stepOut($_, null));" +
+                            "    com.testkit.trace.TraceSink.span(_t_t_.stepOut($_, null));" +
+                            "} else if (_t_s_) {" +
+                            "    com.testkit.trace.TraceInfo.skipOut();" +
                             "} }"
             );
         } else if (returnType.isPrimitive()) {
             // 基本类型返回值
             method.insertAfter(
                     "{ if (_t_t_ != null) {" +
-                            "    System.err.println(_t_t_.stepOut(($w)$_, null));" + // $w 表示基本类型自动装箱
+                            "    com.testkit.trace.TraceSink.span(_t_t_.stepOut(($w)$_, null));" + // $w 表示基本类型自动装箱
+                            "} else if (_t_s_) {" +
+                            "    com.testkit.trace.TraceInfo.skipOut();" +
                             "} }"
             );
         } else {
             method.insertAfter(
                     "{ if (_t_t_ != null) {" +
-                            "    System.err.println(_t_t_.stepOut((Object)$_, null));" + // 显式类型转换
+                            "    com.testkit.trace.TraceSink.span(_t_t_.stepOut((Object)$_, null));" + // 显式类型转换
+                            "} else if (_t_s_) {" +
+                            "    com.testkit.trace.TraceInfo.skipOut();" +
                             "} }"
             );
         }
@@ -434,8 +717,8 @@ public class TraceAgent {
         // 在异常捕获处插入 stepOut，增加非空检查
         method.addCatch(
                 "{ com.testkit.trace.TraceInfo _t_t_1 = com.testkit.trace.TraceInfo.getCurrent();" +
-                        "    if (_t_t_1 != null) {" +
-                        "        System.err.println(_t_t_1.stepOut(null, $e));" +
+                        "    if (_t_t_1 != null && !com.testkit.trace.TraceInfo.skipOut()) {" +
+                        "        com.testkit.trace.TraceSink.span(_t_t_1.stepOut(null, $e));" +
                         "    }" +
                         "    throw $e;" +
                         "}",
@@ -443,6 +726,149 @@ public class TraceAgent {
         );
     }
 
+    /**
+     * 重新增强规则变化前后增强结果不同的已加载类
+     * transformer 总是基于原始字节码执行,不再匹配的类返回 null,相当于恢复原样
+     */
+    private static Map<String, Object> retransform(TraceConfig before, TraceConfig after) {
+        long begin = System.currentTimeMillis();
+        Instrumentation inst = instrumentation;
+        List<Class<?>> targets = new ArrayList<>();
+        for (Class<?> type : inst.getAllLoadedClasses()) {
+            if (!isRetransformCandidate(inst, type)) {
+                continue;
+            }
+            String name = type.getName();
+            String beforeGroup = ismatch(name, before, false);
+            String afterGroup = ismatch(name, after, false);
+            if (beforeGroup == null && afterGroup == null) {
+                continue;
+            }
+            if (Objects.equals(beforeGroup, afterGroup)
+                    && Objects.equals(before.matcher.allowRule(name), after.matcher.allowRule(name))
+                    && Objects.equals(before.matcher.denyRule(name), after.matcher.denyRule(name))) {
+                continue;
+            }
+            targets.add(type);
+        }
+        int failed = 0;
+        List<String> errors = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i += RETRANSFORM_BATCH) {
+            failed += retransformBatch(inst, targets.subList(i, Math.min(targets.size(), i + RETRANSFORM_BATCH)), errors);
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("retransformed", targets.size() - failed);
+        map.put("failed", failed);
+        map.put("errors", errors);
+        map.put("costMs", System.currentTimeMillis() - begin);
+        System.err.println("Testkit trace retransform " + map);
+        return map;
+    }
+
+    private static boolean isRetransformCandidate(Instrumentation inst, Class<?> type) {
+        if (type.isArray() || type.isPrimitive() || type.isInterface() || !inst.isModifiableClass(type)) {
+            return false;
+        }
+        String name = type.getName();
+        return !name.startsWith("java.") && !name.startsWith("com.testkit.");
+    }
+
+    /**
+     * @return 失败的类数量
+     */
+    private static int retransformBatch(Instrumentation inst, List<Class<?>> batch, List<String> errors) {
+        try {
+            inst.retransformClasses(batch.toArray(new Class<?>[0]));
+            return 0;
+        } catch (Throwable e) {
+            // 整批失败时逐个重试,找出失败的类
+            int failed = 0;
+            for (Class<?> type : batch) {
+                try {
+                    inst.retransformClasses(type);
+                } catch (Throwable ex) {
+                    failed++;
+                    if (errors.size() < 20) {
+                        errors.add(type.getName() + ":" + ex);
+                    }
+                }
+            }
+            return failed;
+        }
+    }
+
+    private static class RuleHandler implements TraceRules.Handler {
+
+        @Override
+        public Map<String, Object> list() {
+            return activeConfig.rules();
+        }
+
+        @Override
+        public Map<String, Object> update(boolean add, Map<String, Set<String>> rules) {
+            if (!instrumentation.isRetransformClassesSupported()) {
+                throw new IllegalStateException("jvm not support retransform");
+            }
+            synchronized (RuleHandler.class) {
+                TraceConfig before = activeConfig;
+                TraceConfig after = before.copy();
+                for (Map.Entry<String, Set<String>> entry : rules.entrySet()) {
+                    Set<String> target;
+                    switch (entry.getKey()) {
+                        case TraceRules.ALLOWS:
+                            target = after.allows;
+                            break;
+                        case TraceRules.DENYS:
+                            target = after.denys;
+                            break;
+                        case TraceRules.PACKAGES:
+                            target = after.packages;
+                            break;
+                        case TraceRules.CLS_SUFFIX:
+                            target = after.clsSuffix;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown trace rule type:" + entry.getKey());
+                    }
+                    if (add) {
+                        target.addAll(entry.getValue());
+                    } else {
+                        target.removeAll(entry.getValue());
+                    }
+                }
+                after.preprocess();
+                activeConfig = after;
+                System.err.println("Testkit trace config: " + after);
+                Map<String, Object> map = after.rules();
+                map.put("retransform", retransform(before, after));
+                return map;
+            }
+        }
+
+        @Override
+        public Map<String, Object> transformReport() {
+            Map<String, Object> map = TransformMetrics.summary();
+            map.put("deferring", deferring);
+            return map;
+        }
+
+        @Override
+        public void contextReady() {
+            if (ready.get()) {
+                return;
+            }
+            // 不占用 spring 的启动事件线程
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    onReady("contextReady");
+                }
+            }, "testkit-trace-defer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
     // 解码：URL参数字符串 → Map
     public static Map<String, String> decode(String query) {
         Map<String, String> params = new HashMap<>();
@@ -482,6 +908,14 @@ public class TraceAgent {
         private boolean traceWeb = true;
         private boolean traceMybatis = true;
         private boolean logMybatis = true;
+        /**
+         * 业务类的增强引擎,默认 javassist,engine=asm 时使用 AsmTraceWeaver
+         */
+        private boolean asmEngine;
+        /**
+         * deferTransform=true 时业务类首次加载不增强,应用启动完成后并行重新增强
+         */
+        private boolean deferTransform;
 
         private Set<String> packages = new HashSet<>();
 
@@ -491,8 +925,49 @@ public class TraceAgent {
 
         private Set<String> denys = new HashSet<>();
 
-        private HashMap<String,Set<String>> preprocessedAllows;
-        private HashMap<String,Set<String>> preprocessedDenys;
+        private ClassMatcher matcher;
+
+        private void preprocess() {
+            this.matcher = ClassMatcher.compile(packages, clsSuffix, allows, denys);
+        }
+
+        boolean shouldTraceMethod(String className, String methodName) {
+            ClassMatcher.MethodRule blackMethods = matcher.denyRule(className);
+            if (blackMethods != null && blackMethods.matches(methodName)) {
+                System.err.println("Testkit trace skip method: " + className+"#"+methodName);
+                return false;
+            }
+
+            ClassMatcher.MethodRule whiteMethods = matcher.allowRule(className);
+            if (whiteMethods != null && !whiteMethods.matches(methodName)) {
+                System.err.println("Testkit trace skip method: " + className+"#"+methodName);
+                return false;
+            }
+            return true;
+        }
+
+        private TraceConfig copy() {
+            TraceConfig copy = new TraceConfig();
+            copy.traceWeb = traceWeb;
+            copy.traceMybatis = traceMybatis;
+            copy.logMybatis = logMybatis;
+            copy.asmEngine = asmEngine;
+            copy.deferTransform = deferTransform;
+            copy.packages = new HashSet<>(packages);
+            copy.clsSuffix = new HashSet<>(clsSuffix);
+            copy.allows = new HashSet<>(allows);
+            copy.denys = new HashSet<>(denys);
+            return copy;
+        }
+
+        private Map<String, Object> rules() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put(TraceRules.PACKAGES, new TreeSet<>(packages));
+            map.put(TraceRules.CLS_SUFFIX, new TreeSet<>(clsSuffix));
+            map.put(TraceRules.ALLOWS, new TreeSet<>(allows));
+            map.put(TraceRules.DENYS, new TreeSet<>(denys));
+            return map;
+        }
 
 
         public Set<String> getPackages() {
@@ -531,6 +1006,22 @@ public class TraceAgent {
             return traceWeb;
         }
 
+        public boolean isAsmEngine() {
+            return asmEngine;
+        }
+
+        public void setAsmEngine(boolean asmEngine) {
+            this.asmEngine = asmEngine;
+        }
+
+        public boolean isDeferTransform() {
+            return deferTransform;
+        }
+
+        public void setDeferTransform(boolean deferTransform) {
+            this.deferTransform = deferTransform;
+        }
+
         public void setTraceWeb(boolean traceWeb) {
             this.traceWeb = traceWeb;
         }
@@ -554,15 +1045,15 @@ public class TraceAgent {
         @Override
         public String toString() {
             return "TraceConfig{" +
-                    "traceWeb=" + traceWeb +
+                    "engine=" + (asmEngine ? "asm" : "javassist") +
+                    ", deferTransform=" + deferTransform +
+                    ", traceWeb=" + traceWeb +
                     ", traceMybatis=" + traceMybatis +
                     ", logMybatis=" + logMybatis +
                     ", packages=" + packages +
                     ", clsSuffix=" + clsSuffix +
                     ", allows=" + allows +
                     ", denys=" + denys +
-                    ", preprocessedAllows=" + preprocessedAllows +
-                    ", preprocessedDenys=" + preprocessedDenys +
                     '}';
         }
     }
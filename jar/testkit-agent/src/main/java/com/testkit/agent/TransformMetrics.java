@@ -0,0 +1,182 @@
+package com.testkit.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 类增强耗时统计
+ * 每次实际执行增强的类记录耗时、增强前后字节数,增强失败的记录原因
+ * 应用启动完成后(延迟增强模式下是延迟增强结束后)按耗时倒序写一份报告:
+ * testkit.trace.transform.report 指定路径,默认 ~/.spring-testkit/trace/transform-report.log,none 表示不写文件
+ */
+class TransformMetrics {
+
+    /**
+     * 明细最多保留的条数,超过后只累计汇总值
+     */
+    private static final int MAX_RECORDS = 20000;
+    private static final int MAX_ERRORS = 50;
+    private static final int TOP = 20;
+
+    private static final LongAdder WOVEN = new LongAdder();
+    private static final LongAdder NOT_WOVEN = new LongAdder();
+    private static final LongAdder FAILED = new LongAdder();
+    private static final LongAdder DEFERRED = new LongAdder();
+    private static final LongAdder NANOS = new LongAdder();
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+
+    private static final ConcurrentLinkedQueue<Record> RECORDS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger RECORD_COUNT = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<String> ERRORS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger ERROR_COUNT = new AtomicInteger();
+
+    private static volatile Map<String, Object> startup;
+
+    private TransformMetrics() {
+    }
+
+    /**
+     * @param className 内部名
+     * @param bytes     增强结果,null 表示没有修改
+     */
+    static void record(String className, long nanos, int bytesIn, byte[] bytes, boolean retransform) {
+        NANOS.add(nanos);
+        BYTES_IN.add(bytesIn);
+        if (bytes == null) {
+            NOT_WOVEN.increment();
+        } else {
+            WOVEN.increment();
+            BYTES_OUT.add(bytes.length);
+        }
+        if (RECORD_COUNT.incrementAndGet() <= MAX_RECORDS) {
+            RECORDS.add(new Record(className.replace('/', '.'), nanos, bytesIn, bytes == null ? -1 : bytes.length, retransform));
+        }
+    }
+
+    static void failed(String className, Throwable e) {
+        FAILED.increment();
+        if (ERROR_COUNT.incrementAndGet() <= MAX_ERRORS) {
+            ERRORS.add(className.replace('/', '.') + ":" + e);
+        }
+    }
+
+    /**
+     * 延迟增强模式下跳过的首次加载
+     */
+    static void deferred() {
+        DEFERRED.increment();
+    }
+
+    static Map<String, Object> summary() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long count = WOVEN.sum() + NOT_WOVEN.sum();
+        map.put("transformed", count);
+        map.put("woven", WOVEN.sum());
+        map.put("notWoven", NOT_WOVEN.sum());
+        map.put("failed", FAILED.sum());
+        map.put("deferred", DEFERRED.sum());
+        map.put("costMs", NANOS.sum() / 1000_000);
+        map.put("avgCostUs", count == 0 ? null : NANOS.sum() / count / 1000);
+        map.put("bytesIn", BYTES_IN.sum());
+        map.put("bytesOut", BYTES_OUT.sum());
+        List<String> top = new ArrayList<>();
+        for (Record record : sortedRecords()) {
+            if (top.size() >= TOP) {
+                break;
+            }
+            top.add(record.className + ":" + record.nanos / 1000 + "us");
+        }
+        map.put("slowest", top);
+        map.put("errors", new ArrayList<>(ERRORS));
+        map.put("startup", startup);
+        return map;
+    }
+
+    /**
+     * 启动完成时调用一次,输出汇总并写报告文件
+     *
+     * @param extra 延迟增强的执行结果,没有为 null
+     */
+    static void startupReport(String trigger, Map<String, Object> extra) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("trigger", trigger);
+        map.put("time", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+        if (extra != null) {
+            map.putAll(extra);
+        }
+        startup = map;
+        Map<String, Object> summary = summary();
+        summary.remove("slowest");
+        summary.remove("errors");
+        System.err.println("Testkit trace transform report " + summary);
+        String path = System.getProperty("testkit.trace.transform.report",
+                System.getProperty("user.home") + File.separator + ".spring-testkit" + File.separator + "trace" + File.separator + "transform-report.log");
+        if ("none".equalsIgnoreCase(path.trim())) {
+            return;
+        }
+        File file = new File(path.trim());
+        try {
+            File dir = file.getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                writer.println("# summary");
+                for (Map.Entry<String, Object> entry : summary.entrySet()) {
+                    writer.println(entry.getKey() + "=" + entry.getValue());
+                }
+                writer.println("# errors");
+                for (String error : ERRORS) {
+                    writer.println(error);
+                }
+                writer.println("# classes: costUs bytesIn bytesOut(-1 not woven) retransform className");
+                for (Record record : sortedRecords()) {
+                    writer.println(record.nanos / 1000 + " " + record.bytesIn + " " + record.bytesOut + " " + record.retransform + " " + record.className);
+                }
+            }
+        } catch (Throwable e) {
+            System.err.println("Testkit trace transform report write fail:" + file + ", " + e);
+        }
+    }
+
+    private static List<Record> sortedRecords() {
+        List<Record> list = new ArrayList<>(RECORDS);
+        list.sort(new Comparator<Record>() {
+            @Override
+            public int compare(Record o1, Record o2) {
+                return Long.compare(o2.nanos, o1.nanos);
+            }
+        });
+        return list;
+    }
+
+    private static class Record {
+        private final String className;
+        private final long nanos;
+        private final int bytesIn;
+        private final int bytesOut;
+        private final boolean retransform;
+
+        private Record(String className, long nanos, int bytesIn, int bytesOut, boolean retransform) {
+            this.className = className;
+            this.nanos = nanos;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.retransform = retransform;
+        }
+    }
+}
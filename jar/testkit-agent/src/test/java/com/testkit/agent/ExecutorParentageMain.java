@@ -0,0 +1,233 @@
+package com.testkit.agent;
+
+import com.testkit.trace.TraceInfo;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 挂载 agent 的子进程入口,见 ExecutorParentageTest
+ * 每个场景在一个 span 里提交任务,任务里看到的当前 span 必须是提交时的 span,执行完后工作线程不残留链路
+ * 每个场景输出一行: 场景名 \t ok | skip | fail 原因
+ */
+public class ExecutorParentageMain {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static final Callable<TraceInfo> CURRENT = new Callable<TraceInfo>() {
+        @Override
+        public TraceInfo call() {
+            return TraceInfo.getCurrent();
+        }
+    };
+
+    interface Scenario {
+        void run(TraceInfo parent) throws Exception;
+    }
+
+    static class Skip extends RuntimeException {
+        Skip(String message) {
+            super(message);
+        }
+    }
+
+    public static void main(String[] args) {
+        run("threadPoolExecutor", ExecutorParentageMain::threadPoolExecutor);
+        run("scheduledThreadPoolExecutor", ExecutorParentageMain::scheduledThreadPoolExecutor);
+        run("commonPoolSupplyAsync", ExecutorParentageMain::commonPoolSupplyAsync);
+        run("parallelStream", ExecutorParentageMain::parallelStream);
+        run("forkJoinPool", ExecutorParentageMain::forkJoinPool);
+        run("virtualThread", ExecutorParentageMain::virtualThread);
+        System.out.flush();
+        System.exit(0);
+    }
+
+    private static void run(String name, Scenario scenario) {
+        TraceInfo root = TraceInfo.buildRoot("parentage", "test", "Parentage", name);
+        root.stepIn();
+        TraceInfo parent = TraceInfo.open(root, "test", "Parentage", name);
+        parent.stepIn();
+        String result;
+        try {
+            scenario.run(parent);
+            result = "ok";
+        } catch (Skip e) {
+            result = "skip " + e.getMessage();
+        } catch (Throwable e) {
+            result = "fail " + e;
+        } finally {
+            parent.stepOut(null, null);
+            root.stepOut(null, null);
+            TraceInfo.set(null);
+        }
+        System.out.println(name + "\t" + result);
+    }
+
+    private static void threadPoolExecutor(TraceInfo parent) throws Exception {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        // 线程先于链路创建,不能靠线程继承
+        pool.prestartAllCoreThreads();
+        try {
+            CompletableFuture<TraceInfo> executed = new CompletableFuture<>();
+            pool.execute(() -> executed.complete(TraceInfo.getCurrent()));
+            expect(parent, executed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "execute");
+            expect(parent, pool.submit(CURRENT).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "submit");
+            expect(parent, pool.invokeAll(Arrays.asList(CURRENT, CURRENT)).get(1).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "invokeAll");
+            expect(parent, pool.invokeAny(Collections.singletonList(CURRENT)), "invokeAny");
+            expect(null, untraced(() -> pool.submit(CURRENT).get(TIMEOUT_SECONDS, TimeUnit.SECONDS)), "untraced submit");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void scheduledThreadPoolExecutor(TraceInfo parent) throws Exception {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(2);
+        pool.prestartAllCoreThreads();
+        try {
+            CompletableFuture<TraceInfo> scheduled = new CompletableFuture<>();
+            pool.schedule(() -> scheduled.complete(TraceInfo.getCurrent()), 1, TimeUnit.MILLISECONDS);
+            expect(parent, scheduled.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "schedule(Runnable)");
+            expect(parent, pool.schedule(CURRENT, 1, TimeUnit.MILLISECONDS).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "schedule(Callable)");
+            CompletableFuture<TraceInfo> executed = new CompletableFuture<>();
+            pool.execute(() -> executed.complete(TraceInfo.getCurrent()));
+            expect(parent, executed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "execute");
+            expect(parent, pool.submit(CURRENT).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "submit");
+            expect(null, untraced(() -> pool.schedule(CURRENT, 1, TimeUnit.MILLISECONDS).get(TIMEOUT_SECONDS, TimeUnit.SECONDS)), "untraced schedule");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void commonPoolSupplyAsync(TraceInfo parent) throws Exception {
+        expect(parent, CompletableFuture.supplyAsync(TraceInfo::getCurrent).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "supplyAsync");
+        CompletableFuture<TraceInfo> ran = new CompletableFuture<>();
+        CompletableFuture.runAsync(() -> ran.complete(TraceInfo.getCurrent())).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        expect(parent, ran.get(), "runAsync");
+        expect(null, untraced(() -> CompletableFuture.supplyAsync(TraceInfo::getCurrent).get(TIMEOUT_SECONDS, TimeUnit.SECONDS)), "untraced supplyAsync");
+    }
+
+    private static void parallelStream(TraceInfo parent) throws Exception {
+        for (TraceInfo seen : currents(256)) {
+            expect(parent, seen, "parallel stream element");
+        }
+        for (TraceInfo seen : untraced(() -> currents(256))) {
+            expect(null, seen, "untraced parallel stream element");
+        }
+    }
+
+    private static List<TraceInfo> currents(int size) {
+        return IntStream.range(0, size).parallel().mapToObj(i -> {
+            // 拉长每个元素,让子任务分到其他工作线程
+            long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(50);
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+            return TraceInfo.getCurrent();
+        }).collect(Collectors.toList());
+    }
+
+    private static void forkJoinPool(TraceInfo parent) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            expect(parent, pool.submit(CURRENT).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "submit(Callable)");
+            CompletableFuture<TraceInfo> executed = new CompletableFuture<>();
+            pool.execute(() -> executed.complete(TraceInfo.getCurrent()));
+            expect(parent, executed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "execute(Runnable)");
+            expect(parent, pool.submit(new CurrentTask()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "submit(ForkJoinTask)");
+            expect(parent, pool.invoke(new CurrentTask()), "invoke(ForkJoinTask)");
+            expect(parent, pool.invokeAll(Arrays.asList(CURRENT, CURRENT)).get(1).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "invokeAll");
+            // 工作线程里继续 fork 的子任务
+            for (TraceInfo seen : pool.invoke(new ForkingTask(64))) {
+                expect(parent, seen, "invoke(ForkJoinTask) forked subtask");
+            }
+            expect(null, untraced(() -> pool.submit(CURRENT).get(TIMEOUT_SECONDS, TimeUnit.SECONDS)), "untraced submit");
+            for (TraceInfo seen : untraced(() -> pool.invoke(new ForkingTask(64)))) {
+                expect(null, seen, "untraced forked subtask");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void virtualThread(TraceInfo parent) throws Exception {
+        if (Runtime.version().feature() < 21) {
+            throw new Skip("virtual threads need jdk 21, running " + Runtime.version());
+        }
+        // 按 jdk 11 编译,通过反射调用
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Method start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+        CompletableFuture<TraceInfo> started = new CompletableFuture<>();
+        start.invoke(builder, (Runnable) () -> started.complete(TraceInfo.getCurrent()));
+        expect(parent, started.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "Thread.ofVirtual().start");
+        ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        try {
+            expect(parent, executor.submit(CURRENT).get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "newVirtualThreadPerTaskExecutor submit");
+            expect(null, untraced(() -> executor.submit(CURRENT).get(TIMEOUT_SECONDS, TimeUnit.SECONDS)), "untraced submit");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 在当前线程没有链路的情况下执行,用于检查工作线程没有残留上一个任务的链路
+     */
+    private static <T> T untraced(Callable<T> callable) throws Exception {
+        TraceInfo current = TraceInfo.getCurrent();
+        TraceInfo.set(null);
+        try {
+            return callable.call();
+        } finally {
+            TraceInfo.set(current);
+        }
+    }
+
+    private static void expect(TraceInfo expected, TraceInfo actual, String what) {
+        if (expected != actual) {
+            throw new AssertionError(what + " expected " + expected + " but was " + actual);
+        }
+    }
+
+    static class CurrentTask extends RecursiveTask<TraceInfo> {
+        @Override
+        protected TraceInfo compute() {
+            return TraceInfo.getCurrent();
+        }
+    }
+
+    static class ForkingTask extends RecursiveTask<List<TraceInfo>> {
+
+        private final int size;
+
+        ForkingTask(int size) {
+            this.size = size;
+        }
+
+        @Override
+        protected List<TraceInfo> compute() {
+            if (size <= 1) {
+                return Collections.singletonList(TraceInfo.getCurrent());
+            }
+            ForkingTask left = new ForkingTask(size / 2);
+            ForkingTask right = new ForkingTask(size - size / 2);
+            left.fork();
+            List<TraceInfo> list = new ArrayList<>(right.compute());
+            list.addAll(left.join());
+            return list;
+        }
+    }
+}
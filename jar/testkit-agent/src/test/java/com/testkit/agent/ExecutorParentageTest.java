@@ -0,0 +1,115 @@
+package com.testkit.agent;
+
+import com.testkit.trace.TraceInfo;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+/**
+ * 各类执行器的链路传递: 任务里的当前 span 是提交任务时的 span
+ * jdk 的线程池类需要在加载时增强,所以在挂载 agent 的子进程里运行 ExecutorParentageMain,
+ * testkit-trace 和线上一样放在 bootclasspath 上
+ */
+class ExecutorParentageTest {
+
+    private static final Map<String, String> results = new HashMap<>();
+
+    @BeforeAll
+    static void runWithAgent() throws Exception {
+        Path dir = Files.createTempDirectory("testkit-agent-test");
+        Path agentJar = dir.resolve("agent.jar");
+        // 只有 manifest 的 agent 包,类从 classpath 加载
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(new Attributes.Name("Premain-Class"), TraceAgent.class.getName());
+        manifest.getMainAttributes().put(new Attributes.Name("Can-Retransform-Classes"), "true");
+        try (OutputStream out = Files.newOutputStream(agentJar)) {
+            new JarOutputStream(out, manifest).close();
+        }
+        String traceClasses = Paths.get(TraceInfo.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        // 不增强业务类,只验证线程池的传递
+        String agentArgs = URLEncoder.encode(Base64.getEncoder().encodeToString("packages=com.testkit.agent.none".getBytes(StandardCharsets.UTF_8)), "UTF-8");
+        List<String> command = Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xbootclasspath/a:" + traceClasses,
+                "-javaagent:" + agentJar + "=" + agentArgs,
+                "-cp", System.getProperty("java.class.path"),
+                ExecutorParentageMain.class.getName());
+        Process process = new ProcessBuilder(command)
+                .directory(new File(System.getProperty("user.dir")))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    results.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+        if (!process.waitFor(2, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+        }
+        assertEquals(0, process.exitValue(), "agent process exit code, results:" + results);
+    }
+
+    @Test
+    void threadPoolExecutor() {
+        assertParentage("threadPoolExecutor");
+    }
+
+    @Test
+    void scheduledThreadPoolExecutor() {
+        assertParentage("scheduledThreadPoolExecutor");
+    }
+
+    @Test
+    void commonPoolSupplyAsync() {
+        assertParentage("commonPoolSupplyAsync");
+    }
+
+    @Test
+    void parallelStream() {
+        assertParentage("parallelStream");
+    }
+
+    @Test
+    void forkJoinPool() {
+        assertParentage("forkJoinPool");
+    }
+
+    @Test
+    void virtualThread() {
+        String result = String.valueOf(results.get("virtualThread"));
+        assumeFalse(result.startsWith("skip"), result);
+        assertParentage("virtualThread");
+    }
+
+    private static void assertParentage(String scenario) {
+        String result = results.get(scenario);
+        assertTrue("ok".equals(result), scenario + ": " + result);
+    }
+}
@@ -0,0 +1,253 @@
+package com.testkit.server;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * spring-cache 统计,按缓存名和 @Cacheable 等注解所在方法分别汇总命中、未命中、写入、删除、未命中时的加载耗时和值大小
+ * 由 MeteredCacheResolver 包装的缓存记录,通过 testkit server 的 cache-stats 方法查询
+ * 值大小按 jackson 序列化后的字节数抽样估算,每 SIZE_SAMPLE 次写入取一次
+ */
+public final class CacheMetricsRegistry {
+
+    private static final int MAX_ENTRIES = 512;
+    static final int SIZE_SAMPLE = 16;
+
+    private static final Map<String, CacheStats> CACHES = new ConcurrentHashMap<>();
+    private static final Map<String, CacheStats> METHODS = new ConcurrentHashMap<>();
+
+    /**
+     * 超过上限后新的缓存名或方法都计入这里
+     */
+    private static final CacheStats OTHER_CACHE = new CacheStats("(other)");
+    private static final CacheStats OTHER_METHOD = new CacheStats("(other)");
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean installed;
+    private static volatile long since = System.currentTimeMillis();
+
+    private CacheMetricsRegistry() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * 已经替换了 CacheAspectSupport 的 CacheResolver 时为 true,否则不会有数据
+     */
+    public static boolean isInstalled() {
+        return installed;
+    }
+
+    static void installed() {
+        installed = true;
+    }
+
+    static CacheStats cache(String name) {
+        return stats(CACHES, OTHER_CACHE, name);
+    }
+
+    static CacheStats method(String name) {
+        return stats(METHODS, OTHER_METHOD, name);
+    }
+
+    private static CacheStats stats(Map<String, CacheStats> map, CacheStats other, String name) {
+        CacheStats stats = map.get(name);
+        if (stats != null) {
+            return stats;
+        }
+        if (map.size() >= MAX_ENTRIES) {
+            return other;
+        }
+        CacheStats created = new CacheStats(name);
+        stats = map.putIfAbsent(name, created);
+        return stats == null ? created : stats;
+    }
+
+    /**
+     * 原地清零,包装缓存持有的引用继续有效
+     */
+    public static void reset() {
+        for (CacheStats stats : CACHES.values()) {
+            stats.reset();
+        }
+        for (CacheStats stats : METHODS.values()) {
+            stats.reset();
+        }
+        OTHER_CACHE.reset();
+        OTHER_METHOD.reset();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * @param by     cache 按缓存名,method 按注解方法,默认 cache
+     * @param sortBy access/hits/misses/hitRatio/load/saved/size,默认 access
+     * @param filter 名称包含该字符串,空表示全部
+     * @param limit  最多返回的条数
+     */
+    public static Map<String, Object> snapshot(String by, String sortBy, String filter, int limit) {
+        boolean byMethod = "method".equals(by);
+        final String sort = sortBy == null || sortBy.trim().isEmpty() ? "access" : sortBy.trim();
+        List<CacheStats> list = new ArrayList<>();
+        for (CacheStats stats : (byMethod ? METHODS : CACHES).values()) {
+            if (stats.access() > 0 && (filter == null || filter.isEmpty() || stats.name.contains(filter))) {
+                list.add(stats);
+            }
+        }
+        CacheStats other = byMethod ? OTHER_METHOD : OTHER_CACHE;
+        if (other.access() > 0) {
+            list.add(other);
+        }
+        final Map<CacheStats, Double> keys = new LinkedHashMap<>();
+        for (CacheStats stats : list) {
+            keys.put(stats, stats.sortKey(sort));
+        }
+        Collections.sort(list, new Comparator<CacheStats>() {
+            @Override
+            public int compare(CacheStats a, CacheStats b) {
+                return Double.compare(keys.get(b), keys.get(a));
+            }
+        });
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("installed", installed);
+        map.put("since", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(since)));
+        map.put("by", byMethod ? "method" : "cache");
+        map.put("entries", list.size());
+        map.put("sortBy", sort);
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < list.size() && i < limit; i++) {
+            rows.add(list.get(i).toMap());
+        }
+        map.put("stats", rows);
+        return map;
+    }
+
+    static final class CacheStats {
+
+        private final String name;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder puts = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        /**
+         * 未命中后执行方法加载的耗时,微秒
+         */
+        private final LatencyHistogram load = new LatencyHistogram();
+        private final LongAdder sizeSamples = new LongAdder();
+        private final LongAdder sizeBytes = new LongAdder();
+        private final LongAccumulator sizeMax = new LongAccumulator(Math::max, 0);
+
+        private CacheStats(String name) {
+            this.name = name;
+        }
+
+        void hit() {
+            hits.increment();
+        }
+
+        void miss() {
+            misses.increment();
+        }
+
+        void put() {
+            puts.increment();
+        }
+
+        void evict() {
+            evictions.increment();
+        }
+
+        void load(long nanos) {
+            load.record(nanos / 1000);
+        }
+
+        void size(long bytes) {
+            sizeSamples.increment();
+            sizeBytes.add(bytes);
+            sizeMax.accumulate(bytes);
+        }
+
+        void reset() {
+            hits.reset();
+            misses.reset();
+            puts.reset();
+            evictions.reset();
+            load.reset();
+            sizeSamples.reset();
+            sizeBytes.reset();
+            sizeMax.reset();
+        }
+
+        private long access() {
+            return hits.sum() + misses.sum();
+        }
+
+        private double hitRatio() {
+            long access = access();
+            return access == 0 ? 0 : hits.sum() * 1d / access;
+        }
+
+        /**
+         * 命中次数乘以平均加载耗时,估算缓存省下的时间,微秒
+         */
+        private double saved() {
+            return hits.sum() * load.getMean();
+        }
+
+        private double sortKey(String sortBy) {
+            switch (sortBy) {
+                case "hits":
+                    return hits.sum();
+                case "misses":
+                    return misses.sum();
+                case "hitRatio":
+                    return hitRatio();
+                case "load":
+                    return load.getSum();
+                case "saved":
+                    return saved();
+                case "size":
+                    long samples = sizeSamples.sum();
+                    return samples == 0 ? 0 : sizeBytes.sum() * 1d / samples;
+                default:
+                    return access();
+            }
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", name);
+            map.put("hits", hits.sum());
+            map.put("misses", misses.sum());
+            map.put("hitRatio", Math.round(hitRatio() * 10000d) / 10000d);
+            map.put("puts", puts.sum());
+            map.put("evictions", evictions.sum());
+            Map<String, Object> loadMs = load.snapshot(1000);
+            loadMs.remove("count");
+            map.put("loadMs", loadMs);
+            map.put("savedMs", Math.round(saved() / 1000d));
+            long samples = sizeSamples.sum();
+            Map<String, Object> size = new LinkedHashMap<>();
+            size.put("samples", samples);
+            size.put("avg", samples == 0 ? 0 : sizeBytes.sum() / samples);
+            size.put("max", sizeMax.get());
+            map.put("valueBytes", size);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.testkit.server;
+
+import com.testkit.trace.TraceInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单条链路内按缓存名汇总的命中、未命中和加载耗时,序列化时输出根节点摘要
+ * _cache  逗号分隔的 缓存名(hit 次数 miss 次数 load 毫秒),按访问次数倒序最多 10 个
+ * 只在 testkit-trace 可用时由 MeteredCacheResolver 调用
+ */
+final class CacheTraceSummary implements TraceInfo.RootSummary {
+
+    private static final String KEY = "spring-cache";
+    private static final int MAX_CACHES = 64;
+    private static final int TOP = 10;
+
+    /**
+     * 缓存名 -> hits, misses, loadNanos
+     */
+    private final Map<String, long[]> caches = new LinkedHashMap<>();
+
+    static void access(String cache, boolean hit) {
+        CacheTraceSummary summary = current();
+        if (summary != null) {
+            summary.record(cache, hit ? 1 : 0, hit ? 0 : 1, 0);
+        }
+    }
+
+    static void load(String cache, long nanos) {
+        CacheTraceSummary summary = current();
+        if (summary != null) {
+            summary.record(cache, 0, 0, nanos);
+        }
+    }
+
+    private static CacheTraceSummary current() {
+        TraceInfo span = TraceInfo.getCurrent();
+        if (span == null) {
+            return null;
+        }
+        TraceInfo.RootSummary summary = span.getSummary(KEY);
+        if (summary == null) {
+            summary = span.putSummaryIfAbsent(KEY, new CacheTraceSummary());
+        }
+        return summary instanceof CacheTraceSummary ? (CacheTraceSummary) summary : null;
+    }
+
+    private synchronized void record(String cache, long hits, long misses, long loadNanos) {
+        long[] stat = caches.get(cache);
+        if (stat == null) {
+            if (caches.size() >= MAX_CACHES) {
+                return;
+            }
+            stat = new long[3];
+            caches.put(cache, stat);
+        }
+        stat[0] += hits;
+        stat[1] += misses;
+        stat[2] += loadNanos;
+    }
+
+    @Override
+    public synchronized void appendDigests(List<TraceInfo.Digest> digests) {
+        if (caches.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, long[]>> list = new ArrayList<>(caches.entrySet());
+        Collections.sort(list, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                return Long.compare(b.getValue()[0] + b.getValue()[1], a.getValue()[0] + a.getValue()[1]);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < list.size() && i < TOP; i++) {
+            long[] stat = list.get(i).getValue();
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(list.get(i).getKey()).append("(hit ").append(stat[0]).append(" miss ").append(stat[1])
+                    .append(" load ").append(Math.round(stat[2] / 1000d) / 1000d).append("ms)");
+        }
+        digests.add(new TraceInfo.Digest("_cache", sb.toString()));
+    }
+}
@@ -0,0 +1,155 @@
+package com.testkit.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 动态编译结果缓存,key 为 sha256(源码 + classpath 指纹)
+ * 同一份源码只编译一次,不同源码可以并发编译,同一 key 的并发请求等待同一次编译
+ * 按 LRU 淘汰,被淘汰的 class 不再被引用后其 DynamicClassLoader 可以被卸载
+ */
+class CompiledClassCache {
+
+    private final Object lock = new Object();
+
+    private final LinkedHashMap<String, CompletableFuture<Class<?>>> cache = new LinkedHashMap<String, CompletableFuture<Class<?>>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Class<?>>> eldest) {
+            if (size() > maxEntries) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private volatile int maxEntries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram compileNanos = new LatencyHistogram();
+
+    public CompiledClassCache(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        synchronized (lock) {
+            this.maxEntries = Math.max(0, maxEntries);
+            // 缩容时立即淘汰
+            while (cache.size() > this.maxEntries) {
+                String eldest = cache.keySet().iterator().next();
+                cache.remove(eldest);
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * @param code        源码
+     * @param fingerprint 编译环境指纹,classpath 或父加载器变化时不命中旧结果
+     * @param compiler    实际编译
+     */
+    public Class<?> get(String code, String fingerprint, Function<String, Class<?>> compiler) {
+        if (maxEntries <= 0) {
+            return compile(code, compiler);
+        }
+        String key = sha256(code, fingerprint);
+        CompletableFuture<Class<?>> future;
+        boolean owner = false;
+        synchronized (lock) {
+            future = cache.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                cache.put(key, future);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            hits.increment();
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            Class<?> type = compile(code, compiler);
+            future.complete(type);
+            return type;
+        } catch (Throwable e) {
+            // 编译失败不缓存,等待中的请求拿到同样的异常
+            future.completeExceptionally(e);
+            synchronized (lock) {
+                cache.remove(key, future);
+            }
+            throw e;
+        }
+    }
+
+    private Class<?> compile(String code, Function<String, Class<?>> compiler) {
+        misses.increment();
+        long begin = System.nanoTime();
+        try {
+            return compiler.apply(code);
+        } catch (Throwable e) {
+            failures.increment();
+            throw e;
+        } finally {
+            compileNanos.record(System.nanoTime() - begin);
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            cache.clear();
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        synchronized (lock) {
+            map.put("size", cache.size());
+        }
+        map.put("maxEntries", maxEntries);
+        map.put("hits", hits.sum());
+        map.put("misses", misses.sum());
+        map.put("failures", failures.sum());
+        map.put("evictions", evictions.sum());
+        map.put("compileMs", compileNanos.snapshot(1_000_000d));
+        return map;
+    }
+
+    private static String sha256(String code, String fingerprint) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(code.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(fingerprint).getBytes(StandardCharsets.UTF_8));
+            byte[] bytes = digest.digest();
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
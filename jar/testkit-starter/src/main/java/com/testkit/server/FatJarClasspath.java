@@ -0,0 +1,582 @@
+package com.testkit.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * spring boot fat-jar 的编译 classpath
+ * <p>
+ * extract 模式: 解压到持久化缓存目录,跨重启复用
+ * - BOOT-INF/classes 按 fat-jar 路径+大小+修改时间 建目录,全部解压成功后才写 .complete 标记,失败删掉半成品目录
+ * - BOOT-INF/lib/*.jar 按 名称+crc+大小 内容寻址,fat-jar 重新打包后没变的依赖不会重复解压
+ * - lib 并行解压,先写临时文件再原子 rename,多个进程同时启动也不会读到半个 jar
+ * - 复用时刷新修改时间作为最近使用时间,每次启动清理超过保留天数没用过的目录、lib 和索引
+ * - 编译时每小时最多刷新一次本进程在用条目的修改时间,长时间运行的进程不会被其他进程清掉正在用的缓存
+ * <p>
+ * nested 模式: 不解压,只建立 包->类名 索引(同样按 fat-jar 指纹缓存到磁盘),
+ * 编译时 class 字节通过应用的类加载器按资源名读取
+ * <p>
+ * 配置(system property):
+ * testkit.compiler.classpath-mode   extract(默认)/nested
+ * testkit.compiler.extract-dir      缓存目录,默认 ~/.spring-testkit/classpath-cache
+ * testkit.compiler.extract-threads  解压并行度
+ * testkit.compiler.extract-max-age-days 缓存保留天数,按最近使用时间,默认 30,<=0 不清理
+ */
+class FatJarClasspath {
+
+    private static final Logger logger = LoggerFactory.getLogger(FatJarClasspath.class);
+
+    private static final String CLASSES_PREFIX = "BOOT-INF/classes/";
+    private static final String LIB_PREFIX = "BOOT-INF/lib/";
+    private static final String COMPLETE_MARKER = ".complete";
+    private static final String LIB_DIR = "lib";
+    private static final String INDEX_SUFFIX = ".index.gz";
+    private static final String TMP_SUFFIX = ".tmp";
+    // 同一进程只清理一次
+    private static final AtomicBoolean pruned = new AtomicBoolean();
+    private static final long REFRESH_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static volatile long lastRefresh;
+
+    public static final String MODE_EXTRACT = "extract";
+    public static final String MODE_NESTED = "nested";
+
+    public static String mode() {
+        String mode = System.getProperty("testkit.compiler.classpath-mode");
+        return MODE_NESTED.equalsIgnoreCase(mode) ? MODE_NESTED : MODE_EXTRACT;
+    }
+
+    static File cacheRoot() {
+        String dir = System.getProperty("testkit.compiler.extract-dir");
+        if (dir != null && !dir.trim().isEmpty()) {
+            return new File(dir.trim());
+        }
+        String home = System.getProperty("user.home");
+        if (home == null || home.isEmpty()) {
+            return new File(System.getProperty("java.io.tmpdir"), "spring-testkit-classpath-cache");
+        }
+        return Paths.get(home, ".spring-testkit", "classpath-cache").toFile();
+    }
+
+    static boolean isFatJar(JarFile jarFile) {
+        return jarFile.getEntry("BOOT-INF/") != null || jarFile.getEntry(CLASSES_PREFIX) != null;
+    }
+
+    /**
+     * fat-jar 指纹,路径+大小+修改时间
+     */
+    static String fingerprint(File jar) {
+        String raw = jar.getAbsolutePath() + "|" + jar.length() + "|" + jar.lastModified();
+        return jar.getName().replace(".jar", "") + "-" + Long.toHexString(hash64(raw));
+    }
+
+    /**
+     * 把 classpath 里的 fat-jar 替换为缓存目录中解压好的 classes 和 lib
+     */
+    public static String extract(String classPath) {
+        File root = cacheRoot();
+        List<String> entries = new ArrayList<>();
+        for (String path : classPath.split(File.pathSeparator)) {
+            if (!path.endsWith(".jar")) {
+                entries.add(path);
+                continue;
+            }
+            File file = new File(path);
+            try (JarFile jarFile = new JarFile(file)) {
+                if (!isFatJar(jarFile)) {
+                    entries.add(file.getAbsolutePath());
+                    continue;
+                }
+                long begin = System.currentTimeMillis();
+                ExtractStats stats = new ExtractStats();
+                File classesDir = extractClasses(jarFile, new File(root, fingerprint(file)), stats);
+                List<String> libs = extractLibs(jarFile, new File(root, LIB_DIR), stats);
+                entries.add(classesDir.getAbsolutePath());
+                entries.addAll(libs);
+                logger.info("Testkit fat-jar classpath ready, jar:" + path + ", libs:" + libs.size() + ", extracted:" + stats.extracted.get() + ", reused:" + stats.reused.get() + ", bytes:" + stats.bytes.get() + ", cost:" + (System.currentTimeMillis() - begin) + "ms");
+            } catch (IOException e) {
+                logger.warn("Failed to process JAR file " + path + ": " + e.getMessage(), e);
+                entries.add(path);
+            }
+        }
+        prune(root);
+        lastRefresh = System.currentTimeMillis();
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * 编译前调用,刷新 extract 返回的 classpath 中缓存条目的最近使用时间
+     *
+     * @return 有缓存条目已经不存在(被其他进程清理)时返回 false,调用方需要重新 extract
+     */
+    public static boolean refresh(String classPath) {
+        long now = System.currentTimeMillis();
+        if (now - lastRefresh < REFRESH_INTERVAL_MILLIS) {
+            return true;
+        }
+        lastRefresh = now;
+        String root = cacheRoot().getAbsolutePath() + File.separator;
+        boolean complete = true;
+        for (String path : classPath.split(File.pathSeparator)) {
+            if (!path.startsWith(root)) {
+                continue;
+            }
+            File file = new File(path);
+            // classes 目录的最近使用时间记在 <指纹>/.complete 上
+            File target = path.endsWith(".jar") ? file : new File(file.getParentFile().getParentFile(), COMPLETE_MARKER);
+            if (target.exists()) {
+                touch(target);
+            } else {
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    private static File extractClasses(JarFile jarFile, File dir, ExtractStats stats) throws IOException {
+        File classesDir = new File(dir, "BOOT-INF/classes");
+        File marker = new File(dir, COMPLETE_MARKER);
+        if (marker.exists()) {
+            touch(marker);
+            stats.reused.incrementAndGet();
+            return classesDir;
+        }
+        classesDir.mkdirs();
+        int failed = 0;
+        Enumeration<JarEntry> jarEntries = jarFile.entries();
+        while (jarEntries.hasMoreElements()) {
+            JarEntry entry = jarEntries.nextElement();
+            String entryName = entry.getName();
+            if (!entryName.startsWith(CLASSES_PREFIX) || entry.isDirectory()) {
+                continue;
+            }
+            File targetFile = new File(dir, entryName);
+            if (!targetFile.getParentFile().exists()) {
+                targetFile.getParentFile().mkdirs();
+            }
+            try (InputStream is = jarFile.getInputStream(entry)) {
+                stats.bytes.addAndGet(Files.copy(is, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING));
+            } catch (IOException e) {
+                logger.warn("Failed to process entry " + entryName + ": " + e.getMessage(), e);
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            // 缺类的目录不能当作完整缓存复用,删掉后回退到原 jar,下次启动重新解压
+            deleteRecursively(dir);
+            throw new IOException(failed + " entries failed to extract");
+        }
+        marker.createNewFile();
+        stats.extracted.incrementAndGet();
+        return classesDir;
+    }
+
+    private static List<String> extractLibs(JarFile jarFile, File libDir, ExtractStats stats) throws IOException {
+        libDir.mkdirs();
+        List<JarEntry> libs = new ArrayList<>();
+        Enumeration<JarEntry> jarEntries = jarFile.entries();
+        while (jarEntries.hasMoreElements()) {
+            JarEntry entry = jarEntries.nextElement();
+            if (entry.getName().startsWith(LIB_PREFIX) && entry.getName().endsWith(".jar")) {
+                libs.add(entry);
+            }
+        }
+        // 保持 fat-jar 中的顺序,与运行时类加载顺序一致
+        String[] paths = new String[libs.size()];
+        ExecutorService pool = newExtractPool(libs.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>(libs.size());
+            for (int i = 0; i < libs.size(); i++) {
+                JarEntry entry = libs.get(i);
+                File target = new File(libDir, libFileName(entry));
+                paths[i] = target.getAbsolutePath();
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        extractLib(jarFile, entry, target, stats);
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to process entry " + libs.get(i).getName() + ": " + e.getCause(), e.getCause());
+                    paths[i] = null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("fat-jar extract interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        List<String> result = new ArrayList<>(paths.length);
+        for (String path : paths) {
+            if (path != null) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    private static void extractLib(JarFile jarFile, JarEntry entry, File target, ExtractStats stats) throws IOException {
+        if (target.exists() && (entry.getSize() < 0 || target.length() == entry.getSize())) {
+            touch(target);
+            stats.reused.incrementAndGet();
+            return;
+        }
+        File tmp = new File(target.getParentFile(), target.getName() + "." + Thread.currentThread().getId() + "." + System.nanoTime() + TMP_SUFFIX);
+        try (InputStream is = jarFile.getInputStream(entry)) {
+            stats.bytes.addAndGet(Files.copy(is, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING));
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // 其他进程已经写好了同一个内容寻址文件
+            Files.deleteIfExists(tmp.toPath());
+            if (!target.exists()) {
+                throw e;
+            }
+        }
+        stats.extracted.incrementAndGet();
+    }
+
+    /**
+     * 内容寻址文件名,central directory 中有 crc 和大小,不用读内容
+     */
+    private static String libFileName(JarEntry entry) {
+        String name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+        return name.substring(0, name.length() - 4) + "-" + Long.toHexString(entry.getCrc()) + "-" + entry.getSize() + ".jar";
+    }
+
+    private static ExecutorService newExtractPool(int tasks) {
+        int threads = Integer.getInteger("testkit.compiler.extract-threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        threads = Math.max(1, Math.min(threads, Math.max(1, tasks)));
+        AtomicLong index = new AtomicLong();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "testkit-classpath-extract-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * nested 模式下去掉 fat-jar 后剩余的普通 classpath
+     */
+    public static String withoutFatJars(String classPath) {
+        List<String> entries = new ArrayList<>();
+        for (String path : classPath.split(File.pathSeparator)) {
+            if (path.endsWith(".jar")) {
+                try (JarFile jarFile = new JarFile(path)) {
+                    if (isFatJar(jarFile)) {
+                        continue;
+                    }
+                } catch (IOException ignore) {
+                }
+            }
+            entries.add(path);
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * nested 模式的类名索引,包名 -> 该包下的类的 binary name
+     */
+    public static Map<String, List<String>> index(String classPath) {
+        Map<String, List<String>> index = new HashMap<>();
+        File root = cacheRoot();
+        for (String path : classPath.split(File.pathSeparator)) {
+            if (!path.endsWith(".jar")) {
+                continue;
+            }
+            File file = new File(path);
+            try (JarFile jarFile = new JarFile(file)) {
+                if (!isFatJar(jarFile)) {
+                    continue;
+                }
+                long begin = System.currentTimeMillis();
+                File indexFile = new File(root, fingerprint(file) + INDEX_SUFFIX);
+                List<String> classNames = readIndex(indexFile);
+                boolean reused = classNames != null;
+                if (reused) {
+                    touch(indexFile);
+                } else {
+                    classNames = scanClassNames(jarFile);
+                    writeIndex(indexFile, classNames);
+                }
+                for (String className : classNames) {
+                    int dot = className.lastIndexOf('.');
+                    String pkg = dot < 0 ? "" : className.substring(0, dot);
+                    index.computeIfAbsent(pkg, k -> new ArrayList<>()).add(className);
+                }
+                logger.info("Testkit fat-jar class index ready, jar:" + path + ", classes:" + classNames.size() + ", reused:" + reused + ", cost:" + (System.currentTimeMillis() - begin) + "ms");
+            } catch (IOException e) {
+                logger.warn("Failed to index JAR file " + path + ": " + e.getMessage(), e);
+            }
+        }
+        prune(root);
+        return index;
+    }
+
+    private static List<String> scanClassNames(JarFile jarFile) throws IOException {
+        Set<String> classNames = new LinkedHashSet<>();
+        Enumeration<JarEntry> jarEntries = jarFile.entries();
+        while (jarEntries.hasMoreElements()) {
+            JarEntry entry = jarEntries.nextElement();
+            String entryName = entry.getName();
+            if (entryName.startsWith(CLASSES_PREFIX)) {
+                addClassName(classNames, entryName.substring(CLASSES_PREFIX.length()));
+            } else if (entryName.startsWith(LIB_PREFIX) && entryName.endsWith(".jar")) {
+                // 嵌套 jar 只能顺序读,lib 通常是 STORED 不需要解压缩
+                try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(jarFile.getInputStream(entry), 64 * 1024))) {
+                    ZipEntry nested;
+                    while ((nested = zis.getNextEntry()) != null) {
+                        addClassName(classNames, nested.getName());
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(classNames);
+    }
+
+    private static void addClassName(Set<String> classNames, String entryName) {
+        if (!entryName.endsWith(".class") || entryName.startsWith("META-INF/") || entryName.endsWith("module-info.class") || entryName.endsWith("package-info.class")) {
+            return;
+        }
+        classNames.add(entryName.substring(0, entryName.length() - 6).replace('/', '.'));
+    }
+
+    private static List<String> readIndex(File indexFile) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        List<String> classNames = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(indexFile)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    classNames.add(line);
+                }
+            }
+            return classNames;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeIndex(File indexFile, List<String> classNames) {
+        indexFile.getParentFile().mkdirs();
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + "." + System.nanoTime() + TMP_SUFFIX);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmp)), StandardCharsets.UTF_8))) {
+            for (String className : classNames) {
+                writer.write(className);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to write class index " + indexFile + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * 清理超过保留天数没有使用过的缓存,本次用到的在复用或解压时已经刷新了修改时间
+     * 临时文件是其他进程中断留下的,超过一天也清掉
+     */
+    static void prune(File root) {
+        long maxAgeDays = Long.getLong("testkit.compiler.extract-max-age-days", 30L);
+        if (maxAgeDays <= 0 || !pruned.compareAndSet(false, true)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expireBefore = now - TimeUnit.DAYS.toMillis(maxAgeDays);
+        long tmpExpireBefore = now - TimeUnit.DAYS.toMillis(1);
+        int removed = 0;
+        try {
+            File[] files = root.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (file.getName().equals(LIB_DIR)) {
+                    File[] libs = file.listFiles();
+                    if (libs == null) {
+                        continue;
+                    }
+                    for (File lib : libs) {
+                        long before = lib.getName().endsWith(TMP_SUFFIX) ? tmpExpireBefore : expireBefore;
+                        if (lib.lastModified() < before && lib.delete()) {
+                            removed++;
+                        }
+                    }
+                } else if (file.isDirectory()) {
+                    // classes 目录以 .complete 的修改时间为最近使用时间,没有标记的是中断的半成品
+                    File marker = new File(file, COMPLETE_MARKER);
+                    long lastUsed = marker.exists() ? marker.lastModified() : file.lastModified();
+                    long before = marker.exists() ? expireBefore : tmpExpireBefore;
+                    if (lastUsed < before) {
+                        deleteRecursively(file);
+                        removed++;
+                    }
+                } else {
+                    long before = file.getName().endsWith(TMP_SUFFIX) ? tmpExpireBefore : expireBefore;
+                    if (file.lastModified() < before && file.delete()) {
+                        removed++;
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            logger.warn("Failed to prune classpath cache " + root + ": " + e.getMessage());
+        }
+        if (removed > 0) {
+            logger.info("Testkit classpath cache pruned, dir:" + root + ", removed:" + removed + ", maxAgeDays:" + maxAgeDays);
+        }
+    }
+
+    private static void touch(File file) {
+        // 只用来记录最近使用时间,失败不影响复用
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static long hash64(String s) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static class ExtractStats {
+        private final AtomicLong extracted = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+    }
+
+    /**
+     * 在标准 classpath 之外,把 fat-jar 内的类按索引暴露给 javac,字节从应用类加载器读取
+     */
+    static class NestedJarFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+        private final Map<String, List<String>> index;
+        private final ClassLoader loader;
+
+        NestedJarFileManager(JavaFileManager fileManager, Map<String, List<String>> index, ClassLoader loader) {
+            super(fileManager);
+            this.index = index;
+            this.loader = loader;
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+            Iterable<JavaFileObject> standard = super.list(location, packageName, kinds, recurse);
+            if (location != StandardLocation.CLASS_PATH || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+                return standard;
+            }
+            List<JavaFileObject> result = new ArrayList<>();
+            for (JavaFileObject fileObject : standard) {
+                result.add(fileObject);
+            }
+            if (recurse) {
+                String prefix = packageName.isEmpty() ? "" : packageName + ".";
+                for (Map.Entry<String, List<String>> entry : index.entrySet()) {
+                    if (entry.getKey().equals(packageName) || entry.getKey().startsWith(prefix)) {
+                        addAll(result, entry.getValue());
+                    }
+                }
+            } else {
+                List<String> classNames = index.get(packageName);
+                if (classNames != null) {
+                    addAll(result, classNames);
+                }
+            }
+            return result;
+        }
+
+        private void addAll(List<JavaFileObject> result, List<String> classNames) {
+            for (String className : classNames) {
+                result.add(new NestedClassFileObject(className, loader));
+            }
+        }
+
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            if (file instanceof NestedClassFileObject) {
+                return ((NestedClassFileObject) file).binaryName;
+            }
+            return super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b) {
+            if (a instanceof NestedClassFileObject || b instanceof NestedClassFileObject) {
+                return a.toUri().equals(b.toUri());
+            }
+            return super.isSameFile(a, b);
+        }
+    }
+
+    private static class NestedClassFileObject extends SimpleJavaFileObject {
+
+        private final String binaryName;
+        private final ClassLoader loader;
+
+        private NestedClassFileObject(String binaryName, ClassLoader loader) {
+            super(URI.create("nested:///" + binaryName.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.binaryName = binaryName;
+            this.loader = loader;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            InputStream is = loader.getResourceAsStream(binaryName.replace('.', '/') + Kind.CLASS.extension);
+            if (is == null) {
+                throw new FileNotFoundException(binaryName);
+            }
+            return is;
+        }
+    }
+}
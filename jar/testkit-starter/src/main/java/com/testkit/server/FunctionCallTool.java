@@ -5,6 +5,7 @@ import org.springframework.context.ApplicationContext;
 
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public class FunctionCallTool implements TestkitTool {
 
@@ -48,19 +49,64 @@ public class FunctionCallTool implements TestkitTool {
         }
         String finalBeanName = beanName != null ? beanName : app.getBeanNamesForType(typeClass)[0];
         Object finalBean = bean;
+        Class<?> finalTypeClass = typeClass;
+        LoadRunner loadRunner = buildLoadRunner(params);
         return new PrepareRet() {
             @Override
             public String confirm() {
                 String beanStr = typeClassStr + "(" + finalBeanName+")"+(original ? (TestkitTool.RED+"[original]"+TestkitTool.RESET) : (TestkitTool.YELLOW+"[proxy]"+TestkitTool.RESET));
-                return MessageFormat.format(TestkitTool.RED+"Can you confirm execute function-call?\n"+TestkitTool.RESET+TestkitTool.GREEN+"Bean: {0}\n"+TestkitTool.RESET+TestkitTool.YELLOW+"Method: {1}\n"+TestkitTool.RESET+"{2}",beanStr,reflexBox.buildMethodStr(),reflexBox.buildArgStr());
+                String confirm = MessageFormat.format(TestkitTool.RED+"Can you confirm execute function-call?\n"+TestkitTool.RESET+TestkitTool.GREEN+"Bean: {0}\n"+TestkitTool.RESET+TestkitTool.YELLOW+"Method: {1}\n"+TestkitTool.RESET+"{2}",beanStr,reflexBox.buildMethodStr(),reflexBox.buildArgStr());
+                return loadRunner == null ? confirm : confirm + "\n" + TestkitTool.RED + "Load: " + loadRunner.describe() + TestkitTool.RESET;
             }
 
             @Override
             public Object execute() throws Exception {
-                return reflexBox.execute(finalBean);
+                if (loadRunner == null) {
+                    return reflexBox.execute(finalBean);
+                }
+                return loadRunner.run(new Callable<Callable<Object>>() {
+                    @Override
+                    public Callable<Object> call() throws Exception {
+                        // 每个压测线程各自反序列化一份参数,避免方法修改入参时线程间互相影响
+                        ReflexBox box = ReflexUtils.parse(finalTypeClass, methodName, methodArgTypesStr, methodArgsStr, source);
+                        return new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                return box.execute(finalBean);
+                            }
+                        };
+                    }
+                });
             }
         };
     }
 
+    /**
+     * 传了 repeat/concurrency/durationSeconds 任一个即进入压测模式,rampUp 单位秒
+     */
+    private static LoadRunner buildLoadRunner(Map<String, String> params) {
+        long repeat = parseLong(params.get("repeat"), 0);
+        int concurrency = (int) parseLong(params.get("concurrency"), 0);
+        long durationSeconds = parseLong(params.get("durationSeconds"), 0);
+        long rampUp = parseLong(params.get("rampUp"), 0);
+        if (repeat <= 1 && concurrency <= 1 && durationSeconds <= 0) {
+            return null;
+        }
+        concurrency = Math.max(1, concurrency);
+        if (repeat <= 0 && durationSeconds <= 0) {
+            repeat = concurrency;
+        }
+        return new LoadRunner(repeat, concurrency, durationSeconds, rampUp);
+    }
 
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new TestkitException("illegal number: " + value);
+        }
+    }
 }
\ No newline at end of file
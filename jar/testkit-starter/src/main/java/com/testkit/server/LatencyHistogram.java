@@ -0,0 +1,139 @@
+package com.testkit.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的对数线性直方图(HdrHistogram 风格)
+ * 小于64的值精确记录,之后每个2的幂区间切成32个桶,相对误差约3%
+ * 记录只做一次数组原子自增,可在业务线程上高频调用
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 6) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        if (value < min.get()) {
+            min.accumulateAndGet(value, Math::min);
+        }
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMin() {
+        long v = min.get();
+        return v == Long.MAX_VALUE ? 0 : v;
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return 对应分位的桶上界,不会超过记录过的最大值
+     */
+    public long percentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100d, Math.max(0d, percentile)) / 100d);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    /**
+     * 常用分位快照
+     *
+     * @param unitDivisor 展示单位换算,比如纳秒转毫秒传1_000_000
+     * @return
+     */
+    public Map<String, Object> snapshot(double unitDivisor) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", getCount());
+        map.put("min", scale(getMin(), unitDivisor));
+        map.put("mean", scale(getMean(), unitDivisor));
+        map.put("p50", scale(percentile(50), unitDivisor));
+        map.put("p90", scale(percentile(90), unitDivisor));
+        map.put("p99", scale(percentile(99), unitDivisor));
+        map.put("p999", scale(percentile(99.9), unitDivisor));
+        map.put("max", scale(getMax(), unitDivisor));
+        return map;
+    }
+
+    private static double scale(double value, double unitDivisor) {
+        if (unitDivisor <= 1) {
+            return value;
+        }
+        return Math.round(value / unitDivisor * 1000d) / 1000d;
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+        int sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long base = (1L << exponent) + ((long) sub << (exponent - SUB_BUCKET_BITS));
+        return base + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,241 @@
+package com.testkit.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * function-call 的压测模式
+ * 在专用线程上重复执行同一个方法,只记录直方图和错误计数,不保留每次调用的返回值,内存占用与调用次数无关
+ * 压测线程不继承 trace 上下文,避免一次压测产生海量链路
+ * 所有压测共享一个线程总数上限,超出时直接拒绝新的压测
+ */
+class LoadRunner {
+
+    public static final int MAX_CONCURRENCY = 256;
+
+    private static final int MAX_ERROR_TYPES = 32;
+
+    private static volatile int maxWorkers = MAX_CONCURRENCY;
+    // 所有压测中还没退出的线程数
+    private static final AtomicInteger activeWorkers = new AtomicInteger();
+    private static final LongAdder rejectedRuns = new LongAdder();
+
+    private final long repeat;
+    private final int concurrency;
+    private final long durationMillis;
+    private final long rampUpMillis;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder success = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Map<String, ErrorStat> errors = new ConcurrentHashMap<>();
+    private final AtomicLong tickets = new AtomicLong();
+    private volatile boolean stopped;
+
+    /**
+     * @param repeat         总调用次数,<=0 表示只受时长限制
+     * @param concurrency    并发线程数
+     * @param durationSeconds 最长执行时间,<=0 表示只受次数限制
+     * @param rampUpSeconds  线程在这段时间内均匀启动
+     */
+    public LoadRunner(long repeat, int concurrency, long durationSeconds, long rampUpSeconds) {
+        if (concurrency < 1 || concurrency > MAX_CONCURRENCY) {
+            throw new TestkitException("concurrency must between 1 and " + MAX_CONCURRENCY);
+        }
+        if (repeat <= 0 && durationSeconds <= 0) {
+            throw new TestkitException("load mode need repeat or durationSeconds");
+        }
+        this.repeat = repeat;
+        this.concurrency = concurrency;
+        this.durationMillis = TimeUnit.SECONDS.toMillis(Math.max(0, durationSeconds));
+        this.rampUpMillis = TimeUnit.SECONDS.toMillis(Math.max(0, rampUpSeconds));
+    }
+
+    /**
+     * @param max 同时存活的压测线程总数上限
+     */
+    public static void configure(int max) {
+        maxWorkers = Math.max(1, max);
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("activeWorkers", activeWorkers.get());
+        map.put("maxWorkers", maxWorkers);
+        map.put("rejectedRuns", rejectedRuns.sum());
+        return map;
+    }
+
+    private static void acquireWorkers(int count) {
+        while (true) {
+            int active = activeWorkers.get();
+            int max = maxWorkers;
+            if (active + count > max) {
+                rejectedRuns.increment();
+                throw new TestkitException("too many load workers, active:" + active + ", request:" + count + ", max:" + max + ", wait for running load tasks or stop them");
+            }
+            if (activeWorkers.compareAndSet(active, active + count)) {
+                return;
+            }
+        }
+    }
+
+    public String describe() {
+        return "repeat:" + (repeat > 0 ? repeat : "unlimited") + ", concurrency:" + concurrency
+                + ", durationSeconds:" + (durationMillis > 0 ? durationMillis / 1000 : "unlimited") + ", rampUpSeconds:" + rampUpMillis / 1000;
+    }
+
+    /**
+     * @param invocationFactory 每个线程调用一次,得到该线程反复执行的调用,线程之间不共享参数对象
+     */
+    public Map<String, Object> run(Callable<Callable<Object>> invocationFactory) throws Exception {
+        List<Callable<Object>> invocations = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            invocations.add(invocationFactory.call());
+        }
+        acquireWorkers(concurrency);
+        long begin = System.currentTimeMillis();
+        long deadline = durationMillis > 0 ? begin + durationMillis : Long.MAX_VALUE;
+        CountDownLatch done = new CountDownLatch(concurrency);
+        List<Thread> workers = new ArrayList<>(concurrency);
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                long startAt = begin + (concurrency == 1 ? 0 : rampUpMillis * i / concurrency);
+                Callable<Object> invocation = invocations.get(i);
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work(invocation, startAt, deadline);
+                        } finally {
+                            // 线程真正退出时才归还额度,取消后等待超时的线程仍然占着
+                            activeWorkers.decrementAndGet();
+                            done.countDown();
+                        }
+                    }
+                }, "testkit-load-" + (i + 1));
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+        } catch (Throwable e) {
+            // 创建线程失败,停掉已经启动的线程,归还没启动的额度
+            stopped = true;
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            activeWorkers.addAndGet(workers.size() - concurrency);
+            throw e;
+        }
+        String stopBy = null;
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            // stop_task 取消任务
+            stopped = true;
+            stopBy = "cancelled";
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            done.await(10, TimeUnit.SECONDS);
+            Thread.currentThread().interrupt();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - begin);
+        if (stopBy == null) {
+            stopBy = repeat > 0 && tickets.get() >= repeat ? "repeat" : "duration";
+        }
+        return summary(elapsed, stopBy);
+    }
+
+    private void work(Callable<Object> invocation, long startAt, long deadline) {
+        try {
+            long wait = startAt - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+        while (!stopped && System.currentTimeMillis() < deadline) {
+            if (repeat > 0 && tickets.incrementAndGet() > repeat) {
+                return;
+            }
+            if (repeat <= 0) {
+                tickets.incrementAndGet();
+            }
+            long begin = System.nanoTime();
+            try {
+                invocation.call();
+                latency.record(System.nanoTime() - begin);
+                success.increment();
+            } catch (Throwable e) {
+                if (stopped) {
+                    // 取消时被中断的调用不计入结果
+                    return;
+                }
+                latency.record(System.nanoTime() - begin);
+                failed.increment();
+                recordError(e);
+                if (e instanceof InterruptedException || Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void recordError(Throwable e) {
+        while (e instanceof InvocationTargetException && ((InvocationTargetException) e).getTargetException() != null) {
+            e = ((InvocationTargetException) e).getTargetException();
+        }
+        String type = e.getClass().getName();
+        ErrorStat stat = errors.get(type);
+        if (stat == null) {
+            if (errors.size() >= MAX_ERROR_TYPES) {
+                type = "other";
+            }
+            stat = errors.computeIfAbsent(type, k -> new ErrorStat());
+        }
+        stat.count.increment();
+        if (stat.sample == null) {
+            stat.sample = String.valueOf(e.getMessage());
+        }
+    }
+
+    private Map<String, Object> summary(long elapsedMillis, String stopBy) {
+        long total = success.sum() + failed.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("mode", "load");
+        map.put("stopBy", stopBy);
+        map.put("invocations", total);
+        map.put("success", success.sum());
+        map.put("errors", failed.sum());
+        map.put("concurrency", concurrency);
+        map.put("elapsedMs", elapsedMillis);
+        map.put("throughput", Math.round(total * 1000_000d / elapsedMillis) / 1000d);
+        map.put("latencyMs", latency.snapshot(1_000_000d));
+        Map<String, Object> breakdown = new LinkedHashMap<>();
+        for (Map.Entry<String, ErrorStat> entry : errors.entrySet()) {
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("count", entry.getValue().count.sum());
+            stat.put("sample", entry.getValue().sample);
+            breakdown.put(entry.getKey(), stat);
+        }
+        map.put("errorBreakdown", breakdown);
+        return map;
+    }
+
+    private static class ErrorStat {
+        private final LongAdder count = new LongAdder();
+        private volatile String sample;
+    }
+}
@@ -0,0 +1,502 @@
+package com.testkit.server;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.interceptor.CacheAspectSupport;
+import org.springframework.cache.interceptor.CacheOperationInvocationContext;
+import org.springframework.cache.interceptor.CacheResolver;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 替换 CacheAspectSupport 默认的 CacheResolver,解析出的缓存包装成 MeteredCache,按缓存名和注解方法记录到 CacheMetricsRegistry
+ * 加载耗时: 同一线程上一次未命中到同一个 key 写入之间的时间,即 CacheAspectSupport 执行目标方法的耗时; sync=true 时直接计时 valueLoader
+ * 异步 retrieve 在 future 完成时统计,只有在调用线程上完成时才计入链路摘要
+ * 在链路里时还会汇总到根节点摘要 _cache,见 CacheTraceSummary
+ * 注解上单独指定了 cacheManager/cacheResolver 的操作不经过默认 CacheResolver,不会统计
+ */
+class MeteredCacheResolver implements CacheResolver {
+
+    private static final int MAX_METHODS = 1024;
+
+    /**
+     * 每个方法按缓存名保留的包装数,自定义 CacheResolver 可能按参数生成缓存名
+     */
+    private static final int MAX_CACHES_PER_METHOD = 64;
+
+    /**
+     * 每个线程同时等待写入的未命中数,对应嵌套的缓存方法调用
+     */
+    private static final int MAX_PENDING = 8;
+
+    /**
+     * testkit-trace 只有开启 trace 时才在 bootclasspath 上
+     */
+    private static final boolean TRACE;
+
+    static {
+        boolean trace = false;
+        try {
+            Class.forName("com.testkit.trace.TraceInfo");
+            trace = true;
+        } catch (Throwable ignore) {
+        }
+        TRACE = trace;
+    }
+
+    /**
+     * 当前线程还没有写入的未命中,用于计算加载耗时
+     */
+    private static final ThreadLocal<PendingLoads> PENDING = new ThreadLocal<PendingLoads>() {
+        @Override
+        protected PendingLoads initialValue() {
+            return new PendingLoads();
+        }
+    };
+
+    private final CacheResolver delegate;
+
+    /**
+     * 注解方法 -> 缓存名 -> 包装缓存
+     * 按名字而不是 Cache 实例,CacheManager 每次返回新的装饰对象(如 TransactionAwareCacheManagerProxy)时不会增长
+     */
+    private final Map<Method, MethodCaches> caches = new ConcurrentHashMap<>();
+
+    /**
+     * 方法数超过上限后共用,按缓存名统计,方法统计记为 (other)
+     */
+    private volatile MethodCaches overflow;
+
+    private MeteredCacheResolver(CacheResolver delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * 包装默认 CacheResolver 并清掉已经缓存的操作元数据,之后的调用都走包装后的缓存
+     */
+    static boolean install(CacheAspectSupport cacheAspectSupport) {
+        try {
+            CacheResolver resolver = cacheAspectSupport.getCacheResolver();
+            if (resolver == null) {
+                return false;
+            }
+            if (!(resolver instanceof MeteredCacheResolver)) {
+                cacheAspectSupport.setCacheResolver(new MeteredCacheResolver(resolver));
+                Field field = CacheAspectSupport.class.getDeclaredField("metadataCache");
+                field.setAccessible(true);
+                ((Map<?, ?>) field.get(cacheAspectSupport)).clear();
+            }
+            CacheMetricsRegistry.installed();
+            return true;
+        } catch (Throwable e) {
+            System.err.println("Testkit cache metrics install error, " + e);
+            return false;
+        }
+    }
+
+    /**
+     * 工具类直接操作缓存时用原始缓存,不计入统计,也不影响按缓存类型的判断
+     */
+    static Cache unwrap(Cache cache) {
+        return cache instanceof MeteredCache ? ((MeteredCache) cache).delegate : cache;
+    }
+
+    @Override
+    public Collection<? extends Cache> resolveCaches(CacheOperationInvocationContext<?> context) {
+        Collection<? extends Cache> resolved = delegate.resolveCaches(context);
+        if (!CacheMetricsRegistry.isEnabled() || resolved == null || resolved.isEmpty()) {
+            return resolved;
+        }
+        MethodCaches metered = methodCaches(context.getMethod());
+        if (resolved.size() == 1) {
+            return Collections.singletonList(metered.metered(resolved.iterator().next()));
+        }
+        List<Cache> list = new ArrayList<>(resolved.size());
+        for (Cache cache : resolved) {
+            list.add(metered.metered(cache));
+        }
+        return list;
+    }
+
+    private MethodCaches methodCaches(Method method) {
+        MethodCaches metered = caches.get(method);
+        if (metered != null) {
+            return metered;
+        }
+        if (caches.size() >= MAX_METHODS) {
+            MethodCaches other = overflow;
+            if (other == null) {
+                other = new MethodCaches(CacheMetricsRegistry.method("(other)"));
+                overflow = other;
+            }
+            return other;
+        }
+        metered = new MethodCaches(CacheMetricsRegistry.method(method.getDeclaringClass().getSimpleName() + "." + method.getName()));
+        MethodCaches exist = caches.putIfAbsent(method, metered);
+        return exist == null ? metered : exist;
+    }
+
+    private static final class MethodCaches {
+        private final CacheMetricsRegistry.CacheStats methodStats;
+        private final Map<String, MeteredCache> byName = new ConcurrentHashMap<>();
+
+        private MethodCaches(CacheMetricsRegistry.CacheStats methodStats) {
+            this.methodStats = methodStats;
+        }
+
+        private Cache metered(Cache cache) {
+            if (cache == null || cache instanceof MeteredCache) {
+                return cache;
+            }
+            String name = cache.getName();
+            MeteredCache wrapper = byName.get(name);
+            if (wrapper != null && wrapper.delegate == cache) {
+                return wrapper;
+            }
+            // 同名的新实例(装饰对象每次新建)替换旧包装,统计对象按名字共用
+            CacheMetricsRegistry.CacheStats cacheStats = wrapper != null ? wrapper.cacheStats : CacheMetricsRegistry.cache(name);
+            MeteredCache created = new MeteredCache(cache, cacheStats, methodStats);
+            if (wrapper != null || byName.size() < MAX_CACHES_PER_METHOD) {
+                byName.put(name, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * 按 lookup 的先后压栈,写入时弹出匹配的未命中以及在它之后压入、没有等到写入的未命中
+     * 用缓存名的统计对象和 key 匹配,同一次调用里 get 和 put 拿到的包装可能不是同一个实例
+     */
+    private static final class PendingLoads {
+        private final CacheMetricsRegistry.CacheStats[] caches = new CacheMetricsRegistry.CacheStats[MAX_PENDING];
+        private final Object[] keys = new Object[MAX_PENDING];
+        private final long[] begins = new long[MAX_PENDING];
+        private int size;
+
+        private int indexOf(CacheMetricsRegistry.CacheStats cache, Object key) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (caches[i] == cache && Objects.equals(keys[i], key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void truncate(int index) {
+            for (int i = index; i < size; i++) {
+                caches[i] = null;
+                keys[i] = null;
+            }
+            size = index;
+        }
+
+        /**
+         * lookup 开始时清掉同一个 key 之前没有写入的未命中
+         */
+        private void discard(CacheMetricsRegistry.CacheStats cache, Object key) {
+            if (size == 0) {
+                return;
+            }
+            int index = indexOf(cache, key);
+            if (index >= 0) {
+                truncate(index);
+            }
+        }
+
+        private void push(CacheMetricsRegistry.CacheStats cache, Object key, long begin) {
+            if (size == MAX_PENDING) {
+                // 丢掉最早的
+                System.arraycopy(caches, 1, caches, 0, size - 1);
+                System.arraycopy(keys, 1, keys, 0, size - 1);
+                System.arraycopy(begins, 1, begins, 0, size - 1);
+                size--;
+            }
+            caches[size] = cache;
+            keys[size] = key;
+            begins[size] = begin;
+            size++;
+        }
+
+        /**
+         * @return 未命中开始的时间,没有匹配时返回 -1
+         */
+        private long pop(CacheMetricsRegistry.CacheStats cache, Object key) {
+            if (size == 0) {
+                return -1;
+            }
+            int index = indexOf(cache, key);
+            if (index < 0) {
+                return -1;
+            }
+            long begin = begins[index];
+            truncate(index);
+            return begin;
+        }
+    }
+
+    static final class MeteredCache implements Cache {
+
+        private final Cache delegate;
+        private final CacheMetricsRegistry.CacheStats cacheStats;
+        private final CacheMetricsRegistry.CacheStats methodStats;
+
+        private MeteredCache(Cache delegate, CacheMetricsRegistry.CacheStats cacheStats, CacheMetricsRegistry.CacheStats methodStats) {
+            this.delegate = delegate;
+            this.cacheStats = cacheStats;
+            this.methodStats = methodStats;
+        }
+
+        @Override
+        public String getName() {
+            return delegate.getName();
+        }
+
+        @Override
+        public Object getNativeCache() {
+            return delegate.getNativeCache();
+        }
+
+        @Override
+        public ValueWrapper get(Object key) {
+            beforeAccess(key);
+            ValueWrapper value = delegate.get(key);
+            access(key, value != null);
+            return value;
+        }
+
+        @Override
+        public <T> T get(Object key, Class<T> type) {
+            beforeAccess(key);
+            T value = delegate.get(key, type);
+            access(key, value != null);
+            return value;
+        }
+
+        @Override
+        public <T> T get(Object key, final Callable<T> valueLoader) {
+            final boolean[] loaded = new boolean[1];
+            T value = delegate.get(key, new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    loaded[0] = true;
+                    long begin = System.nanoTime();
+                    try {
+                        return valueLoader.call();
+                    } finally {
+                        loaded(System.nanoTime() - begin, true);
+                    }
+                }
+            });
+            if (CacheMetricsRegistry.isEnabled()) {
+                if (loaded[0]) {
+                    cacheStats.miss();
+                    methodStats.miss();
+                    put(value);
+                } else {
+                    cacheStats.hit();
+                    methodStats.hit();
+                }
+                trace(!loaded[0]);
+            }
+            return value;
+        }
+
+        /**
+         * 返回 null 表示立即确定未命中,future 的值为 null 表示稍后确定的未命中
+         */
+        @Override
+        public CompletableFuture<?> retrieve(Object key) {
+            CompletableFuture<?> future = delegate.retrieve(key);
+            if (!CacheMetricsRegistry.isEnabled()) {
+                return future;
+            }
+            if (future == null) {
+                hitOrMiss(false);
+                trace(false);
+                return null;
+            }
+            final Thread caller = Thread.currentThread();
+            future.whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object value, Throwable error) {
+                    if (error == null) {
+                        asyncAccess(value != null, caller);
+                    }
+                }
+            });
+            return future;
+        }
+
+        @Override
+        public <T> CompletableFuture<T> retrieve(Object key, final Supplier<CompletableFuture<T>> valueLoader) {
+            if (!CacheMetricsRegistry.isEnabled()) {
+                return delegate.retrieve(key, valueLoader);
+            }
+            final Thread caller = Thread.currentThread();
+            final boolean[] loaded = new boolean[1];
+            CompletableFuture<T> future = delegate.retrieve(key, new Supplier<CompletableFuture<T>>() {
+                @Override
+                public CompletableFuture<T> get() {
+                    loaded[0] = true;
+                    final long begin = System.nanoTime();
+                    return valueLoader.get().whenComplete(new BiConsumer<T, Throwable>() {
+                        @Override
+                        public void accept(T value, Throwable error) {
+                            loaded(System.nanoTime() - begin, Thread.currentThread() == caller);
+                        }
+                    });
+                }
+            });
+            return future.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T value, Throwable error) {
+                    if (error != null) {
+                        return;
+                    }
+                    asyncAccess(!loaded[0], caller);
+                    if (loaded[0]) {
+                        put(value);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void put(Object key, Object value) {
+            delegate.put(key, value);
+            afterPut(key, value);
+        }
+
+        @Override
+        public ValueWrapper putIfAbsent(Object key, Object value) {
+            ValueWrapper exist = delegate.putIfAbsent(key, value);
+            afterPut(key, value);
+            return exist;
+        }
+
+        @Override
+        public void evict(Object key) {
+            delegate.evict(key);
+            evicted();
+        }
+
+        @Override
+        public boolean evictIfPresent(Object key) {
+            boolean evicted = delegate.evictIfPresent(key);
+            if (evicted) {
+                evicted();
+            }
+            return evicted;
+        }
+
+        @Override
+        public void clear() {
+            delegate.clear();
+            evicted();
+        }
+
+        @Override
+        public boolean invalidate() {
+            boolean invalidated = delegate.invalidate();
+            evicted();
+            return invalidated;
+        }
+
+        private void beforeAccess(Object key) {
+            if (CacheMetricsRegistry.isEnabled()) {
+                PENDING.get().discard(cacheStats, key);
+            }
+        }
+
+        private void access(Object key, boolean hit) {
+            if (!CacheMetricsRegistry.isEnabled()) {
+                return;
+            }
+            hitOrMiss(hit);
+            if (!hit) {
+                PENDING.get().push(cacheStats, key, System.nanoTime());
+            }
+            trace(hit);
+        }
+
+        private void asyncAccess(boolean hit, Thread caller) {
+            hitOrMiss(hit);
+            if (Thread.currentThread() == caller) {
+                trace(hit);
+            }
+        }
+
+        private void hitOrMiss(boolean hit) {
+            if (hit) {
+                cacheStats.hit();
+                methodStats.hit();
+            } else {
+                cacheStats.miss();
+                methodStats.miss();
+            }
+        }
+
+        private void afterPut(Object key, Object value) {
+            if (!CacheMetricsRegistry.isEnabled()) {
+                return;
+            }
+            long begin = PENDING.get().pop(cacheStats, key);
+            if (begin != -1) {
+                loaded(System.nanoTime() - begin, true);
+            }
+            put(value);
+        }
+
+        private void put(Object value) {
+            cacheStats.put();
+            methodStats.put();
+            if (value != null && ThreadLocalRandom.current().nextInt(CacheMetricsRegistry.SIZE_SAMPLE) == 0) {
+                try {
+                    long bytes = ReflexUtils.SIMPLE_MAPPER.writeValueAsBytes(value).length;
+                    cacheStats.size(bytes);
+                    methodStats.size(bytes);
+                } catch (Throwable ignore) {
+                }
+            }
+        }
+
+        /**
+         * @param trace 是否在发起调用的线程上,其他线程拿不到这次调用所在的链路
+         */
+        private void loaded(long nanos, boolean trace) {
+            if (!CacheMetricsRegistry.isEnabled()) {
+                return;
+            }
+            cacheStats.load(nanos);
+            methodStats.load(nanos);
+            if (trace && TRACE) {
+                CacheTraceSummary.load(getName(), nanos);
+            }
+        }
+
+        private void evicted() {
+            if (CacheMetricsRegistry.isEnabled()) {
+                cacheStats.evict();
+                methodStats.evict();
+            }
+        }
+
+        private void trace(boolean hit) {
+            if (TRACE) {
+                CacheTraceSummary.access(getName(), hit);
+            }
+        }
+    }
+}
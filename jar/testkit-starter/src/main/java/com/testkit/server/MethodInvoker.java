@@ -0,0 +1,148 @@
+package com.testkit.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * 方法调用器,默认直接 Method.invoke
+ * -Dtestkit.reflex.handle-invoker=true 时模板解析把方法转成 (Object, Object[])Object 形状的 MethodHandle,调用时 invokeExact
+ * 拿不到 handle(目标类所在模块不开放等)时退回 Method.invoke
+ * 异常语义与反射一致: 目标方法抛出的异常包在 InvocationTargetException 里
+ * <p>
+ * jdk17 上实测 handle 加入参校验不比 Method.invoke 快,jdk18+ 的 Method.invoke 本身也走 MethodHandle,所以默认关闭
+ */
+class MethodInvoker {
+
+    private static final boolean HANDLE_ENABLED = "true".equalsIgnoreCase(System.getProperty("testkit.reflex.handle-invoker"));
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private final Method method;
+
+    private final MethodHandle handle;
+
+    private final boolean isStatic;
+
+    private final Class<?> owner;
+
+    /**
+     * 参数校验用的类型,基本类型换成包装类型
+     */
+    private final Class<?>[] checkTypes;
+
+    private final boolean[] primitives;
+
+    private MethodInvoker(Method method, MethodHandle handle) {
+        this.method = method;
+        this.handle = handle;
+        this.isStatic = Modifier.isStatic(method.getModifiers());
+        this.owner = method.getDeclaringClass();
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        this.checkTypes = new Class<?>[parameterTypes.length];
+        this.primitives = new boolean[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            checkTypes[i] = box(parameterTypes[i]);
+            primitives[i] = parameterTypes[i].isPrimitive();
+        }
+    }
+
+    /**
+     * @param method 已经 setAccessible 的方法
+     */
+    public static MethodInvoker of(Method method) {
+        if (!HANDLE_ENABLED) {
+            return new MethodInvoker(method, null);
+        }
+        try {
+            return new MethodInvoker(method, handle(method));
+        } catch (Throwable e) {
+            // 模块访问限制等情况,退回反射
+            return new MethodInvoker(method, null);
+        }
+    }
+
+    private static MethodHandle handle(Method method) throws IllegalAccessException {
+        // 可变参数按普通数组参数处理,与反射一致
+        MethodHandle handle = MethodHandles.lookup().unreflect(method).asFixedArity();
+        if (Modifier.isStatic(method.getModifiers())) {
+            // 与反射一致,静态方法忽略 target
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        return handle.asSpreader(Object[].class, method.getParameterCount()).asType(INVOKER_TYPE);
+    }
+
+    public Object invoke(Object target, Object[] args) throws InvocationTargetException, IllegalAccessException {
+        if (handle == null || !valid(target, args)) {
+            // 参数不合法时交给反射给出原有的错误信息
+            return method.invoke(target, args);
+        }
+        try {
+            return (Object) handle.invokeExact(target, args);
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /**
+     * 与 Method.invoke 一致的入参校验,避免把参数错误当成目标方法抛出的异常
+     */
+    private boolean valid(Object target, Object[] args) {
+        // 先比较精确类型,命中时不走 isInstance
+        if (!isStatic && (target == null || target.getClass() != owner && !owner.isInstance(target))) {
+            return false;
+        }
+        int argCount = args == null ? 0 : args.length;
+        if (argCount != checkTypes.length) {
+            return false;
+        }
+        for (int i = 0; i < argCount; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                if (primitives[i]) {
+                    return false;
+                }
+                continue;
+            }
+            Class<?> type = arg.getClass();
+            if (type != checkTypes[i] && (primitives[i] || !checkTypes[i].isInstance(arg))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        if (type == int.class) {
+            return Integer.class;
+        }
+        if (type == long.class) {
+            return Long.class;
+        }
+        if (type == boolean.class) {
+            return Boolean.class;
+        }
+        if (type == double.class) {
+            return Double.class;
+        }
+        if (type == float.class) {
+            return Float.class;
+        }
+        if (type == char.class) {
+            return Character.class;
+        }
+        if (type == short.class) {
+            return Short.class;
+        }
+        if (type == byte.class) {
+            return Byte.class;
+        }
+        return Void.class;
+    }
+}
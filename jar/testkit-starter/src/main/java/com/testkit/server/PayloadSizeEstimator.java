@@ -0,0 +1,122 @@
+package com.testkit.server;
+
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 估算对象序列化成 json 后的大小(字节)
+ * 集合/数组/map 只采样前 SAMPLE_SIZE 个元素再按总数外推,避免对大返回值做完整遍历
+ * 其他对象用 SIMPLE_MAPPER 写到计数流,不落内存
+ */
+class PayloadSizeEstimator {
+
+    private static final int SAMPLE_SIZE = 32;
+
+    private static final int MAX_DEPTH = 4;
+
+    private static final long UNKNOWN_SIZE = 64;
+
+    public static long estimate(Object value) {
+        return estimate(value, 0);
+    }
+
+    private static long estimate(Object value, int depth) {
+        if (value == null) {
+            return 4;
+        }
+        if (value instanceof CharSequence) {
+            return ((CharSequence) value).length() + 2;
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+            return 16;
+        }
+        if (value instanceof byte[]) {
+            // jackson 以 base64 输出
+            return ((byte[]) value).length * 4L / 3 + 2;
+        }
+        if (depth >= MAX_DEPTH) {
+            return countJson(value);
+        }
+        if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            return sampleIterator(collection.iterator(), collection.size(), depth);
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            int size = map.size();
+            if (size == 0) {
+                return 2;
+            }
+            long sampled = 0;
+            int count = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (count >= SAMPLE_SIZE) {
+                    break;
+                }
+                sampled += estimate(entry.getKey(), depth + 1) + estimate(entry.getValue(), depth + 1) + 2;
+                count++;
+            }
+            return 2 + sampled * size / count;
+        }
+        if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            if (length == 0) {
+                return 2;
+            }
+            if (value.getClass().getComponentType().isPrimitive()) {
+                return 2 + length * 8L;
+            }
+            int sample = Math.min(length, SAMPLE_SIZE);
+            long sampled = 0;
+            for (int i = 0; i < sample; i++) {
+                sampled += estimate(Array.get(value, i), depth + 1) + 1;
+            }
+            return 2 + sampled * length / sample;
+        }
+        return countJson(value);
+    }
+
+    private static long sampleIterator(Iterator<?> iterator, int size, int depth) {
+        if (size == 0) {
+            return 2;
+        }
+        long sampled = 0;
+        int count = 0;
+        while (count < SAMPLE_SIZE && iterator.hasNext()) {
+            sampled += estimate(iterator.next(), depth + 1) + 1;
+            count++;
+        }
+        if (count == 0) {
+            return 2;
+        }
+        return 2 + sampled * size / count;
+    }
+
+    private static long countJson(Object value) {
+        CountingOutputStream out = new CountingOutputStream();
+        try {
+            ReflexUtils.SIMPLE_MAPPER.writeValue(out, value);
+            return out.count;
+        } catch (Throwable e) {
+            return Math.max(out.count, UNKNOWN_SIZE);
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
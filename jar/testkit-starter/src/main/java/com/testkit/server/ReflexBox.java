@@ -12,11 +12,19 @@ class ReflexBox {
 
     private Object[] args;
 
+    private MethodInvoker invoker;
+
     public ReflexBox(Method method, Object[] args) {
         this.method = method;
         this.args = args;
     }
 
+    public ReflexBox(Method method, MethodInvoker invoker, Object[] args) {
+        this.method = method;
+        this.invoker = invoker;
+        this.args = args;
+    }
+
 
     public String buildMethodStr(){
         return method == null ? "" : method.toGenericString();
@@ -87,6 +95,9 @@ class ReflexBox {
 
 
     public Object execute(Object typeInstance) throws InvocationTargetException, IllegalAccessException {
+        if (invoker != null) {
+            return invoker.invoke(typeInstance, args);
+        }
         return method.invoke(typeInstance, args);
     }
 
@@ -0,0 +1,56 @@
+package com.testkit.server;
+
+import com.fasterxml.jackson.databind.JavaType;
+
+import java.lang.reflect.Method;
+
+/**
+ * 解析好的方法模板: 目标方法、参数类型、每个参数的转换器
+ * 同一个 (类, 方法名, 参数类型串) 只解析一次,后续调用直接做参数反序列化
+ */
+class ReflexTemplate {
+
+    private final Method method;
+
+    private final JavaType[] argTypes;
+
+    private final ArgConverter[] converters;
+
+    private final MethodInvoker invoker;
+
+    ReflexTemplate(Method method, JavaType[] argTypes, ArgConverter[] converters) {
+        this.method = method;
+        this.argTypes = argTypes;
+        this.converters = converters;
+        this.invoker = MethodInvoker.of(method);
+    }
+
+    public Object[] convertArgs(Object[] argsJson, String source) {
+        Object[] args = new Object[argTypes.length];
+        for (int i = 0; i < argTypes.length; i++) {
+            try {
+                args[i] = converters[i].convert(argsJson[i], source);
+            } catch (Throwable e) {
+                throw new TestkitException("can not deserialization param,  index:" + i + "\nThe function-call complex type structure may fail, so you can use the flexible-test function instead\n" + e);
+            }
+        }
+        return args;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public MethodInvoker getInvoker() {
+        return invoker;
+    }
+
+    public JavaType[] getArgTypes() {
+        return argTypes;
+    }
+
+    interface ArgConverter {
+
+        Object convert(Object argJson, String source) throws Exception;
+    }
+}
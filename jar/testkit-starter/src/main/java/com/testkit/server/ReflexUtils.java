@@ -35,6 +35,9 @@ import java.security.Principal;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.regex.Matcher;
@@ -81,12 +84,30 @@ public class ReflexUtils {
 
     private static JdkDynamicCompiler compiler = new JdkDynamicCompiler();
 
+    private static final CompiledClassCache compileCache = new CompiledClassCache(128);
+
 
     public static Class compile(String code) {
         if (code == null || code.trim().isEmpty()) {
             return null;
         }
-        return compiler.compile(code);
+        return compileCache.get(code, compiler.getFingerprint(), new Function<String, Class<?>>() {
+            @Override
+            public Class<?> apply(String source) {
+                return compiler.compile(source);
+            }
+        });
+    }
+
+    /**
+     * @param maxEntries 编译缓存条数,0 表示不缓存每次重新编译
+     */
+    public static void configureCompileCache(int maxEntries) {
+        compileCache.setMaxEntries(maxEntries);
+    }
+
+    public static Map<String, Object> compileMetrics() {
+        return compileCache.metrics();
     }
 
 
@@ -184,7 +205,68 @@ public class ReflexUtils {
     }
 
 
+    /**
+     * 方法模板缓存,挂在目标类上: 类被卸载(比如 flexible-test 重新编译出新的类)时模板随之回收,不会串到别的类加载器
+     */
+    private static final ClassValue<ConcurrentHashMap<String, ReflexTemplate>> TEMPLATES = new ClassValue<ConcurrentHashMap<String, ReflexTemplate>>() {
+        @Override
+        protected ConcurrentHashMap<String, ReflexTemplate> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private static final int MAX_TEMPLATES_PER_CLASS = 256;
+
+    private static final LongAdder templateHits = new LongAdder();
+
+    private static final LongAdder templateMisses = new LongAdder();
+
     public static ReflexBox parse(Class typeClass, String methodName, String methodArgTypesStr, String methodArgsStr, String source) throws JsonProcessingException, NoSuchMethodException, ClassNotFoundException {
+        ReflexTemplate template = resolveTemplate(typeClass, methodName, methodArgTypesStr);
+        Object[] methodArgsJson = PARSER_MAPPER.readValue(methodArgsStr, Object[].class);
+        // 根据方法参数类型将 JSON 字符串解析为对应类型的对象
+        return new ReflexBox(template.getMethod(), template.getInvoker(), template.convertArgs(methodArgsJson, source));
+    }
+
+    /**
+     * 批量参数,batchArgsStr 为参数数组的数组,方法模板只解析一次
+     */
+    public static List<ReflexBox> parseBatch(Class typeClass, String methodName, String methodArgTypesStr, String batchArgsStr, String source) throws JsonProcessingException, NoSuchMethodException, ClassNotFoundException {
+        ReflexTemplate template = resolveTemplate(typeClass, methodName, methodArgTypesStr);
+        Object[][] batchArgsJson = PARSER_MAPPER.readValue(batchArgsStr, Object[][].class);
+        List<ReflexBox> boxes = new ArrayList<>(batchArgsJson.length);
+        for (Object[] methodArgsJson : batchArgsJson) {
+            boxes.add(new ReflexBox(template.getMethod(), template.getInvoker(), template.convertArgs(methodArgsJson, source)));
+        }
+        return boxes;
+    }
+
+    public static Map<String, Object> templateMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("hits", templateHits.sum());
+        map.put("misses", templateMisses.sum());
+        return map;
+    }
+
+    private static ReflexTemplate resolveTemplate(Class<?> typeClass, String methodName, String methodArgTypesStr) throws JsonProcessingException, NoSuchMethodException, ClassNotFoundException {
+        ConcurrentHashMap<String, ReflexTemplate> templates = TEMPLATES.get(typeClass);
+        String key = methodName + "#" + methodArgTypesStr;
+        ReflexTemplate template = templates.get(key);
+        if (template != null) {
+            templateHits.increment();
+            return template;
+        }
+        templateMisses.increment();
+        template = buildTemplate(typeClass, methodName, methodArgTypesStr);
+        if (templates.size() >= MAX_TEMPLATES_PER_CLASS) {
+            // 正常用法下不会到这里,防止脚本拼出无穷多的参数类型串
+            templates.clear();
+        }
+        ReflexTemplate exist = templates.putIfAbsent(key, template);
+        return exist == null ? template : exist;
+    }
+
+    private static ReflexTemplate buildTemplate(Class<?> typeClass, String methodName, String methodArgTypesStr) throws JsonProcessingException, NoSuchMethodException, ClassNotFoundException {
         TypeFactory typeFactory = PARSER_MAPPER.getTypeFactory();
 
         List<String> methodArgTypesList = PARSER_MAPPER.readValue(methodArgTypesStr, new TypeReference<List<String>>() {
@@ -204,119 +286,182 @@ public class ReflexUtils {
         Method method = findMethod(typeClass, methodName, methodArgTypes);
         method.setAccessible(true);
 
-        Object[] methodArgsJson = PARSER_MAPPER.readValue(methodArgsStr, Object[].class);
-        // 根据方法参数类型将 JSON 字符串解析为对应类型的对象
-        Object[] methodArgs = new Object[methodArgTypes.length];
+        ReflexTemplate.ArgConverter[] converters = new ReflexTemplate.ArgConverter[methodArgTypes.length];
         for (int i = 0; i < methodArgTypes.length; i++) {
-            try {
-                JavaType argType = methodArgTypes[i];
-                Object argJson = methodArgsJson[i];
-                if (argType.hasRawClass(String.class)) {
+            converters[i] = buildConverter(methodArgTypes[i]);
+        }
+        return new ReflexTemplate(method, methodArgTypes, converters);
+    }
+
+    /**
+     * 按参数类型选定转换逻辑,分支顺序与原来逐个参数判断时一致
+     */
+    private static ReflexTemplate.ArgConverter buildConverter(JavaType argType) {
+        if (argType.hasRawClass(String.class)) {
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) throws Exception {
                     if (argJson == null || argJson instanceof String) {
-                        methodArgs[i] = argJson;
+                        return argJson;
                     } else if (isPrimitiveOrWrapper(argJson)) {
-                        methodArgs[i] = String.valueOf(argJson);
-                    } else {
-                        methodArgs[i] = PARSER_MAPPER.writeValueAsString(argJson);
+                        return String.valueOf(argJson);
                     }
-                } else if (argType.hasRawClass(Integer.class) || argType.isPrimitive() && argType.getRawClass() == int.class) {
-                    methodArgs[i] = argJson == null || argJson.toString().isEmpty() ? (argType.getRawClass() == int.class ? 0 : null) : Integer.valueOf(Integer.parseInt(argJson.toString()));
-                } else if (argType.hasRawClass(Long.class) || argType.isPrimitive() && argType.getRawClass() == long.class) {
-                    methodArgs[i] = argJson == null || argJson.toString().isEmpty() ? (argType.getRawClass() == long.class ? 0L : null) : Long.valueOf(Long.parseLong(argJson.toString()));
-                } else if (argType.hasRawClass(Double.class) || argType.isPrimitive() && argType.getRawClass() == double.class) {
-                    methodArgs[i] = argJson == null || argJson.toString().isEmpty() ? (argType.getRawClass() == double.class ? 0.0d : null) : Double.valueOf(Double.parseDouble(argJson.toString()));
-                } else if (argType.hasRawClass(Boolean.class) || argType.isPrimitive() && argType.getRawClass() == boolean.class) {
-                    methodArgs[i] = argJson == null || argJson.toString().isEmpty() ? (argType.getRawClass() == boolean.class ? false : null) : Boolean.valueOf(Boolean.parseBoolean(argJson.toString()));
-                } else if (argType.hasRawClass(Date.class)) {
+                    return PARSER_MAPPER.writeValueAsString(argJson);
+                }
+            };
+        }
+        if (argType.hasRawClass(Integer.class) || argType.isPrimitive() && argType.getRawClass() == int.class) {
+            boolean primitive = argType.getRawClass() == int.class;
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) {
+                    return argJson == null || argJson.toString().isEmpty() ? (primitive ? 0 : null) : Integer.valueOf(Integer.parseInt(argJson.toString()));
+                }
+            };
+        }
+        if (argType.hasRawClass(Long.class) || argType.isPrimitive() && argType.getRawClass() == long.class) {
+            boolean primitive = argType.getRawClass() == long.class;
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) {
+                    return argJson == null || argJson.toString().isEmpty() ? (primitive ? 0L : null) : Long.valueOf(Long.parseLong(argJson.toString()));
+                }
+            };
+        }
+        if (argType.hasRawClass(Double.class) || argType.isPrimitive() && argType.getRawClass() == double.class) {
+            boolean primitive = argType.getRawClass() == double.class;
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) {
+                    return argJson == null || argJson.toString().isEmpty() ? (primitive ? 0.0d : null) : Double.valueOf(Double.parseDouble(argJson.toString()));
+                }
+            };
+        }
+        if (argType.hasRawClass(Boolean.class) || argType.isPrimitive() && argType.getRawClass() == boolean.class) {
+            boolean primitive = argType.getRawClass() == boolean.class;
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) {
+                    return argJson == null || argJson.toString().isEmpty() ? (primitive ? false : null) : Boolean.valueOf(Boolean.parseBoolean(argJson.toString()));
+                }
+            };
+        }
+        if (argType.hasRawClass(Date.class)) {
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) {
                     //如果是数字就按照lang来转
                     if (argJson != null && argJson.toString().trim().matches("\\d+")) {
-                        methodArgs[i] = new Date(Long.parseLong(argJson.toString()));
-                    } else {
-                        try {
-                            methodArgs[i] = argJson == null || argJson.toString().trim().isEmpty() ? null : dateFormat.parse(argJson.toString().trim());
-                        } catch (ParseException e) {
-                            throw new TestkitException("date need match yyyy-MM-dd HH:mm:ss or ms timestamp");
+                        return new Date(Long.parseLong(argJson.toString()));
+                    }
+                    try {
+                        return argJson == null || argJson.toString().trim().isEmpty() ? null : dateFormat.parse(argJson.toString().trim());
+                    } catch (ParseException e) {
+                        throw new TestkitException("date need match yyyy-MM-dd HH:mm:ss or ms timestamp");
+                    }
+                }
+            };
+        }
+        if (argType.isEnumType()) {
+            Class<? extends Enum> enumType = argType.getRawClass().asSubclass(Enum.class);
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) {
+                    return argJson == null || argJson.toString().isEmpty() ? null : Enum.valueOf(enumType, argJson.toString());
+                }
+            };
+        }
+        if (isHttpServletRequestType(argType)) {
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) {
+                    return toMockRequest(argJson);
+                }
+            };
+        }
+        if (argType.toCanonical().startsWith("java.time.")) {
+            return new ReflexTemplate.ArgConverter() {
+                @Override
+                public Object convert(Object argJson, String source) {
+                    throw new TestkitException("不支持 java.time.* 类型（" + argType.toCanonical() + "），请使用 java.util.Date 替代，或使用 flexible-test 功能");
+                }
+            };
+        }
+        // 其他类型
+        return new ReflexTemplate.ArgConverter() {
+            @Override
+            public Object convert(Object argJson, String source) throws Exception {
+                checkJsonAnnotations(argType.getRawClass(), source);
+                return PARSER_MAPPER.readValue(PARSER_MAPPER.writeValueAsString(argJson), argType);
+            }
+        };
+    }
+
+    private static MockHttpServletRequest toMockRequest(Object argJson) {
+        if (argJson == null || argJson.toString().isEmpty()) {
+            return null;
+        }
+        MockHttpServletRequest mockRequest = new MockHttpServletRequest();
+        try {
+            // 将argJson转换为JSONObject
+            String jsonStr = PARSER_MAPPER.writeValueAsString(argJson);
+            Map<String, Object> requestData = PARSER_MAPPER.readValue(jsonStr, new TypeReference<Map<String, Object>>() {});
+            
+            // 设置method
+            if (requestData.containsKey("method")) {
+                Object methodObj = requestData.get("method");
+                if (methodObj != null) {
+                    mockRequest.setMethod(methodObj.toString());
+                }
+            }
+            
+            // 设置headers
+            if (requestData.containsKey("headers")) {
+                Object headersObj = requestData.get("headers");
+                if (headersObj != null) {
+                    Map<String, Object> headersMap = PARSER_MAPPER.convertValue(headersObj, new TypeReference<Map<String, Object>>() {});
+                    Map<String, String> headers = new HashMap<>();
+                    for (Map.Entry<String, Object> entry : headersMap.entrySet()) {
+                        if (entry.getValue() != null) {
+                            headers.put(entry.getKey(), entry.getValue().toString());
                         }
                     }
-                } else if (argType.isEnumType()) {
-                    methodArgs[i] = argJson == null || argJson.toString().isEmpty() ? null : Enum.valueOf(argType.getRawClass().asSubclass(Enum.class), argJson.toString());
-                } else if (isHttpServletRequestType(argType)) {
-                    methodArgs[i] = null;
-                    if(argJson!=null && !argJson.toString().isEmpty()){
-                        MockHttpServletRequest mockRequest = new MockHttpServletRequest();
-                        try {
-                            // 将argJson转换为JSONObject
-                            String jsonStr = PARSER_MAPPER.writeValueAsString(argJson);
-                            Map<String, Object> requestData = PARSER_MAPPER.readValue(jsonStr, new TypeReference<Map<String, Object>>() {});
-                            
-                            // 设置method
-                            if (requestData.containsKey("method")) {
-                                Object methodObj = requestData.get("method");
-                                if (methodObj != null) {
-                                    mockRequest.setMethod(methodObj.toString());
-                                }
-                            }
-                            
-                            // 设置headers
-                            if (requestData.containsKey("headers")) {
-                                Object headersObj = requestData.get("headers");
-                                if (headersObj != null) {
-                                    Map<String, Object> headersMap = PARSER_MAPPER.convertValue(headersObj, new TypeReference<Map<String, Object>>() {});
-                                    Map<String, String> headers = new HashMap<>();
-                                    for (Map.Entry<String, Object> entry : headersMap.entrySet()) {
-                                        if (entry.getValue() != null) {
-                                            headers.put(entry.getKey(), entry.getValue().toString());
-                                        }
-                                    }
-                                    mockRequest.setHeaders(headers);
-                                }
-                            }
-                            
-                            // 设置parameters，将k-v转换为k-array
-                            if (requestData.containsKey("parameters")) {
-                                Object paramsObj = requestData.get("parameters");
-                                if (paramsObj != null) {
-                                    Map<String, Object> paramsMap = PARSER_MAPPER.convertValue(paramsObj, new TypeReference<Map<String, Object>>() {});
-                                    Map<String, String[]> parameters = new HashMap<>();
-                                    for (Map.Entry<String, Object> entry : paramsMap.entrySet()) {
-                                        if (entry.getValue() != null) {
-                                            // 单个值转为单元素数组
-                                            String[] values;
-                                            if (entry.getValue() instanceof List) {
-                                                // 如果是数组，转换为String[]
-                                                List<?> list = (List<?>) entry.getValue();
-                                                values = new String[list.size()];
-                                                for (int j = 0; j < list.size(); j++) {
-                                                    values[j] = list.get(j) != null ? list.get(j).toString() : null;
-                                                }
-                                            } else {
-                                                // 单个值转为单元素数组
-                                                values = new String[]{entry.getValue().toString()};
-                                            }
-                                            parameters.put(entry.getKey(), values);
-                                        }
-                                    }
-                                    mockRequest.setParameters(parameters);
+                    mockRequest.setHeaders(headers);
+                }
+            }
+            
+            // 设置parameters，将k-v转换为k-array
+            if (requestData.containsKey("parameters")) {
+                Object paramsObj = requestData.get("parameters");
+                if (paramsObj != null) {
+                    Map<String, Object> paramsMap = PARSER_MAPPER.convertValue(paramsObj, new TypeReference<Map<String, Object>>() {});
+                    Map<String, String[]> parameters = new HashMap<>();
+                    for (Map.Entry<String, Object> entry : paramsMap.entrySet()) {
+                        if (entry.getValue() != null) {
+                            // 单个值转为单元素数组
+                            String[] values;
+                            if (entry.getValue() instanceof List) {
+                                // 如果是数组，转换为String[]
+                                List<?> list = (List<?>) entry.getValue();
+                                values = new String[list.size()];
+                                for (int j = 0; j < list.size(); j++) {
+                                    values[j] = list.get(j) != null ? list.get(j).toString() : null;
                                 }
+                            } else {
+                                // 单个值转为单元素数组
+                                values = new String[]{entry.getValue().toString()};
                             }
-                            
-                            methodArgs[i] = mockRequest;
-                        } catch (Exception e) {
-                            throw new TestkitException("Failed to convert JSON to MockHttpServletRequest: " + e.getMessage());
+                            parameters.put(entry.getKey(), values);
                         }
                     }
-                } else if (argType.toCanonical().startsWith("java.time.")) {
-                    throw new TestkitException("不支持 java.time.* 类型（" + argType.toCanonical() + "），请使用 java.util.Date 替代，或使用 flexible-test 功能");
-                } else {
-                    // 其他类型
-                    checkJsonAnnotations(argType.getRawClass(), source);
-                    methodArgs[i] = PARSER_MAPPER.readValue(PARSER_MAPPER.writeValueAsString(argJson), argType);
+                    mockRequest.setParameters(parameters);
                 }
-            } catch (Throwable e) {
-                throw new TestkitException("can not deserialization param,  index:" + i + "\nThe function-call complex type structure may fail, so you can use the flexible-test function instead\n" + e);
             }
+            
+            return mockRequest;
+        } catch (Exception e) {
+            throw new TestkitException("Failed to convert JSON to MockHttpServletRequest: " + e.getMessage());
         }
-        return new ReflexBox(method, methodArgs);
     }
 
     private static final Set<String> JACKSON_ANNOTATION_NAMES = new HashSet<>(Arrays.asList(
@@ -333,6 +478,31 @@ public class ReflexUtils {
             "com.fasterxml.jackson.annotation.JsonSubTypes"
     ));
 
+    /**
+     * 字段注解检查结果按类缓存
+     */
+    private static final ClassValue<Optional<String>> JSON_ANNOTATION_ISSUES = new ClassValue<Optional<String>>() {
+        @Override
+        protected Optional<String> computeValue(Class<?> clazz) {
+            Class<?> current = clazz;
+            while (current != null && current != Object.class) {
+                for (Field field : current.getDeclaredFields()) {
+                    for (Annotation ann : field.getAnnotations()) {
+                        if (JACKSON_ANNOTATION_NAMES.contains(ann.annotationType().getName())) {
+                            return Optional.of("POJO " + clazz.getSimpleName() + " 的字段 " + field.getName()
+                                    + (current != clazz ? "（继承自 " + current.getSimpleName() + "）" : "")
+                                    + " 存在 " + ann.annotationType().getSimpleName() + " 注解，"
+                                    + "Testkit 使用字段名直接反序列化（已禁用 Jackson 注解），可能导致字段映射不一致。"
+                                    + "请使用 flexible-test 功能替代，或确认字段名与 JSON key 一致");
+                        }
+                    }
+                }
+                current = current.getSuperclass();
+            }
+            return Optional.empty();
+        }
+    };
+
     private static void checkJsonAnnotations(Class<?> clazz, String source) {
         if ("plugin".equals(source)) {
             return;
@@ -340,22 +510,9 @@ public class ReflexUtils {
         if (clazz == null || clazz.isPrimitive() || clazz.getName().startsWith("java.")) {
             return;
         }
-        Class<?> current = clazz;
-        while (current != null && current != Object.class) {
-            for (Field field : current.getDeclaredFields()) {
-                for (Annotation ann : field.getAnnotations()) {
-                    if (JACKSON_ANNOTATION_NAMES.contains(ann.annotationType().getName())) {
-                        throw new TestkitException(
-                                "POJO " + clazz.getSimpleName() + " 的字段 " + field.getName()
-                                        + (current != clazz ? "（继承自 " + current.getSimpleName() + "）" : "")
-                                        + " 存在 " + ann.annotationType().getSimpleName() + " 注解，"
-                                        + "Testkit 使用字段名直接反序列化（已禁用 Jackson 注解），可能导致字段映射不一致。"
-                                        + "请使用 flexible-test 功能替代，或确认字段名与 JSON key 一致"
-                        );
-                    }
-                }
-            }
-            current = current.getSuperclass();
+        Optional<String> issue = JSON_ANNOTATION_ISSUES.get(clazz);
+        if (issue.isPresent()) {
+            throw new TestkitException(issue.get());
         }
     }
 
@@ -584,23 +741,34 @@ public class ReflexUtils {
         private final ClassLoader parentClassLoader;
 
         /**
-         * compile source classpath
+         * compile source classpath, 首次编译时构建
          */
-        private final String classpath;
+        private volatile String classpath;
+
+        /**
+         * nested 模式下 fat-jar 内的类索引
+         */
+        private volatile Map<String, List<String>> nestedIndex;
 
         /**
          * code encoding
          */
         private String encoding = "UTF-8";
 
+        /**
+         * 编译环境指纹,用于编译缓存的 key
+         */
+        private final String fingerprint;
+
         public JdkDynamicCompiler() {
             compiler = ToolProvider.getSystemJavaCompiler();
             this.parentClassLoader = this.getClass().getClassLoader();
             //这个parentClassLoader是spring的类加载器springboot的LaunchedClassLoader
 
             //在fat-jar启动时这里仅有fat-jar的地址，所以我不能使用tmpPath，我需要解析出fat-jar中的地址拼接起来
-            this.classpath = buildClassPath();
-            logger.info("Testkit JdkDynamicCompiler init," + this.parentClassLoader.getClass() + ", classpath:" + this.classpath);
+            String rawClasspath = String.valueOf(System.getProperty("java.class.path"));
+            this.fingerprint = Integer.toHexString(System.identityHashCode(this.parentClassLoader)) + ":" + rawClasspath.length() + ":" + rawClasspath.hashCode();
+            logger.info("Testkit JdkDynamicCompiler init," + this.parentClassLoader.getClass() + ", classpath-mode:" + FatJarClasspath.mode());
         }
 
 
@@ -617,117 +785,31 @@ public class ReflexUtils {
 
 
 
-        private static String buildClassPath() {
+        /**
+         * fat-jar 会解压到持久化缓存目录(或 nested 模式下只建索引),耗时放到第一次编译时
+         */
+        private String buildClassPath() {
             String tmpPath = System.getProperty("java.class.path");
             if(!isFatJarClasspath(tmpPath)){
                 return tmpPath;
             }
-
-            List<String> entries = new ArrayList<>();
-            // 创建一个共享的临时根目录
-            File sharedTempDir;
-            try {
-                sharedTempDir = Files.createTempDirectory("fat-jar-extract").toFile();
-                sharedTempDir.deleteOnExit(); // 应用退出时删除
-            } catch (IOException e) {
-                logger.warn("Failed to create shared temp directory: " + e.getMessage(), e);
-                return tmpPath; // 如果创建失败，返回原始类路径
+            if (FatJarClasspath.MODE_NESTED.equals(FatJarClasspath.mode())) {
+                this.nestedIndex = FatJarClasspath.index(tmpPath);
+                return FatJarClasspath.withoutFatJars(tmpPath);
             }
-
-            // 分割类路径
-            String[] paths = tmpPath.split(File.pathSeparator);
-
-            for (String path : paths) {
-                if (!path.endsWith(".jar")) {
-                    entries.add(path); // 保留非JAR路径
-                    continue;
-                }
-
-                File file = new File(path);
-                JarFile jarFile = null;
-                try {
-                    jarFile = new JarFile(file);
-
-                    // 检查是否是Spring Boot fat-jar
-                    if (jarFile.getEntry("BOOT-INF/") == null) {
-                        entries.add(file.getAbsolutePath());
-                        continue;
-                    }
-
-                    // 为当前JAR创建特定目录
-                    String jarName = file.getName().replace(".jar", "");
-                    File jarSpecificDir = new File(sharedTempDir, jarName);
-                    jarSpecificDir.mkdir();
-
-                    // 创建classes目录结构
-                    File bootInfClassesDir = new File(jarSpecificDir, "BOOT-INF/classes");
-                    bootInfClassesDir.mkdirs();
-
-                    // 创建lib目录用于存放解压的库JAR
-                    File libDir = new File(jarSpecificDir, "lib");
-                    libDir.mkdir();
-
-                    // 处理JAR条目
-                    Enumeration<JarEntry> jarEntries = jarFile.entries();
-                    while (jarEntries.hasMoreElements()) {
-                        JarEntry entry = jarEntries.nextElement();
-                        String entryName = entry.getName();
-
-                        try {
-                            if (entryName.startsWith("BOOT-INF/classes/") && !entry.isDirectory()) {
-                                // 处理classes文件
-                                File targetFile = new File(jarSpecificDir, entryName);
-                                if (!targetFile.getParentFile().exists()) {
-                                    targetFile.getParentFile().mkdirs();
-                                }
-
-                                try (InputStream is = jarFile.getInputStream(entry)) {
-                                    Files.copy(is, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                                }
-                            } else if (entryName.startsWith("BOOT-INF/lib/") && entryName.endsWith(".jar")) {
-                                // 处理lib JAR文件
-                                String libJarName = entryName.substring(entryName.lastIndexOf('/') + 1);
-                                File tempFile = new File(libDir, libJarName);
-
-                                try (InputStream is = jarFile.getInputStream(entry)) {
-                                    Files.copy(is, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                                }
-                                entries.add(tempFile.getAbsolutePath());
-                            }
-                        } catch (IOException e) {
-                            logger.warn("Failed to process entry " + entryName + ": " + e.getMessage(), e);
-                        }
-                    }
-
-                    // 添加classes目录到类路径
-                    entries.add(bootInfClassesDir.getAbsolutePath());
-
-                } catch (IOException e) {
-                    logger.warn("Failed to process JAR file " + path + ": " + e.getMessage(), e);
-                    entries.add(path); // 如果处理失败，添加原始路径
-                } finally {
-                    if (jarFile != null) {
-                        try {
-                            jarFile.close();
-                        } catch (IOException e) {
-                            // 忽略关闭错误
-                        }
-                    }
-                }
-            }
-
-            return String.join(File.pathSeparator, entries);
+            return FatJarClasspath.extract(tmpPath);
         }
 
         /**
          * compile code to class
          * Each compilation will be a new classLoader,
          * so a piece of code can be repeated compilation of multiple calls to get more than one class of the same name (loader is not the same)
+         * javac task 之间互不共享状态,这里不加锁,重复编译由 CompiledClassCache 去重
          *
          * @param code
          * @return
          */
-        public synchronized Class<?> compile(String code) throws CompileException {
+        public Class<?> compile(String code) throws CompileException {
             if (null == compiler) {
                 throw new CompileException("can not find jdk, please check");
             }
@@ -762,7 +844,9 @@ public class ReflexUtils {
         private Class<?> doCompile(String className, String javaCode) throws CompileException {
             DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
             StandardJavaFileManager standardJavaFileManager = compiler.getStandardFileManager(diagnostics, null, null);
-            MemoryFileManager fileManager = new MemoryFileManager(standardJavaFileManager);
+            String classpath = getClasspath();
+            Map<String, List<String>> nestedIndex = this.nestedIndex;
+            MemoryFileManager fileManager = new MemoryFileManager(nestedIndex == null ? standardJavaFileManager : new FatJarClasspath.NestedJarFileManager(standardJavaFileManager, nestedIndex, this.parentClassLoader));
             StringJavaFileObject file = new StringJavaFileObject(className, javaCode);
             DynamicClassLoader dynamicClassLoader = null;
             try {
@@ -772,7 +856,7 @@ public class ReflexUtils {
                 options.add("-encoding");
                 options.add(encoding);
                 options.add("-classpath");
-                options.add(this.classpath);
+                options.add(classpath);
                 JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, files);
                 if (!task.call()) {
                     throw new CompileException("Compilation failed. class: " + className + ", detail:" + detailErrorDiagnostics(diagnostics, file));
@@ -841,9 +925,35 @@ public class ReflexUtils {
         }
 
         public String getClasspath() {
+            String classpath = this.classpath;
+            if (classpath == null) {
+                synchronized (this) {
+                    classpath = this.classpath;
+                    if (classpath == null) {
+                        long begin = System.currentTimeMillis();
+                        classpath = buildClassPath();
+                        this.classpath = classpath;
+                        logger.info("Testkit JdkDynamicCompiler classpath ready, cost:" + (System.currentTimeMillis() - begin) + "ms, classpath:" + classpath);
+                    }
+                }
+            }
+            if (!FatJarClasspath.refresh(classpath)) {
+                // 解压缓存被其他进程清理了,重新解压
+                logger.warn("Testkit fat-jar classpath cache missing, extract again");
+                synchronized (this) {
+                    if (this.classpath == classpath) {
+                        this.classpath = null;
+                    }
+                }
+                return getClasspath();
+            }
             return classpath;
         }
 
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
         public ClassLoader getParentClassLoader() {
             return parentClassLoader;
         }
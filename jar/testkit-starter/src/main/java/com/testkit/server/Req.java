@@ -12,6 +12,11 @@ class Req {
 
     private boolean trace = true;
 
+    /**
+     * profile 里 link 的格式,text 或 binary(TraceCodec 编码),默认 text
+     */
+    private String traceFormat;
+
     private Map<String, String> params;
 
     private String operator = "testkit";
@@ -50,6 +55,14 @@ class Req {
         this.trace = trace;
     }
 
+    public String getTraceFormat() {
+        return traceFormat;
+    }
+
+    public void setTraceFormat(String traceFormat) {
+        this.traceFormat = traceFormat;
+    }
+
     public boolean isPrepare() {
         return prepare;
     }
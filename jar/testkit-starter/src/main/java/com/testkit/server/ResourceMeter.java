@@ -0,0 +1,196 @@
+package com.testkit.server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 当前线程的资源计量: cpu 时间、分配字节数、阻塞/等待次数、期间发生的 gc 停顿,用于单次请求
+ * 阻塞/等待时长需要 jvm 级的线程争用监控,默认不开,testkit.profile.contention-monitoring=true 时才输出
+ * 放在 starter 里,不依赖 trace agent; span 级的 cpu 和分配见 testkit-trace 里的 ResourceMeter
+ * begin/end 必须在同一个线程调用,跨线程时 end 只返回空结果
+ * 只统计调用线程本身,被测方法丢到其他线程的工作不计入
+ * gc 数据是进程级的,表示与这次调用重叠的 gc,不代表是这次调用引起的
+ */
+final class ResourceMeter {
+
+    private static final ThreadMXBean THREADS;
+
+    private static final com.sun.management.ThreadMXBean EXT_THREADS;
+
+    private static final List<GarbageCollectorMXBean> PAUSE_COLLECTORS;
+
+    // 用户开启争用监控后才输出时长,其他组件打开的不算
+    private static volatile boolean contentionTimes;
+
+    static {
+        ThreadMXBean threads = null;
+        com.sun.management.ThreadMXBean extThreads = null;
+        List<GarbageCollectorMXBean> collectors = new ArrayList<>();
+        try {
+            threads = ManagementFactory.getThreadMXBean();
+            if (threads.isCurrentThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+                threads.setThreadCpuTimeEnabled(true);
+            }
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                extThreads = (com.sun.management.ThreadMXBean) threads;
+                if (extThreads.isThreadAllocatedMemorySupported() && !extThreads.isThreadAllocatedMemoryEnabled()) {
+                    extThreads.setThreadAllocatedMemoryEnabled(true);
+                }
+            }
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                String name = collector.getName();
+                // 并发收集器的时间是后台周期,不是停顿
+                if (name.contains("Concurrent") || name.contains("Cycles")) {
+                    continue;
+                }
+                collectors.add(collector);
+            }
+        } catch (Throwable e) {
+            System.err.println("Testkit resource meter init error, " + e);
+        }
+        THREADS = threads;
+        EXT_THREADS = extThreads;
+        PAUSE_COLLECTORS = Collections.unmodifiableList(collectors);
+    }
+
+    private final long threadId;
+    private final long cpuNanos;
+    private final long userNanos;
+    private final long allocBytes;
+    private long blockedCount = -1;
+    private long blockedMillis = -1;
+    private long waitedCount = -1;
+    private long waitedMillis = -1;
+    private long gcCount = -1;
+    private long gcMillis = -1;
+
+    private ResourceMeter() {
+        this.threadId = Thread.currentThread().getId();
+        this.cpuNanos = cpuNanos();
+        this.userNanos = userNanos();
+        this.allocBytes = allocBytes(threadId);
+        ThreadInfo info = threadInfo(threadId);
+        if (info != null) {
+            blockedCount = info.getBlockedCount();
+            waitedCount = info.getWaitedCount();
+            if (contentionTimes) {
+                blockedMillis = info.getBlockedTime();
+                waitedMillis = info.getWaitedTime();
+            }
+        }
+        long[] gc = gc();
+        gcCount = gc[0];
+        gcMillis = gc[1];
+    }
+
+    static ResourceMeter begin() {
+        return new ResourceMeter();
+    }
+
+    /**
+     * 开启线程争用监控后才有阻塞/等待时长,否则只有次数
+     */
+    static void enableContentionMonitoring() {
+        try {
+            if (THREADS != null && THREADS.isThreadContentionMonitoringSupported() && !THREADS.isThreadContentionMonitoringEnabled()) {
+                THREADS.setThreadContentionMonitoringEnabled(true);
+            }
+            contentionTimes = THREADS != null && THREADS.isThreadContentionMonitoringEnabled();
+        } catch (Throwable e) {
+            System.err.println("Testkit enable thread contention monitoring error, " + e);
+        }
+    }
+
+    /**
+     * @return 各项增量,不支持的项不输出
+     */
+    Map<String, String> end() {
+        Map<String, String> map = new LinkedHashMap<>();
+        if (Thread.currentThread().getId() != threadId) {
+            return map;
+        }
+        if (cpuNanos >= 0) {
+            map.put("cpu_ms", formatMillis(cpuNanos() - cpuNanos));
+        }
+        if (userNanos >= 0) {
+            map.put("user_cpu_ms", formatMillis(userNanos() - userNanos));
+        }
+        if (allocBytes >= 0) {
+            map.put("alloc_bytes", String.valueOf(allocBytes(threadId) - allocBytes));
+        }
+        ThreadInfo info = threadInfo(threadId);
+        if (info != null && blockedCount >= 0) {
+            map.put("blocked_count", String.valueOf(info.getBlockedCount() - blockedCount));
+            if (blockedMillis >= 0 && info.getBlockedTime() >= 0) {
+                map.put("blocked_ms", String.valueOf(info.getBlockedTime() - blockedMillis));
+            }
+            map.put("waited_count", String.valueOf(info.getWaitedCount() - waitedCount));
+            if (waitedMillis >= 0 && info.getWaitedTime() >= 0) {
+                map.put("waited_ms", String.valueOf(info.getWaitedTime() - waitedMillis));
+            }
+        }
+        if (gcCount >= 0) {
+            long[] gc = gc();
+            map.put("gc_count", String.valueOf(gc[0] - gcCount));
+            map.put("gc_ms", String.valueOf(gc[1] - gcMillis));
+        }
+        return map;
+    }
+
+    private static long cpuNanos() {
+        try {
+            return THREADS == null || !THREADS.isCurrentThreadCpuTimeSupported() ? -1 : THREADS.getCurrentThreadCpuTime();
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static long userNanos() {
+        try {
+            return THREADS == null || !THREADS.isCurrentThreadCpuTimeSupported() ? -1 : THREADS.getCurrentThreadUserTime();
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static long allocBytes(long threadId) {
+        try {
+            return EXT_THREADS == null || !EXT_THREADS.isThreadAllocatedMemorySupported() ? -1 : EXT_THREADS.getThreadAllocatedBytes(threadId);
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static ThreadInfo threadInfo(long threadId) {
+        try {
+            // maxDepth 0 不抓栈
+            return THREADS == null ? null : THREADS.getThreadInfo(threadId, 0);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static long[] gc() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : PAUSE_COLLECTORS) {
+            try {
+                count += Math.max(0, collector.getCollectionCount());
+                millis += Math.max(0, collector.getCollectionTime());
+            } catch (Throwable e) {
+            }
+        }
+        return new long[]{count, millis};
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.valueOf(Math.round(nanos / 1000d) / 1000d);
+    }
+}
@@ -0,0 +1,243 @@
+package com.testkit.server;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.cache.support.NullValue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * spring-cache 按缓存类型批量读取和删除,一批 key 尽量一次往返
+ * RedisCache: 从 RedisCacheWriter 取连接,mGet/del 多 key 命令,每 REDIS_CHUNK 个 key 一条
+ * CaffeineCache: getAllPresent/invalidateAll
+ * ConcurrentMapCache: 直接操作底层 map
+ * 其他缓存或者反射失败时逐个 get/evictIfPresent
+ * redis 和 caffeine 都是可选依赖,全部通过反射调用
+ */
+class SpringCacheStore {
+
+    static final String REDIS = "redis";
+    static final String CAFFEINE = "caffeine";
+    static final String CONCURRENT_MAP = "concurrent-map";
+    static final String GENERIC = "generic";
+
+    private static final int REDIS_CHUNK = 500;
+
+    private Class<?> redisCacheCls;
+    private Method redisCreateCacheKeyMethod;
+    private Method redisSerializeCacheKeyMethod;
+    private Method redisDeserializeCacheValueMethod;
+    private Method redisGetConnectionMethod;
+    private Method redisMGetMethod;
+    private Method redisDelMethod;
+    private Method redisCloseMethod;
+
+    private Class<?> caffeineCacheCls;
+    private Method caffeineGetAllPresentMethod;
+    private Method caffeineInvalidateAllMethod;
+
+    SpringCacheStore() {
+        try {
+            redisCacheCls = Class.forName("org.springframework.data.redis.cache.RedisCache");
+            redisCreateCacheKeyMethod = redisCacheCls.getDeclaredMethod("createCacheKey", Object.class);
+            redisCreateCacheKeyMethod.setAccessible(true);
+        } catch (Throwable ignore) {
+            redisCacheCls = null;
+        }
+        // 批量命令需要的方法取不到时 redis 退化为逐个操作
+        try {
+            if (redisCacheCls != null) {
+                redisSerializeCacheKeyMethod = redisCacheCls.getDeclaredMethod("serializeCacheKey", String.class);
+                redisSerializeCacheKeyMethod.setAccessible(true);
+                redisDeserializeCacheValueMethod = redisCacheCls.getDeclaredMethod("deserializeCacheValue", byte[].class);
+                redisDeserializeCacheValueMethod.setAccessible(true);
+                redisMGetMethod = Class.forName("org.springframework.data.redis.connection.RedisStringCommands").getMethod("mGet", byte[][].class);
+                redisDelMethod = Class.forName("org.springframework.data.redis.connection.RedisKeyCommands").getMethod("del", byte[][].class);
+                redisCloseMethod = Class.forName("org.springframework.data.redis.connection.RedisConnection").getMethod("close");
+                redisGetConnectionMethod = Class.forName("org.springframework.data.redis.connection.RedisConnectionFactory").getMethod("getConnection");
+            }
+        } catch (Throwable ignore) {
+            redisGetConnectionMethod = null;
+        }
+        try {
+            caffeineCacheCls = Class.forName("org.springframework.cache.caffeine.CaffeineCache");
+            Class<?> nativeCls = Class.forName("com.github.benmanes.caffeine.cache.Cache");
+            caffeineGetAllPresentMethod = nativeCls.getMethod("getAllPresent", Iterable.class);
+            caffeineInvalidateAllMethod = nativeCls.getMethod("invalidateAll", Iterable.class);
+        } catch (Throwable ignore) {
+            caffeineCacheCls = null;
+        }
+    }
+
+    String type(Cache cache) {
+        if (redisCacheCls != null && redisCacheCls.isInstance(cache)) {
+            return REDIS;
+        }
+        if (caffeineCacheCls != null && caffeineCacheCls.isInstance(cache)) {
+            return CAFFEINE;
+        }
+        if (cache instanceof ConcurrentMapCache) {
+            return CONCURRENT_MAP;
+        }
+        return GENERIC;
+    }
+
+    /**
+     * 展示用的 key,redis 为实际存储的 key,其他缓存为 缓存名::key
+     */
+    Object displayKey(Cache cache, Object key) throws Exception {
+        if (redisCacheCls != null && redisCacheCls.isInstance(cache)) {
+            return redisCreateCacheKeyMethod.invoke(cache, key);
+        }
+        return cache.getName() + "::" + key;
+    }
+
+    /**
+     * @return 展示 key -> 值,未命中为 null
+     */
+    Map<Object, Object> getAll(Cache cache, Collection<Object> keys) throws Exception {
+        Map<Object, Object> map = new LinkedHashMap<>();
+        String type = type(cache);
+        if (REDIS.equals(type)) {
+            Object connectionFactory = redisConnectionFactory(cache);
+            if (connectionFactory != null) {
+                List<Object> keyList = new ArrayList<>(keys);
+                Object connection = redisGetConnectionMethod.invoke(connectionFactory);
+                try {
+                    for (int from = 0; from < keyList.size(); from += REDIS_CHUNK) {
+                        List<Object> chunk = keyList.subList(from, Math.min(from + REDIS_CHUNK, keyList.size()));
+                        Object[] displayKeys = new Object[chunk.size()];
+                        byte[][] rawKeys = redisRawKeys(cache, chunk, displayKeys);
+                        List<byte[]> values = (List<byte[]>) invoke(redisMGetMethod, connection, (Object) rawKeys);
+                        for (int i = 0; i < displayKeys.length; i++) {
+                            byte[] value = values == null ? null : values.get(i);
+                            map.put(displayKeys[i], value == null ? null : unwrap(redisDeserializeCacheValueMethod.invoke(cache, (Object) value)));
+                        }
+                    }
+                } finally {
+                    redisCloseMethod.invoke(connection);
+                }
+                return map;
+            }
+        } else if (CAFFEINE.equals(type)) {
+            Map<Object, Object> present = (Map<Object, Object>) invoke(caffeineGetAllPresentMethod, cache.getNativeCache(), keys);
+            for (Object key : keys) {
+                map.put(displayKey(cache, key), unwrap(present.get(key)));
+            }
+            return map;
+        }
+        // ConcurrentMapCache 可能按值存储(序列化),用 get 解码
+        for (Object key : keys) {
+            Cache.ValueWrapper valueWrapper = cache.get(key);
+            map.put(displayKey(cache, key), valueWrapper == null ? null : valueWrapper.get());
+        }
+        return map;
+    }
+
+    /**
+     * @return 实际删除的数量
+     */
+    long evictAll(Cache cache, Collection<Object> keys) throws Exception {
+        String type = type(cache);
+        if (REDIS.equals(type)) {
+            Object connectionFactory = redisConnectionFactory(cache);
+            if (connectionFactory != null) {
+                List<Object> keyList = new ArrayList<>(keys);
+                long deleted = 0;
+                Object connection = redisGetConnectionMethod.invoke(connectionFactory);
+                try {
+                    for (int from = 0; from < keyList.size(); from += REDIS_CHUNK) {
+                        List<Object> chunk = keyList.subList(from, Math.min(from + REDIS_CHUNK, keyList.size()));
+                        Object count = invoke(redisDelMethod, connection, (Object) redisRawKeys(cache, chunk, null));
+                        deleted += count instanceof Number ? ((Number) count).longValue() : 0;
+                    }
+                } finally {
+                    redisCloseMethod.invoke(connection);
+                }
+                return deleted;
+            }
+        } else if (CAFFEINE.equals(type)) {
+            Object nativeCache = cache.getNativeCache();
+            Map<?, ?> present = (Map<?, ?>) invoke(caffeineGetAllPresentMethod, nativeCache, keys);
+            invoke(caffeineInvalidateAllMethod, nativeCache, keys);
+            return present.size();
+        } else if (CONCURRENT_MAP.equals(type)) {
+            ConcurrentMap<Object, Object> nativeCache = ((ConcurrentMapCache) cache).getNativeCache();
+            long deleted = 0;
+            for (Object key : keys) {
+                if (nativeCache.remove(key) != null) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+        long deleted = 0;
+        for (Object key : keys) {
+            if (cache.evictIfPresent(key)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * DefaultRedisCacheWriter 里的连接工厂,取不到时返回 null,调用方逐个操作
+     */
+    private Object redisConnectionFactory(Cache cache) {
+        if (redisGetConnectionMethod == null) {
+            return null;
+        }
+        try {
+            Object writer = cache.getNativeCache();
+            for (Class<?> cls = writer.getClass(); cls != null && cls != Object.class; cls = cls.getSuperclass()) {
+                try {
+                    Field field = cls.getDeclaredField("connectionFactory");
+                    field.setAccessible(true);
+                    return field.get(writer);
+                } catch (NoSuchFieldException ignore) {
+                }
+            }
+        } catch (Throwable ignore) {
+        }
+        return null;
+    }
+
+    private byte[][] redisRawKeys(Cache cache, List<Object> keys, Object[] displayKeys) throws Exception {
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            String cacheKey = (String) redisCreateCacheKeyMethod.invoke(cache, keys.get(i));
+            if (displayKeys != null) {
+                displayKeys[i] = cacheKey;
+            }
+            rawKeys[i] = (byte[]) redisSerializeCacheKeyMethod.invoke(cache, cacheKey);
+        }
+        return rawKeys;
+    }
+
+    private static Object unwrap(Object value) {
+        return value instanceof NullValue ? null : value;
+    }
+
+    /**
+     * 抛出目标方法本身的异常,比如 redis 连接失败
+     */
+    private static Object invoke(Method method, Object target, Object arg) throws Exception {
+        try {
+            return method.invoke(target, arg);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -12,8 +12,22 @@ import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+/**
+ * 按方法参数构建、查询、删除 spring-cache 的 key
+ * batchArgs 为参数数组的数组时批量处理,缓存操作按缓存分组后一次往返,见 SpringCacheStore
+ */
 public class SpringCacheTool implements TestkitTool {
 
+    /**
+     * 单次批量最多的参数组数
+     */
+    private static final int MAX_BATCH = 10000;
+
+    /**
+     * 删除确认时展示的 key 数
+     */
+    private static final int CONFIRM_KEYS = 20;
+
 
     private ApplicationContext app;
 
@@ -28,14 +42,16 @@ public class SpringCacheTool implements TestkitTool {
             this.cacheOperationSource = app.getBean(CacheOperationSource.class);
         } catch (Throwable ignore) {
         }
+        if (cacheAspectSupport != null && app.getEnvironment().getProperty("testkit.cache.metrics", Boolean.class, true)) {
+            MeteredCacheResolver.install(cacheAspectSupport);
+        }
     }
 
 
     Method operationContextMethod;
     Method generateKeyMethod;
     Method getCachesMethod;
-    Method redisCacheGenerateKeyMethod;
-    Class<?> redisCacheCls;
+    final SpringCacheStore cacheStore = new SpringCacheStore();
 
 
     {
@@ -50,10 +66,6 @@ public class SpringCacheTool implements TestkitTool {
 
             getCachesMethod = operationContextClass.getDeclaredMethod("getCaches");
             getCachesMethod.setAccessible(true);
-
-            redisCacheCls = Class.forName("org.springframework.data.redis.cache.RedisCache");
-            redisCacheGenerateKeyMethod = redisCacheCls.getDeclaredMethod("createCacheKey", Object.class);
-            redisCacheGenerateKeyMethod.setAccessible(true);
         } catch (Throwable ignore) {
         }
     }
@@ -87,10 +99,39 @@ public class SpringCacheTool implements TestkitTool {
             throw new TestkitException("typeClass is not Cache");
         }
         String source = params.get("__source__");
-        ReflexBox reflexBox = ReflexUtils.parse(typeClass, methodName, methodArgTypesStr, methodArgsStr, source);
         Object bean = ReflexUtils.getBean(app, beanName, typeClass);
         Class<?> finalTypeClass = typeClass;
         Object finalBean = bean;
+        String batchArgsStr = params.get("batchArgs");
+        if (batchArgsStr != null && !batchArgsStr.trim().isEmpty()) {
+            List<ReflexBox> boxes = ReflexUtils.parseBatch(typeClass, methodName, methodArgTypesStr, batchArgsStr, source);
+            if (boxes.isEmpty()) {
+                throw new TestkitException("batchArgs is empty");
+            }
+            if (boxes.size() > MAX_BATCH) {
+                throw new TestkitException("batchArgs too large, max " + MAX_BATCH + ", actual " + boxes.size());
+            }
+            Method method = boxes.get(0).getMethod();
+            List<Object[]> argsList = new ArrayList<>(boxes.size());
+            for (ReflexBox box : boxes) {
+                argsList.add(box.getArgs());
+            }
+            return new PrepareRet() {
+                @Override
+                public String confirm() throws Exception {
+                    if (!"delete_cache".equals(action)) {
+                        return null;
+                    }
+                    return MessageFormat.format(TestkitTool.RED + "Can you confirm to delete cache?\n" + TestkitTool.RESET + TestkitTool.YELLOW + "Keys: \n{0}", prepareBatchDelKey(finalTypeClass, method, finalBean, argsList));
+                }
+
+                @Override
+                public Object execute() throws Exception {
+                    return doBatchAction(finalTypeClass, method, finalBean, argsList, action);
+                }
+            };
+        }
+        ReflexBox reflexBox = ReflexUtils.parse(typeClass, methodName, methodArgTypesStr, methodArgsStr, source);
         return new PrepareRet() {
             @Override
             public String confirm() throws Exception{
@@ -121,14 +162,11 @@ public class SpringCacheTool implements TestkitTool {
             if (key == null || (key instanceof Optional && !((Optional<?>) key).isPresent()) || String.valueOf(key).isEmpty()) {
                 continue;
             }
-            Collection<Cache> caches = (Collection<Cache>) getCachesMethod.invoke(cachectx);
+            Collection<Cache> caches = caches(cachectx);
             List<KV> keys = new ArrayList<>();
             if (cacheOperation instanceof CacheableOperation) {
                 for (Cache cache : caches) {
-                    if (!redisCacheCls.isAssignableFrom(cache.getClass())) {
-                        throw new TestkitException("un support cacheType, only support RedisCache");
-                    }
-                    Object invoke = redisCacheGenerateKeyMethod.invoke(cache, key);
+                    Object invoke = cacheStore.displayKey(cache, key);
                     if (invoke == null) {
                         continue;
                     }
@@ -144,13 +182,10 @@ public class SpringCacheTool implements TestkitTool {
                 }
             } else if (cacheOperation instanceof CacheEvictOperation || cacheOperation instanceof CachePutOperation) {
                 for (Cache cache : caches) {
-                    if (!redisCacheCls.isAssignableFrom(cache.getClass())) {
-                        throw new TestkitException("un support cacheType, only support RedisCache");
-                    }
                     if ("delete_cache".equals(action)) {
                         cache.evictIfPresent(key);
                     }
-                    Object invoke = redisCacheGenerateKeyMethod.invoke(cache, key);
+                    Object invoke = cacheStore.displayKey(cache, key);
                     if (invoke == null) {
                         continue;
                     }
@@ -241,6 +276,98 @@ public class SpringCacheTool implements TestkitTool {
     }
 
 
+    /**
+     * 批量处理,所有参数组的 key 先按 缓存操作+缓存 分组去重,每组一次批量读取或删除
+     * 返回每组一项: operation、cache、store、keys 以及 buildKeys / keyAndVals、hits / deleteKeys、deleted
+     */
+    public List doBatchAction(Class typeClass, Method method, Object obj, List<Object[]> argsList, String action) throws Exception {
+        Collection<CacheOperation> cacheOperations = cacheOperationSource.getCacheOperations(method, typeClass);
+        if (cacheOperations == null || cacheOperations.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Object> ret = new ArrayList<>();
+        for (CacheOperation cacheOperation : cacheOperations) {
+            if (!(cacheOperation instanceof CacheableOperation || cacheOperation instanceof CacheEvictOperation || cacheOperation instanceof CachePutOperation)) {
+                throw new TestkitException("un support cacheOperation");
+            }
+            Map<Cache, Set<Object>> cacheKeys = new LinkedHashMap<>();
+            for (Object[] args : argsList) {
+                Object cachectx = operationContextMethod.invoke(cacheAspectSupport, cacheOperation, method, args, obj, typeClass);
+                Object key = generateKeyMethod.invoke(cacheAspectSupport, cachectx, null);
+                if (key == null || (key instanceof Optional && !((Optional<?>) key).isPresent()) || String.valueOf(key).isEmpty()) {
+                    continue;
+                }
+                for (Cache cache : caches(cachectx)) {
+                    cacheKeys.computeIfAbsent(cache, new Function<Cache, Set<Object>>() {
+                        @Override
+                        public Set<Object> apply(Cache cache) {
+                            return new LinkedHashSet<>();
+                        }
+                    }).add(key);
+                }
+            }
+            for (Map.Entry<Cache, Set<Object>> entry : cacheKeys.entrySet()) {
+                Cache cache = entry.getKey();
+                Set<Object> keys = entry.getValue();
+                Map<String, Object> map = new LinkedHashMap<>();
+                map.put("operation", cacheOperation.getClass().getSimpleName());
+                map.put("cache", cache.getName());
+                map.put("store", cacheStore.type(cache));
+                map.put("keys", keys.size());
+                if ("build_cache_key".equals(action)) {
+                    List<Object> buildKeys = new ArrayList<>(keys.size());
+                    for (Object key : keys) {
+                        buildKeys.add(String.valueOf(cacheStore.displayKey(cache, key)));
+                    }
+                    map.put("buildKeys", buildKeys);
+                } else if ("get_cache".equals(action)) {
+                    Map<Object, Object> kvs = cacheStore.getAll(cache, keys);
+                    int hits = 0;
+                    for (Object value : kvs.values()) {
+                        if (value != null) {
+                            hits++;
+                        }
+                    }
+                    map.put("hits", hits);
+                    map.put("keyAndVals", kvs);
+                } else {
+                    List<Object> deleteKeys = new ArrayList<>(keys.size());
+                    for (Object key : keys) {
+                        deleteKeys.add(cacheStore.displayKey(cache, key));
+                    }
+                    map.put("deleted", cacheStore.evictAll(cache, keys));
+                    map.put("deleteKeys", deleteKeys);
+                }
+                ret.add(map);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 批量删除确认只展示每个缓存的 key 数和前几个 key
+     */
+    public List prepareBatchDelKey(Class typeClass, Method method, Object obj, List<Object[]> argsList) throws Exception {
+        List<Map<String, Object>> groups = doBatchAction(typeClass, method, obj, argsList, "build_cache_key");
+        for (Map<String, Object> group : groups) {
+            List<Object> buildKeys = (List<Object>) group.remove("buildKeys");
+            group.put("deleteKeys", buildKeys.size() > CONFIRM_KEYS ? new ArrayList<>(buildKeys.subList(0, CONFIRM_KEYS)) : buildKeys);
+        }
+        return groups;
+    }
+
+    /**
+     * 操作上下文解析出的缓存,去掉统计包装,工具的读取和删除不计入 cache-stats
+     */
+    private Collection<Cache> caches(Object cachectx) throws Exception {
+        Collection<Cache> caches = (Collection<Cache>) getCachesMethod.invoke(cachectx);
+        List<Cache> list = new ArrayList<>(caches.size());
+        for (Cache cache : caches) {
+            list.add(MeteredCacheResolver.unwrap(cache));
+        }
+        return list;
+    }
+
     public List prepareDelKey(Class typeClass, Method method, Object obj, Object[] args) throws Exception {
         Collection<CacheOperation> cacheOperations = cacheOperationSource.getCacheOperations(method, typeClass);
         if (cacheOperations == null || cacheOperations.isEmpty()) {
@@ -253,14 +380,11 @@ public class SpringCacheTool implements TestkitTool {
             if (key == null || (key instanceof Optional && !((Optional<?>) key).isPresent()) || String.valueOf(key).isEmpty()) {
                 continue;
             }
-            Collection<Cache> caches = (Collection<Cache>) getCachesMethod.invoke(cachectx);
+            Collection<Cache> caches = caches(cachectx);
             List<Object> keys = new ArrayList<>();
             if (cacheOperation instanceof CacheableOperation) {
                 for (Cache cache : caches) {
-                    if (!redisCacheCls.isAssignableFrom(cache.getClass())) {
-                        throw new TestkitException("un support cacheType, only support RedisCache");
-                    }
-                    Object invoke = redisCacheGenerateKeyMethod.invoke(cache, key);
+                    Object invoke = cacheStore.displayKey(cache, key);
                     if (invoke == null) {
                         continue;
                     }
@@ -268,10 +392,7 @@ public class SpringCacheTool implements TestkitTool {
                 }
             } else if (cacheOperation instanceof CacheEvictOperation || cacheOperation instanceof CachePutOperation) {
                 for (Cache cache : caches) {
-                    if (!redisCacheCls.isAssignableFrom(cache.getClass())) {
-                        throw new TestkitException("un support cacheType, only support RedisCache");
-                    }
-                    Object invoke = redisCacheGenerateKeyMethod.invoke(cache, key);
+                    Object invoke = cacheStore.displayKey(cache, key);
                     if (invoke == null) {
                         continue;
                     }
@@ -0,0 +1,247 @@
+package com.testkit.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 请求/响应的流式 json 编解码
+ * 请求直接从 InputStream 解析成 Req,响应直接写到 exchange.getResponseBody()
+ * 小响应先缓冲再按 Content-Length 发送,超过 bufferSize 后切换成 chunked 边序列化边发送
+ */
+class StreamingJsonCodec {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 不让 jackson 在失败时关闭目标流,否则半截内容会被当成完整响应发出去
+     */
+    private static final ObjectWriter WRITER = ReflexUtils.SIMPLE_MAPPER.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final long maxRequestBytes;
+
+    private final int bufferSize;
+
+    public StreamingJsonCodec(long maxRequestBytes) {
+        this(maxRequestBytes, DEFAULT_BUFFER_SIZE);
+    }
+
+    public StreamingJsonCodec(long maxRequestBytes, int bufferSize) {
+        this.maxRequestBytes = maxRequestBytes;
+        this.bufferSize = bufferSize;
+    }
+
+    public Req readReq(HttpExchange exchange) throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (maxRequestBytes > 0 && contentLength != null && !contentLength.isEmpty()) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > maxRequestBytes) {
+                    throw new TestkitException("request body too large, limit:" + maxRequestBytes + " bytes, Content-Length:" + contentLength);
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        try (InputStream inputStream = maxRequestBytes > 0 ? new LimitedInputStream(exchange.getRequestBody(), maxRequestBytes) : exchange.getRequestBody()) {
+            return ReflexUtils.SIMPLE_MAPPER.readValue(inputStream, Req.class);
+        } catch (JsonProcessingException e) {
+            throw new TestkitException("parse req error," + e.getMessage());
+        }
+    }
+
+    /**
+     * 序列化失败且尚未开始发送时,退回 revealSeria 把 data 转字符串后再流式写一次
+     * 已经开始 chunked 发送后失败只能中断连接
+     */
+    public void writeRet(HttpExchange exchange, Ret ret) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        DeferredResponseStream out = new DeferredResponseStream(exchange, bufferSize);
+        try {
+            WRITER.writeValue(out, ret);
+            out.close();
+            return;
+        } catch (Throwable e) {
+            if (out.committed) {
+                exchange.close();
+                throw new IOException("ret serialize json error after response committed," + e.getMessage(), e);
+            }
+        }
+        DeferredResponseStream fallback = new DeferredResponseStream(exchange, bufferSize);
+        try {
+            WRITER.writeValue(fallback, revealSeria(ret));
+            fallback.close();
+        } catch (Throwable ex) {
+            if (fallback.committed) {
+                exchange.close();
+                throw new IOException("ret serialize json error after response committed," + ex.getMessage(), ex);
+            }
+            throw new TestkitException("ret serialize json error," + ex.getMessage());
+        }
+    }
+
+    private static Ret revealSeria(Ret ret) {
+        //这里对象序列化失败，可以判断
+//                        如果是array则每个对象.toString拼接出来
+//                        如果是collection则每个对象.toString拼接出来
+//                        如果是map，则key和val都toSTring
+        Object obj = ret.getData();
+        obj = obj == null ? "null" : obj;
+        if (obj.getClass().isArray() && !obj.getClass().getComponentType().isPrimitive()) {
+            // 如果是array
+            Object[] array = (Object[]) obj;
+            String[] newArray = new String[array.length];
+            for (int i = 0; i < array.length; i++) {
+                newArray[i] = String.valueOf(array[i]);
+            }
+            ret.setData(newArray);
+        } else if (obj instanceof java.util.Collection) {
+            // 如果是collection
+            java.util.Collection<?> collection = (java.util.Collection<?>) obj;
+            java.util.Collection<String> newCollection = new java.util.ArrayList<>(collection.size());
+            for (Object element : collection) {
+                newCollection.add(String.valueOf(element));
+            }
+            ret.setData(newCollection);
+        } else if (obj instanceof java.util.Map) {
+            // 如果是map
+            java.util.Map<?, ?> map = (java.util.Map<?, ?>) obj;
+            java.util.Map<String, String> newMap = new java.util.HashMap<>();
+            for (java.util.Map.Entry<?, ?> entry : map.entrySet()) {
+                newMap.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+            ret.setData(newMap);
+        } else {
+            // 其他情况
+            ret.setData(String.valueOf(obj));
+        }
+        return ret;
+    }
+
+    /**
+     * 先写缓冲区,超过阈值才发送 chunked 响应头并直通到 responseBody
+     * close 时若仍未提交则按实际长度发送
+     */
+    private static class DeferredResponseStream extends OutputStream {
+
+        private final HttpExchange exchange;
+        private final int threshold;
+        private ByteArrayOutputStream buffer;
+        private OutputStream body;
+        private boolean committed;
+        private boolean closed;
+
+        private DeferredResponseStream(HttpExchange exchange, int threshold) {
+            this.exchange = exchange;
+            this.threshold = threshold;
+            this.buffer = new ByteArrayOutputStream(Math.min(threshold, 8192));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (committed) {
+                body.write(b);
+                return;
+            }
+            buffer.write(b);
+            if (buffer.size() > threshold) {
+                commitChunked();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (committed) {
+                body.write(b, off, len);
+                return;
+            }
+            buffer.write(b, off, len);
+            if (buffer.size() > threshold) {
+                commitChunked();
+            }
+        }
+
+        private void commitChunked() throws IOException {
+            exchange.sendResponseHeaders(200, 0);
+            committed = true;
+            body = exchange.getResponseBody();
+            buffer.writeTo(body);
+            buffer = null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (committed) {
+                body.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!committed) {
+                // 0 在 HttpServer 里表示 chunked,空响应要传 -1
+                exchange.sendResponseHeaders(200, buffer.size() == 0 ? -1 : buffer.size());
+                committed = true;
+                body = exchange.getResponseBody();
+                buffer.writeTo(body);
+                buffer = null;
+            }
+            body.close();
+        }
+    }
+
+    /**
+     * 读取超过上限时直接失败,防止超大请求体打满被测应用内存
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long read;
+
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) {
+            read += n;
+            if (read > limit) {
+                throw new TestkitException("request body too large, limit:" + limit + " bytes");
+            }
+        }
+    }
+}
@@ -1,65 +1,358 @@
 package com.testkit.server;
 
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 class TaskManager {
-    // 存储任务的结果  
-    private static final Map<String, Future<Ret>> taskMap = new ConcurrentHashMap<>();
-    // 线程池用于执行任务  
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    // 存储任务的结果
+    private static final Map<String, TaskEntry> taskMap = new ConcurrentHashMap<>();
+    // 已完成任务按访问顺序排列,用于按内存上限做 LRU 淘汰,读写都在 lruLock 下
+    private static final LinkedHashMap<String, TaskEntry> completedLru = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Object lruLock = new Object();
+    private static long storedBytes;
+    // 线程池用于执行任务,有界,满了直接拒绝
+    private static volatile TestkitExecutor executor = TestkitExecutor.forTasks("testkit-task", new TestkitExecutor.Config(32, 32, 256));
+    // 单线程定时清理过期结果,也负责 get_task_ret 的等待超时
+    private static final ScheduledThreadPoolExecutor sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "testkit-task-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static ScheduledFuture<?> sweepFuture;
+
+    private static volatile long resultTtlMillis = TimeUnit.MINUTES.toMillis(30);
+    private static volatile long resultMaxBytes = 64L * 1024 * 1024;
+
+    private static final LongAdder expiredCount = new LongAdder();
+    private static final LongAdder evictedCount = new LongAdder();
+    private static final LongAdder evictedBytes = new LongAdder();
+
+    static {
+        // 等待超时最长可达一天,任务先完成时取消的定时要立即移出队列,否则会一直持有 waiter 和结果
+        sweeper.setRemoveOnCancelPolicy(true);
+        scheduleSweep(30);
+    }
+
+    // 按配置替换任务线程池,旧池中的任务会继续执行完
+    public static synchronized void configure(TestkitExecutor.Config config) {
+        TestkitExecutor old = executor;
+        executor = TestkitExecutor.forTasks("testkit-task", config);
+        old.shutdown();
+    }
+
+    /**
+     * 配置结果存储
+     *
+     * @param ttlSeconds          已完成任务结果保留时长
+     * @param maxBytes            已完成任务结果的估算总大小上限,超出后按 LRU 淘汰
+     * @param sweepIntervalSeconds 清理间隔
+     */
+    public static synchronized void configureStore(long ttlSeconds, long maxBytes, long sweepIntervalSeconds) {
+        resultTtlMillis = TimeUnit.SECONDS.toMillis(Math.max(1, ttlSeconds));
+        resultMaxBytes = Math.max(0, maxBytes);
+        scheduleSweep(Math.max(1, sweepIntervalSeconds));
+        evictOverflow();
+    }
+
+    private static synchronized void scheduleSweep(long intervalSeconds) {
+        if (sweepFuture != null) {
+            sweepFuture.cancel(false);
+        }
+        sweepFuture = sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (Throwable e) {
+                    System.err.println("Testkit task sweep error, " + e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static Map<String, Object> metrics() {
+        return executor.metrics();
+    }
 
-    // 启动任务并返回请求ID  
+    public static Map<String, Object> storeMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("tasks", taskMap.size());
+        synchronized (lruLock) {
+            map.put("completed", completedLru.size());
+            map.put("storedBytes", storedBytes);
+        }
+        map.put("maxBytes", resultMaxBytes);
+        map.put("ttlSeconds", TimeUnit.MILLISECONDS.toSeconds(resultTtlMillis));
+        map.put("expired", expiredCount.sum());
+        map.put("evicted", evictedCount.sum());
+        map.put("evictedBytes", evictedBytes.sum());
+        return map;
+    }
+
+    // 启动任务并返回请求ID,线程池满时抛出 RejectedExecutionException
     public static String startTask(String reqId, Callable<Ret> task) {
-        // 生成唯一的请求ID  
+        // 生成唯一的请求ID
         // 将任务包装成FutureTask并提交到 executor
-        Future<Ret> future = executor.submit(task);
-        // 存储请求ID和任务映射  
-        taskMap.put(reqId, future);
+        TaskEntry entry = new TaskEntry(reqId, task);
+        // 先登记再提交,避免任务极快完成时 done 找不到自己
+        taskMap.put(reqId, entry);
+        try {
+            executor.execute(entry);
+        } catch (RejectedExecutionException e) {
+            taskMap.remove(reqId);
+            throw e;
+        }
         return reqId;  // 返回生成的请求ID
     }
 
-    // 根据请求ID获取任务结果  
-    public static Ret getResult(String reqId, int timeout) {
-        // 获取对应的任务  
-        Future<Ret> future = taskMap.get(reqId);
-        if (future == null) {
-            return Ret.fail("not found task", 0);
+    /**
+     * 根据请求ID异步获取任务结果,不占用等待线程
+     * 返回的 future 总是正常完成:任务结束、超时、取消、找不到都会转成对应的 Ret
+     *
+     * @param reqId   请求ID
+     * @param timeout 等待秒数,超时只结束本次等待,任务继续执行
+     */
+    public static CompletableFuture<Ret> awaitResult(String reqId, int timeout) {
+        // 获取对应的任务
+        TaskEntry entry = taskMap.get(reqId);
+        if (entry == null) {
+            return CompletableFuture.completedFuture(Ret.fail("not found task, it may have expired", 0));
+        }
+        if (entry.isDone()) {
+            synchronized (lruLock) {
+                // 刷新访问顺序
+                completedLru.get(reqId);
+            }
         }
 
-        long millis = System.currentTimeMillis();
-        try {
-            // 等待任务完成并获取结果  
-            return future.get(timeout, TimeUnit.SECONDS);  // 任务还没有完成会阻塞直到任务完成
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return Ret.fail("thread interrupted", (int) (System.currentTimeMillis() - millis));
-        } catch (TimeoutException e) {
-            e.printStackTrace();
-            return Ret.fail("time out", (int) (System.currentTimeMillis() - millis));
-        } catch (ExecutionException e) {
-            return Ret.fail(TestkitServer.getNoneTestkitStackTrace(e.getCause()), (int) (System.currentTimeMillis() - millis));
+        Waiter waiter = new Waiter();
+        if (entry.completion.isDone()) {
+            entry.finish(waiter);
+            return waiter.future;
+        }
+        entry.waiters.add(waiter);
+        if (entry.completion.isDone()) {
+            // 任务在登记前后完成,回调可能已经遍历过等待集合
+            if (entry.waiters.remove(waiter)) {
+                entry.finish(waiter);
+            }
+            return waiter.future;
         }
+        ScheduledFuture<?> timer = sweeper.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // 超时从等待集合移除,长时间轮询的任务不会累积等待方
+                if (!entry.waiters.remove(waiter)) {
+                    return;
+                }
+                Ret ret = Ret.fail("time out", (int) (System.currentTimeMillis() - waiter.begin));
+                // 超时带回 reqId,客户端可以继续等待
+                ret.setData(reqId);
+                waiter.future.complete(ret);
+            }
+        }, Math.max(0, timeout), TimeUnit.SECONDS);
+        waiter.timer = timer;
+        if (!entry.waiters.contains(waiter)) {
+            // 定时登记前任务已经完成
+            timer.cancel(false);
+        }
+        return waiter.future;
     }
 
     //    / 停止一个任务
     public static boolean stopTask(String reqId) {
         // 获取对应的任务
-        Future<Ret> future = taskMap.get(reqId);
+        TaskEntry future = taskMap.get(reqId);
         if (future == null) {
             return false;  // 没有找到这个任务
         }
 
         // 尝试取消任务
         boolean cancelled = future.cancel(true);
-        if (cancelled) {
-            taskMap.remove(reqId);  // 如果成功取消，则移除任务
-        } else if (future.isDone() || future.isCancelled()) {
-            taskMap.remove(reqId);  // 确保任务结束或已取消后移除
+        if (cancelled || future.isDone() || future.isCancelled()) {
+            // 确保任务结束或已取消后移除
+            remove(reqId);
         }
         return cancelled;
     }
 
+    private static void remove(String reqId) {
+        taskMap.remove(reqId);
+        synchronized (lruLock) {
+            TaskEntry removed = completedLru.remove(reqId);
+            if (removed != null) {
+                storedBytes -= removed.bytes;
+            }
+        }
+    }
+
+    /**
+     * 清理超过 ttl 的已完成任务
+     */
+    static void sweep() {
+        long deadline = System.currentTimeMillis() - resultTtlMillis;
+        List<String> expired = new ArrayList<>();
+        synchronized (lruLock) {
+            Iterator<Map.Entry<String, TaskEntry>> iterator = completedLru.entrySet().iterator();
+            while (iterator.hasNext()) {
+                TaskEntry entry = iterator.next().getValue();
+                if (entry.completedAt <= deadline) {
+                    iterator.remove();
+                    storedBytes -= entry.bytes;
+                    expired.add(entry.reqId);
+                }
+            }
+        }
+        for (String reqId : expired) {
+            taskMap.remove(reqId);
+        }
+        expiredCount.add(expired.size());
+    }
+
+    private static void evictOverflow() {
+        List<String> evicted = new ArrayList<>();
+        long bytes = 0;
+        synchronized (lruLock) {
+            Iterator<Map.Entry<String, TaskEntry>> iterator = completedLru.entrySet().iterator();
+            // 至少保留最新完成的一个,避免单个超大结果刚完成就被淘汰拿不到
+            while (storedBytes > resultMaxBytes && completedLru.size() > 1 && iterator.hasNext()) {
+                TaskEntry entry = iterator.next().getValue();
+                iterator.remove();
+                storedBytes -= entry.bytes;
+                bytes += entry.bytes;
+                evicted.add(entry.reqId);
+            }
+        }
+        for (String reqId : evicted) {
+            taskMap.remove(reqId);
+        }
+        evictedCount.add(evicted.size());
+        evictedBytes.add(bytes);
+    }
+
+    /**
+     * 任务完成时记录完成时间和结果估算大小,并纳入 LRU
+     */
+    private static final class Waiter {
+        private final CompletableFuture<Ret> future = new CompletableFuture<>();
+        private final long begin = System.currentTimeMillis();
+        private volatile ScheduledFuture<?> timer;
+    }
+
+    private static class TaskEntry extends FutureTask<Ret> {
+
+        private final String reqId;
+        // 任务结束时完成,等待方在上面注册回调而不是阻塞线程
+        private final CompletableFuture<Ret> completion = new CompletableFuture<>();
+        // get_task_ret 的等待方,每个任务只在 completion 上注册一个回调,超时的等待方自己移除
+        private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+        private volatile long completedAt;
+        private volatile long bytes;
+
+        private TaskEntry(String reqId, Callable<Ret> callable) {
+            super(callable);
+            this.reqId = reqId;
+            completion.whenComplete(new BiConsumer<Ret, Throwable>() {
+                @Override
+                public void accept(Ret ret, Throwable error) {
+                    for (Waiter waiter : waiters) {
+                        if (waiters.remove(waiter)) {
+                            finish(waiter, ret, error);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * 任务已经完成时直接用结果完成等待方
+         */
+        private void finish(Waiter waiter) {
+            completion.whenComplete(new BiConsumer<Ret, Throwable>() {
+                @Override
+                public void accept(Ret ret, Throwable error) {
+                    finish(waiter, ret, error);
+                }
+            });
+        }
+
+        private static void finish(Waiter waiter, Ret ret, Throwable error) {
+            ScheduledFuture<?> timer = waiter.timer;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            int cost = (int) (System.currentTimeMillis() - waiter.begin);
+            if (error == null) {
+                waiter.future.complete(ret);
+            } else if (error instanceof CancellationException) {
+                waiter.future.complete(Ret.fail("task cancelled", cost));
+            } else {
+                waiter.future.complete(Ret.fail(TestkitServer.getNoneTestkitStackTrace(error), cost));
+            }
+        }
+
+        @Override
+        protected void done() {
+            this.completedAt = System.currentTimeMillis();
+            this.bytes = estimateBytes();
+            complete();
+            if (taskMap.get(reqId) != this) {
+                // 已被 stop_task 移除
+                return;
+            }
+            synchronized (lruLock) {
+                completedLru.put(reqId, this);
+                storedBytes += bytes;
+            }
+            evictOverflow();
+        }
+
+        private void complete() {
+            if (isCancelled()) {
+                completion.completeExceptionally(new CancellationException());
+                return;
+            }
+            try {
+                completion.complete(get());
+            } catch (ExecutionException e) {
+                completion.completeExceptionally(e.getCause());
+            } catch (Throwable e) {
+                completion.completeExceptionally(e);
+            }
+        }
+
+        private long estimateBytes() {
+            if (isCancelled()) {
+                return 0;
+            }
+            try {
+                Ret ret = get();
+                if (ret == null) {
+                    return 0;
+                }
+                long size = 64 + PayloadSizeEstimator.estimate(ret.getData());
+                if (ret.getMessage() != null) {
+                    size += ret.getMessage().length();
+                }
+                if (ret.getProfile() != null) {
+                    for (Map<String, String> profile : ret.getProfile()) {
+                        for (String value : profile.values()) {
+                            size += value == null ? 0 : value.length();
+                        }
+                    }
+                }
+                return size;
+            } catch (Throwable e) {
+                return 256;
+            }
+        }
+    }
+
 
     private static final char[] CHAR_POOL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
     private static final int POOL_SIZE = CHAR_POOL.length;
@@ -73,4 +366,4 @@ class TaskManager {
         }
         return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,313 @@
+package com.testkit.server;
+
+import org.springframework.core.env.Environment;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 有界且带指标的线程池
+ * testkit 运行在被测应用的 jvm 里,线程数不能无上限增长,满了之后明确拒绝
+ * 支持 jdk21+ 的虚拟线程模式,此时以 maxSize 控制并发,queueSize 控制排队上限
+ */
+class TestkitExecutor implements Executor {
+
+    /**
+     * http 池被拒绝时会在 dispatcher 线程上直接执行任务,handler 通过这个标记快速返回繁忙
+     */
+    private static final ThreadLocal<Boolean> REJECTING = new ThreadLocal<>();
+
+    private final String name;
+    private final Config config;
+    private final boolean runRejectedInline;
+    private final ThreadPoolExecutor pool;
+    private final ExecutorService virtualPool;
+    private final Semaphore virtualPermits;
+    private final AtomicInteger virtualInflight = new AtomicInteger();
+    private final AtomicInteger virtualActive = new AtomicInteger();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    private TestkitExecutor(String name, Config config, boolean runRejectedInline) {
+        this.name = name;
+        this.config = config;
+        this.runRejectedInline = runRejectedInline;
+        ExecutorService virtual = config.isVirtual() ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            this.virtualPool = virtual;
+            this.virtualPermits = new Semaphore(config.getMaxSize());
+            this.pool = null;
+            return;
+        }
+        this.virtualPool = null;
+        this.virtualPermits = null;
+        this.pool = new ThreadPoolExecutor(config.getCoreSize(), config.getMaxSize(), config.getKeepAliveSeconds(), TimeUnit.SECONDS,
+                config.getQueueSize() <= 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(config.getQueueSize()),
+                new NamedThreadFactory(name),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        rejected.increment();
+                        if (runRejectedInline && !executor.isShutdown()) {
+                            runRejected(r instanceof TimedTask ? ((TimedTask) r).delegate : r);
+                            return;
+                        }
+                        throw new RejectedExecutionException(name + " is busy, " + describe());
+                    }
+                });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 任务池,满了直接抛 RejectedExecutionException
+     */
+    public static TestkitExecutor forTasks(String name, Config config) {
+        return new TestkitExecutor(name, config, false);
+    }
+
+    /**
+     * HttpServer 的池,满了在调用线程上以拒绝模式执行,由 handler 快速响应繁忙
+     */
+    public static TestkitExecutor forHttp(String name, Config config) {
+        return new TestkitExecutor(name, config, true);
+    }
+
+    public static boolean isRejecting() {
+        return Boolean.TRUE.equals(REJECTING.get());
+    }
+
+    private static void runRejected(Runnable r) {
+        REJECTING.set(Boolean.TRUE);
+        try {
+            r.run();
+        } finally {
+            REJECTING.remove();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (pool != null) {
+            pool.execute(new TimedTask(command));
+            return;
+        }
+        if (virtualInflight.incrementAndGet() > config.getMaxSize() + Math.max(0, config.getQueueSize())) {
+            virtualInflight.decrementAndGet();
+            rejectVirtual(command, new RejectedExecutionException(name + " is busy, " + describe()));
+            return;
+        }
+        try {
+            virtualPool.execute(new TimedTask(command));
+        } catch (RejectedExecutionException e) {
+            virtualInflight.decrementAndGet();
+            rejectVirtual(command, e);
+        }
+    }
+
+    /**
+     * 与平台线程池的拒绝策略一致,http 池在调用线程上以拒绝模式执行,否则 HttpServer 会直接断开连接
+     */
+    private void rejectVirtual(Runnable command, RejectedExecutionException e) {
+        rejected.increment();
+        if (runRejectedInline && !virtualPool.isShutdown()) {
+            runRejected(command);
+            return;
+        }
+        throw e;
+    }
+
+    public <T> Future<T> submit(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        execute(task);
+        return task;
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        } else {
+            virtualPool.shutdown();
+        }
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", name);
+        map.put("mode", pool != null ? "platform" : "virtual");
+        map.put("coreSize", config.getCoreSize());
+        map.put("maxSize", config.getMaxSize());
+        map.put("queueCapacity", config.getQueueSize());
+        map.put("active", getActive());
+        map.put("queued", getQueued());
+        if (pool != null) {
+            map.put("poolSize", pool.getPoolSize());
+            map.put("largestPoolSize", pool.getLargestPoolSize());
+        }
+        map.put("completed", completed.sum());
+        map.put("rejected", rejected.sum());
+        map.put("queueWaitMs", queueWait.snapshot(1_000_000d));
+        return map;
+    }
+
+    public int getActive() {
+        return pool != null ? pool.getActiveCount() : virtualActive.get();
+    }
+
+    public int getQueued() {
+        return pool != null ? pool.getQueue().size() : Math.max(0, virtualInflight.get() - virtualActive.get());
+    }
+
+    public String describe() {
+        return "active:" + getActive() + ", queued:" + getQueued() + ", max:" + config.getMaxSize() + ", queueCapacity:" + config.getQueueSize();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Throwable e) {
+            // jdk21 以下没有虚拟线程,退回平台线程池
+            return null;
+        }
+    }
+
+    private class TimedTask implements Runnable {
+
+        private final Runnable delegate;
+        private final long enqueueNanos = System.nanoTime();
+
+        private TimedTask(Runnable delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            if (pool != null) {
+                queueWait.record(System.nanoTime() - enqueueNanos);
+                try {
+                    delegate.run();
+                } finally {
+                    completed.increment();
+                }
+                return;
+            }
+            boolean acquired = false;
+            try {
+                virtualPermits.acquire();
+                acquired = true;
+                queueWait.record(System.nanoTime() - enqueueNanos);
+                virtualActive.incrementAndGet();
+                delegate.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (acquired) {
+                    virtualActive.decrementAndGet();
+                    virtualPermits.release();
+                }
+                virtualInflight.decrementAndGet();
+                completed.increment();
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicLong index = new AtomicLong();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+
+    public static class Config {
+
+        private int coreSize;
+        private int maxSize;
+        private int queueSize;
+        private long keepAliveSeconds = 60;
+        private boolean virtual;
+
+        public Config(int coreSize, int maxSize, int queueSize) {
+            this.coreSize = coreSize;
+            this.maxSize = maxSize;
+            this.queueSize = queueSize;
+        }
+
+        /**
+         * 读取 ${prefix}.core-size/max-size/queue-size/keep-alive-seconds/virtual
+         */
+        public static Config from(Environment environment, String prefix, Config defaults) {
+            Config config = new Config(defaults.coreSize, defaults.maxSize, defaults.queueSize);
+            config.keepAliveSeconds = defaults.keepAliveSeconds;
+            config.virtual = defaults.virtual;
+            if (environment == null) {
+                return config;
+            }
+            config.maxSize = environment.getProperty(prefix + ".max-size", Integer.class, config.maxSize);
+            // 有界队列满了才会超过 core 创建线程,默认 core == max,只配了 max-size 时 core 跟着变
+            config.coreSize = environment.getProperty(prefix + ".core-size", Integer.class,
+                    defaults.coreSize == defaults.maxSize ? config.maxSize : config.coreSize);
+            config.queueSize = environment.getProperty(prefix + ".queue-size", Integer.class, config.queueSize);
+            config.keepAliveSeconds = environment.getProperty(prefix + ".keep-alive-seconds", Long.class, config.keepAliveSeconds);
+            config.virtual = environment.getProperty(prefix + ".virtual", Boolean.class, config.virtual);
+            if (config.maxSize < 1) {
+                config.maxSize = 1;
+            }
+            if (config.coreSize < 0 || config.coreSize > config.maxSize) {
+                config.coreSize = config.maxSize;
+            }
+            if (config.keepAliveSeconds < 1) {
+                config.keepAliveSeconds = 1;
+            }
+            return config;
+        }
+
+        public int getCoreSize() {
+            return coreSize;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public long getKeepAliveSeconds() {
+            return keepAliveSeconds;
+        }
+
+        public boolean isVirtual() {
+            return virtual;
+        }
+
+        @Override
+        public String toString() {
+            return "Config{" +
+                    "coreSize=" + coreSize +
+                    ", maxSize=" + maxSize +
+                    ", queueSize=" + queueSize +
+                    ", keepAliveSeconds=" + keepAliveSeconds +
+                    ", virtual=" + virtual +
+                    '}';
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package com.testkit.server;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import com.testkit.server.enhance.MybatisRepeatDetector;
+import com.testkit.server.enhance.SqlStatsRegistry;
 import com.testkit.trace.TraceInfo;
+import com.testkit.trace.TraceRules;
+import com.testkit.trace.TraceSampler;
+import com.testkit.trace.TraceAggregator;
+import com.testkit.trace.TraceCodec;
+import com.testkit.trace.TraceSink;
+import com.testkit.trace.TraceThreadContextTransferTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.web.context.WebServerApplicationContext;
@@ -21,7 +28,10 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public class TestkitServer {
 
@@ -36,10 +46,24 @@ public class TestkitServer {
 
     private HttpServer server;
 
+    private TestkitExecutor httpExecutor;
+
+    private TestkitExecutor.Config httpExecutorConfig;
+
+    private StreamingJsonCodec codec;
+
     private String project;
     private String appName;
     private String env;
     private boolean enableTrace;
+    /**
+     * 请求级资源计量,结果放进 profile
+     */
+    private boolean resourceProfile;
+    /**
+     * span 级资源计量,开销随 span 数量增长,默认关闭
+     */
+    private boolean traceSpanResource;
 
 
     public TestkitServer(ApplicationContext app, String project, String appName, String env) {
@@ -63,11 +87,28 @@ public class TestkitServer {
         this.project = project;
         this.appName = appName;
         this.env = env;
+        this.httpExecutorConfig = TestkitExecutor.Config.from(app.getEnvironment(), "testkit.server.http", new TestkitExecutor.Config(16, 16, 64));
+        this.codec = new StreamingJsonCodec(app.getEnvironment().getProperty("testkit.server.max-request-bytes", Long.class, 32L * 1024 * 1024));
+        TaskManager.configure(TestkitExecutor.Config.from(app.getEnvironment(), "testkit.server.task", new TestkitExecutor.Config(32, 32, 256)));
+        TaskManager.configureStore(app.getEnvironment().getProperty("testkit.server.task.result-ttl-seconds", Long.class, 1800L),
+                app.getEnvironment().getProperty("testkit.server.task.result-max-bytes", Long.class, 64L * 1024 * 1024),
+                app.getEnvironment().getProperty("testkit.server.task.result-sweep-seconds", Long.class, 30L));
+        ReflexUtils.configureCompileCache(app.getEnvironment().getProperty("testkit.compiler.cache-size", Integer.class, 128));
+        LoadRunner.configure(app.getEnvironment().getProperty("testkit.load.max-workers", Integer.class, LoadRunner.MAX_CONCURRENCY));
+        this.resourceProfile = app.getEnvironment().getProperty("testkit.profile.resource", Boolean.class, true);
+        this.traceSpanResource = app.getEnvironment().getProperty("testkit.trace.span-resource", Boolean.class, false);
+        if (resourceProfile && app.getEnvironment().getProperty("testkit.profile.contention-monitoring", Boolean.class, false)) {
+            ResourceMeter.enableContentionMonitoring();
+        }
         try {
             Class.forName("com.testkit.agent.TraceAgent");
             this.enableTrace = true;
         } catch (Throwable ignore) {
         }
+        if (enableTrace) {
+            // 通知 agent 启动完成,执行延迟增强并输出增强耗时报告
+            TraceRules.contextReady();
+        }
     }
 
 
@@ -109,6 +150,10 @@ public class TestkitServer {
         if (Objects.equals(RuntimeAppHelper.LOCAL, env)) {
             RuntimeAppHelper.removeApp(project, appName, port);
         }
+        if (this.httpExecutor != null) {
+            this.httpExecutor.shutdown();
+            this.httpExecutor = null;
+        }
         this.server = null;
     }
 
@@ -119,10 +164,16 @@ public class TestkitServer {
         } catch (IOException e) {
             throw new RuntimeException("fail to create testkit server", e);
         }
-        server.setExecutor(Executors.newCachedThreadPool());
+        TestkitExecutor executor = TestkitExecutor.forHttp("testkit-http", httpExecutorConfig);
+        this.httpExecutor = executor;
+        server.setExecutor(executor);
         server.createContext("/", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
+                if (TestkitExecutor.isRejecting()) {
+                    returnError(exchange, "testkit server is busy, request rejected, " + executor.describe());
+                    return;
+                }
                 if ("GET".equalsIgnoreCase(exchange.getRequestMethod()) && exchange.getRequestURI().getPath().equals("/health")) {
                     String response = "{\"success\":true}";
                     exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
@@ -137,30 +188,30 @@ public class TestkitServer {
                     return;
                 }
                 try {
-                    InputStream inputStream = exchange.getRequestBody();
-                    // 读取请求的JSON内容
-                    String content = readInputStream(inputStream);
-                    Req req = null;
-                    try {
-                        req = ReflexUtils.SIMPLE_MAPPER.readValue(content, Req.class);
-                    } catch (JsonProcessingException e) {
-                        throw new TestkitException("parse req error," + e.getMessage());
+                    // 直接从请求流解析,响应直接写回 responseBody
+                    Req req = codec.readReq(exchange);
+                    CompletableFuture<Ret> pending = handlerAsync(req, serverPort);
+                    if (pending == null) {
+                        Ret ret = handlerReq(req, serverPort);
+                        codec.writeRet(exchange, ret);
+                        return;
                     }
-                    Ret ret = handlerReq(req, serverPort);
-                    String jsonResponse = null;
-                    try {
-                        jsonResponse = ReflexUtils.SIMPLE_MAPPER.writeValueAsString(ret);
-                    } catch (Throwable e) {
-                        jsonResponse = revealSeria(ret);
-                    }
-                    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
-                    exchange.sendResponseHeaders(200, jsonResponse.getBytes(StandardCharsets.UTF_8).length);
-                    OutputStream outputStream = exchange.getResponseBody();
-                    outputStream.write(jsonResponse.getBytes(StandardCharsets.UTF_8));
-                    outputStream.close();
+                    // 等待类请求不占用 http 线程,结果就绪后由完成回调写响应
+                    boolean ready = pending.isDone();
+                    pending.whenComplete(new BiConsumer<Ret, Throwable>() {
+                        @Override
+                        public void accept(Ret ret, Throwable error) {
+                            writeCompleted(exchange, ret, error, ready);
+                        }
+                    });
                 } catch (Throwable e) {
                     log("testkit-server error",e);
-                    returnError(exchange, getNoneTestkitStackTrace(e));
+                    try {
+                        returnError(exchange, getNoneTestkitStackTrace(e));
+                    } catch (Throwable ignore) {
+                        // 响应已经开始发送,只能断开
+                        exchange.close();
+                    }
                 }
             }
         });
@@ -202,6 +253,37 @@ public class TestkitServer {
         return server;
     }
 
+    /**
+     * 写回异步完成的结果,不在任务线程/定时线程上做序列化,交给 http 池,池满时就地写
+     */
+    private void writeCompleted(HttpExchange exchange, Ret ret, Throwable error, boolean inline) {
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (error != null) {
+                        returnError(exchange, getNoneTestkitStackTrace(error));
+                        return;
+                    }
+                    codec.writeRet(exchange, ret);
+                } catch (Throwable e) {
+                    log("testkit-server write result error", e);
+                    exchange.close();
+                }
+            }
+        };
+        TestkitExecutor executor = this.httpExecutor;
+        if (inline || executor == null) {
+            write.run();
+            return;
+        }
+        try {
+            executor.execute(write);
+        } catch (RejectedExecutionException e) {
+            write.run();
+        }
+    }
+
     private void log(String msg, Throwable e) {
         if (e == null) {
             if (loadByCli) {
@@ -251,15 +333,74 @@ public class TestkitServer {
             stop();
             return Ret.success(true, (int) (System.currentTimeMillis() - begin));
         }
-        if ("get_task_ret".equals(req.getMethod())) {
-            Map<String, String> params = req.getParams();
-            String reqId = params.get("reqId");
-            String timeoutStr = params.get("timeout");
-            int timeout = 86400;
-            if (timeoutStr != null && !timeoutStr.isEmpty()) {
-                timeout = Integer.parseInt(timeoutStr);
+        if ("metrics".equals(req.getMethod())) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            TestkitExecutor executor = this.httpExecutor;
+            map.put("http", executor == null ? null : executor.metrics());
+            map.put("task", TaskManager.metrics());
+            map.put("taskStore", TaskManager.storeMetrics());
+            map.put("compiler", ReflexUtils.compileMetrics());
+            map.put("reflexTemplate", ReflexUtils.templateMetrics());
+            map.put("load", LoadRunner.metrics());
+            // testkit-trace 只有开启 trace 时才在 bootclasspath 上
+            if (enableTrace) {
+                map.put("traceSink", TraceSink.metrics());
+                map.put("traceSampler", TraceSampler.status());
+                map.put("traceFork", TraceThreadContextTransferTool.metrics());
+                TraceRules.Handler handler = TraceRules.handler();
+                map.put("traceTransform", handler == null ? null : handler.transformReport());
+            }
+            return Ret.success(map, (int) (System.currentTimeMillis() - begin));
+        }
+        if (!enableTrace && ("trace-sampling".equals(req.getMethod()) || "trace-rules".equals(req.getMethod()) || "trace-hotpath".equals(req.getMethod()))) {
+            throw new TestkitException("trace agent is not enabled");
+        }
+        if ("trace-sampling".equals(req.getMethod())) {
+            // 不带参数时只查询
+            Map<String, String> params = req.getParams() == null ? new HashMap<>() : req.getParams();
+            Map<String, Object> status;
+            try {
+                status = TraceSampler.update(optional(params.get("probability"), Double::valueOf),
+                        optional(params.get("maxTracesPerSecond"), Integer::valueOf),
+                        optional(params.get("spanBudget"), Integer::valueOf),
+                        optional(params.get("adaptive"), Boolean::valueOf),
+                        optional(params.get("maxOverheadPercent"), Double::valueOf));
+            } catch (IllegalArgumentException e) {
+                throw new TestkitException("illegal trace-sampling params, " + e.getMessage());
+            }
+            log("[operator:" + req.getOperator() + "] Testkit trace-sampling params:" + params + " status:" + status, null);
+            return Ret.success(status, (int) (System.currentTimeMillis() - begin));
+        }
+        if ("trace-rules".equals(req.getMethod())) {
+            Ret ret = Ret.success(updateTraceRules(req.getParams() == null ? new HashMap<>() : req.getParams()), (int) (System.currentTimeMillis() - begin));
+            log("[operator:" + req.getOperator() + "] Testkit trace-rules params:" + req.getParams() + " ret:" + ret.getData(), null);
+            return ret;
+        }
+        if ("trace-hotpath".equals(req.getMethod())) {
+            Map<String, String> params = req.getParams() == null ? new HashMap<>() : req.getParams();
+            Object data = traceHotpath(params);
+            String action = params.getOrDefault("action", "status");
+            if (Arrays.asList("start", "stop", "reset", "merge").contains(action)) {
+                // 查询类 action 不记录,merge 的链路原文不记录
+                log("[operator:" + req.getOperator() + "] Testkit trace-hotpath action:" + action + " root:" + params.get("root") + " ret:" + data, null);
             }
-            return TaskManager.getResult(reqId, timeout);
+            return Ret.success(data, (int) (System.currentTimeMillis() - begin));
+        }
+        if ("sql-stats".equals(req.getMethod())) {
+            Map<String, String> params = req.getParams() == null ? new HashMap<>() : req.getParams();
+            Object data = sqlStats(params);
+            if (!"list".equals(params.getOrDefault("action", "list"))) {
+                log("[operator:" + req.getOperator() + "] Testkit sql-stats action:" + params.get("action"), null);
+            }
+            return Ret.success(data, (int) (System.currentTimeMillis() - begin));
+        }
+        if ("cache-stats".equals(req.getMethod())) {
+            Map<String, String> params = req.getParams() == null ? new HashMap<>() : req.getParams();
+            Object data = cacheStats(params);
+            if (!"list".equals(params.getOrDefault("action", "list"))) {
+                log("[operator:" + req.getOperator() + "] Testkit cache-stats action:" + params.get("action"), null);
+            }
+            return Ret.success(data, (int) (System.currentTimeMillis() - begin));
         }
         if ("stop_task".equals(req.getMethod())) {
             Map<String, String> params = req.getParams();
@@ -276,60 +417,245 @@ public class TestkitServer {
             PrepareRet prepare = testkitTool.prepare(req.getParams());
             return Ret.success(prepare.confirm(),(int) (System.currentTimeMillis() - begin));
         }
-        String reqId = TaskManager.generateRandomString(16);
-        TaskManager.startTask(reqId, new Callable<Ret>() {
-            @Override
-            public Ret call() throws Exception {
-                return processReq(testkitTool,reqId, req);
+        return submitTask(testkitTool, req, begin);
+    }
+
+    /**
+     * 需要等待任务结果的请求,返回 null 表示走同步的 handlerReq
+     * get_task_ret: 长轮询,任务完成或超时时由回调写响应
+     * submit_and_wait: 提交并等待,一次往返拿到结果,超时后 data 为 reqId 可继续 get_task_ret
+     */
+    private CompletableFuture<Ret> handlerAsync(Req req, int serverPort) throws Exception {
+        long begin = System.currentTimeMillis();
+        if ("get_task_ret".equals(req.getMethod())) {
+            Map<String, String> params = req.getParams();
+            String reqId = params.get("reqId");
+            return TaskManager.awaitResult(reqId, parseTimeout(params.get("timeout")));
+        }
+        if (!"submit_and_wait".equals(req.getMethod())) {
+            return null;
+        }
+        Map<String, String> params = req.getParams() == null ? new HashMap<>() : new HashMap<>(req.getParams());
+        String tool = params.remove("tool");
+        int timeout = parseTimeout(params.remove("timeout"));
+        TestkitTool testkitTool = tool == null ? null : tools.get(tool);
+        if (testkitTool == null) {
+            throw new TestkitException("Un support tool, " + tool);
+        }
+        req.setMethod(tool);
+        req.setParams(params);
+        if (req.isPrepare()) {
+            PrepareRet prepare = testkitTool.prepare(req.getParams());
+            return CompletableFuture.completedFuture(Ret.success(prepare.confirm(), (int) (System.currentTimeMillis() - begin)));
+        }
+        Ret submitted = submitTask(testkitTool, req, begin);
+        if (!submitted.isSuccess()) {
+            return CompletableFuture.completedFuture(submitted);
+        }
+        return TaskManager.awaitResult((String) submitted.getData(), timeout);
+    }
+
+    /**
+     * action 为 list/add/remove,规则参数 allows/denys/packages/clsSuffix 逗号分隔
+     */
+    private static Map<String, Object> updateTraceRules(Map<String, String> params) {
+        TraceRules.Handler handler = TraceRules.handler();
+        if (handler == null) {
+            throw new TestkitException("trace agent is not enabled or not support retransform");
+        }
+        String action = params.getOrDefault("action", "list");
+        if ("list".equals(action)) {
+            return handler.list();
+        }
+        if (!"add".equals(action) && !"remove".equals(action)) {
+            throw new TestkitException("Un support trace-rules action, " + action);
+        }
+        Map<String, Set<String>> rules = new LinkedHashMap<>();
+        for (String type : Arrays.asList(TraceRules.ALLOWS, TraceRules.DENYS, TraceRules.PACKAGES, TraceRules.CLS_SUFFIX)) {
+            String value = params.get(type);
+            if (value == null || value.trim().isEmpty()) {
+                continue;
             }
-        });
-        Ret ret = Ret.success(reqId, (int) (System.currentTimeMillis() - begin));
-        log("[operator:" + req.getOperator() + "] " + "[reqId:" + reqId + "] Testkit submitReq method:" + req.getMethod(), null);
-        return ret;
+            Set<String> values = new LinkedHashSet<>();
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+            rules.put(type, values);
+        }
+        if (rules.isEmpty()) {
+            throw new TestkitException("trace-rules need at least one of allows/denys/packages/clsSuffix");
+        }
+        try {
+            return handler.update("add".equals(action), rules);
+        } catch (IllegalArgumentException e) {
+            throw new TestkitException("illegal trace-rules params, " + e.getMessage());
+        }
     }
 
-    private static String revealSeria(Ret ret) {
-        String jsonResponse;
-        //这里对象序列化失败，可以判断
-//                        如果是array则每个对象.toString拼接出来
-//                        如果是collection则每个对象.toString拼接出来
-//                        如果是map，则key和val都toSTring
+    /**
+     * action 为 status/start/stop/reset/tree/collapsed/merge
+     * start 可以带 root 只聚合根节点 biz#action 包含该字符串的链路; tree 可以带 maxDepth、minPercent;
+     * merge 导入 profilers 参数里换行分隔的 TRACE_PROFILER 行
+     */
+    private static Object traceHotpath(Map<String, String> params) {
+        String action = params.getOrDefault("action", "status");
         try {
-            Object obj = ret.getData();
-            obj = obj == null ? "null" : obj;
-            if (obj.getClass().isArray()) {
-                // 如果是array
-                Object[] array = (Object[]) obj;
-                for (int i = 0; i < array.length; i++) {
-                    array[i] = String.valueOf(array[i]);
-                }
-            } else if (obj instanceof Collection) {
-                // 如果是collection
-                Collection<?> collection = (Collection<?>) obj;
-                Collection<String> newCollection = new ArrayList<>();
-                for (Object element : collection) {
-                    newCollection.add(String.valueOf(element));
-                }
-                ret.setData(newCollection);
-            } else if (obj instanceof Map) {
-                // 如果是map
-                Map<?, ?> map = (Map<?, ?>) obj;
-                Map<String, String> newMap = new HashMap<>();
-                for (Map.Entry<?, ?> entry : map.entrySet()) {
-                    newMap.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
-                }
-                ret.setData(newMap);
-            } else {
-                // 其他情况
-                ret.setData(String.valueOf(obj));
+            switch (action) {
+                case "status":
+                    return TraceAggregator.status();
+                case "start":
+                    TraceAggregator.enable(params.get("root"));
+                    return TraceAggregator.status();
+                case "stop":
+                    TraceAggregator.disable();
+                    return TraceAggregator.status();
+                case "reset":
+                    TraceAggregator.reset();
+                    return TraceAggregator.status();
+                case "tree":
+                    Integer maxDepth = optional(params.get("maxDepth"), Integer::valueOf);
+                    Double minPercent = optional(params.get("minPercent"), Double::valueOf);
+                    return TraceAggregator.tree(maxDepth == null ? 0 : maxDepth, minPercent == null ? 0 : minPercent);
+                case "collapsed":
+                    return TraceAggregator.collapsed();
+                case "merge":
+                    String profilers = params.get("profilers");
+                    if (profilers == null || profilers.trim().isEmpty()) {
+                        throw new TestkitException("trace-hotpath merge need profilers");
+                    }
+                    int merged = 0;
+                    int skipped = 0;
+                    for (String line : profilers.split("\\r?\\n")) {
+                        if (line.trim().isEmpty()) {
+                            continue;
+                        }
+                        if (TraceAggregator.merge(line)) {
+                            merged++;
+                        } else {
+                            skipped++;
+                        }
+                    }
+                    Map<String, Object> ret = TraceAggregator.status();
+                    ret.put("merged", merged);
+                    ret.put("skipped", skipped);
+                    return ret;
+                default:
+                    throw new TestkitException("Un support trace-hotpath action, " + action);
             }
-            jsonResponse = ReflexUtils.SIMPLE_MAPPER.writeValueAsString(ret);
-        } catch (Throwable ex) {
-            throw new TestkitException("ret serialize json error," + ex.getMessage());
+        } catch (NumberFormatException e) {
+            throw new TestkitException("illegal trace-hotpath params, " + e.getMessage());
         }
-        return jsonResponse;
     }
 
+    /**
+     * action 为 list/reset/enable/disable
+     * list 可以带 sortBy(total/count/avg/max/p99/errors/rows)、filter(语句 id 包含)、limit(默认 50)
+     */
+    private static Map<String, Object> sqlStats(Map<String, String> params) {
+        String action = params.getOrDefault("action", "list");
+        switch (action) {
+            case "list":
+                break;
+            case "reset":
+                SqlStatsRegistry.reset();
+                break;
+            case "enable":
+                SqlStatsRegistry.setEnabled(true);
+                break;
+            case "disable":
+                SqlStatsRegistry.setEnabled(false);
+                break;
+            default:
+                throw new TestkitException("Un support sql-stats action, " + action);
+        }
+        Integer limit;
+        try {
+            limit = optional(params.get("limit"), Integer::valueOf);
+        } catch (NumberFormatException e) {
+            throw new TestkitException("illegal sql-stats limit, " + params.get("limit"));
+        }
+        return SqlStatsRegistry.snapshot(params.get("sortBy"), params.get("filter"), limit == null ? 50 : limit);
+    }
+
+    /**
+     * action 为 list/reset/enable/disable
+     * list 可以带 by(cache/method)、sortBy(access/hits/misses/hitRatio/load/saved/size)、filter(名称包含)、limit(默认 50)
+     */
+    private static Map<String, Object> cacheStats(Map<String, String> params) {
+        String action = params.getOrDefault("action", "list");
+        switch (action) {
+            case "list":
+                break;
+            case "reset":
+                CacheMetricsRegistry.reset();
+                break;
+            case "enable":
+                CacheMetricsRegistry.setEnabled(true);
+                break;
+            case "disable":
+                CacheMetricsRegistry.setEnabled(false);
+                break;
+            default:
+                throw new TestkitException("Un support cache-stats action, " + action);
+        }
+        String by = params.get("by");
+        if (by != null && !by.isEmpty() && !"cache".equals(by) && !"method".equals(by)) {
+            throw new TestkitException("illegal cache-stats by, " + by);
+        }
+        Integer limit;
+        try {
+            limit = optional(params.get("limit"), Integer::valueOf);
+        } catch (NumberFormatException e) {
+            throw new TestkitException("illegal cache-stats limit, " + params.get("limit"));
+        }
+        return CacheMetricsRegistry.snapshot(by, params.get("sortBy"), params.get("filter"), limit == null ? 50 : limit);
+    }
+
+    private static String profilerLink(Req req, TraceInfo traceInfo) {
+        return "binary".equals(req.getTraceFormat()) ? traceInfo.toProfilerBinary() : traceInfo.toProfilerString();
+    }
+
+    /**
+     * 链路里检测到的 N+1、重复查询、可合并的单行查询,同时也在根节点摘要里
+     */
+    private static void putSqlFindings(Map<String, String> profile, TraceInfo traceInfo) {
+        String findings = MybatisRepeatDetector.findings(traceInfo);
+        if (findings != null) {
+            profile.put("sqlFindings", findings);
+        }
+    }
+
+    private static <T> T optional(String value, Function<String, T> parser) {
+        return value == null || value.trim().isEmpty() ? null : parser.apply(value.trim());
+    }
+
+    private static int parseTimeout(String timeoutStr) {
+        int timeout = 86400;
+        if (timeoutStr != null && !timeoutStr.isEmpty()) {
+            timeout = Integer.parseInt(timeoutStr);
+        }
+        return timeout;
+    }
+
+    private Ret submitTask(TestkitTool testkitTool, Req req, long begin) {
+        String reqId = TaskManager.generateRandomString(16);
+        try {
+            TaskManager.startTask(reqId, new Callable<Ret>() {
+                @Override
+                public Ret call() throws Exception {
+                    return processReq(testkitTool, reqId, req);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log("[operator:" + req.getOperator() + "] " + "[reqId:" + reqId + "] Testkit submitReq rejected method:" + req.getMethod(), null);
+            return Ret.fail("testkit task pool is busy, request rejected, " + e.getMessage(), (int) (System.currentTimeMillis() - begin));
+        }
+        Ret ret = Ret.success(reqId, (int) (System.currentTimeMillis() - begin));
+        log("[operator:" + req.getOperator() + "] " + "[reqId:" + reqId + "] Testkit submitReq method:" + req.getMethod(), null);
+        return ret;
+    }
 
     private Ret processReq(TestkitTool testkitTool, String reqId, Req req) {
         Class interceptorType = null;
@@ -387,27 +713,41 @@ public class TestkitServer {
 
             begin = System.currentTimeMillis();
             if (req.isTrace() && enableTrace) {
-                testkitTraceInfo = startTrace(reqId, req, params, profile);
+                testkitTraceInfo = startTrace(reqId, req, params, profile, traceSpanResource);
             }
+            ResourceMeter meter = null;
             try {
                 PrepareRet prepare = testkitTool.prepare(params);
 
                 begin = System.currentTimeMillis();
+                meter = resourceProfile ? ResourceMeter.begin() : null;
                 ret = prepare.execute();
+                if (meter != null) {
+                    profile.putAll(meter.end());
+                    meter = null;
+                }
                 if (req.isTrace() && enableTrace) {
-                    profile.put("link", testkitTraceInfo.stepOut(ret, null).toProfilerString());
+                    profile.put("link", profilerLink(req, testkitTraceInfo.stepOut(ret, null)));
                     profile.put("cost", String.valueOf((System.currentTimeMillis() - begin)));
+                    putSqlFindings(profile, testkitTraceInfo);
                 }
                 return Ret.success(ret, (int) (System.currentTimeMillis() - begin), profile);
             } catch (Throwable e) {
+                if (meter != null) {
+                    profile.putAll(meter.end());
+                }
                 if (req.isTrace() && enableTrace) {
-                    profile.put("link", testkitTraceInfo.stepOut(null, e).toProfilerString());
+                    profile.put("link", profilerLink(req, testkitTraceInfo.stepOut(null, e)));
                     profile.put("cost", String.valueOf((System.currentTimeMillis() - begin)));
+                    putSqlFindings(profile, testkitTraceInfo);
                 }
                 throw e;
             } finally {
                 if (profile.containsKey("link")) {
-                    log("TRACE_PROFILER - " + profile.get("link"), null);
+                    // 日志里始终是文本
+                    String link = profile.get("link");
+                    log("TRACE_PROFILER - " + (TraceCodec.isBinary(link) ? testkitTraceInfo.toProfilerString() : link), null);
+                    TraceAggregator.merge(testkitTraceInfo);
                 }
             }
         } catch (Throwable e) {
@@ -430,7 +770,7 @@ public class TestkitServer {
         }
     }
 
-    private static TraceInfo startTrace(String reqId, Req req, Map<String, String> params, Map<String, String> profile) {
+    private static TraceInfo startTrace(String reqId, Req req, Map<String, String> params, Map<String, String> profile, boolean meterSpans) {
         TraceInfo testkitTraceInfo;
         String biz = "unknown";
         String action = "unknown";
@@ -455,7 +795,7 @@ public class TestkitServer {
                 break;
         }
 
-        testkitTraceInfo = TraceInfo.buildRoot(reqId, req.getMethod(), biz, action).stepIn();
+        testkitTraceInfo = TraceInfo.buildRoot(reqId, req.getMethod(), biz, action, meterSpans).stepIn();
         profile.put("req_id", testkitTraceInfo.getReqid());
         return testkitTraceInfo;
     }
@@ -497,17 +837,6 @@ public class TestkitServer {
         return sw.toString();
     }
 
-    private static String readInputStream(InputStream inputStream) throws IOException {
-        StringBuilder result = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                result.append(line);
-            }
-        }
-        return result.toString();
-    }
-
     private static void returnError(HttpExchange exchange, String message) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
         Ret ret = new Ret();
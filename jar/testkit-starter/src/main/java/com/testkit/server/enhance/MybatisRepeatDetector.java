@@ -0,0 +1,160 @@
+package com.testkit.server.enhance;
+
+import com.testkit.trace.TraceInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单条链路内的重复 sql 检测,每个 mybatis span 结束时增量更新,只保留按语句汇总的计数和参数指纹,不持有 span
+ * 链路序列化时输出为根节点摘要:
+ * _sql_n_plus_one  同一语句不同参数执行多次,典型的循环里查库
+ * _sql_duplicate   同一语句相同参数执行多次,缺少缓存
+ * _sql_batchable   同一语句不同参数连续多次单行查询,可以改成 in 批量查询
+ * 值为逗号分隔的 biz.action*次数(说明),按次数倒序最多 5 个
+ */
+public final class MybatisRepeatDetector implements TraceInfo.RootSummary {
+
+    static final String KEY = "mybatis-repeat";
+
+    private static final int N_PLUS_ONE_THRESHOLD = 5;
+    private static final int DUPLICATE_THRESHOLD = 3;
+    private static final int BATCHABLE_THRESHOLD = 3;
+    private static final int TOP = 5;
+    /**
+     * 每个语句最多记录的参数指纹数,超过后只计数
+     */
+    private static final int MAX_FINGERPRINTS = 512;
+    private static final int MAX_STATEMENTS = 256;
+
+    private final Map<String, Stat> stats = new HashMap<>();
+    private Stat last;
+    private long lastFingerprint;
+    private int run;
+
+    /**
+     * @param name        biz.action
+     * @param fingerprint sql 文本和参数值的指纹
+     * @param singleRow   是否是返回 0 或 1 行的查询
+     */
+    static void record(TraceInfo span, String name, long fingerprint, boolean singleRow) {
+        TraceInfo.RootSummary summary = span.getSummary(KEY);
+        if (summary == null) {
+            summary = span.putSummaryIfAbsent(KEY, new MybatisRepeatDetector());
+        }
+        if (summary instanceof MybatisRepeatDetector) {
+            ((MybatisRepeatDetector) summary).record(name, fingerprint, singleRow);
+        }
+    }
+
+    /**
+     * 返回给插件的检测结果,没有发现时返回 null
+     */
+    public static String findings(TraceInfo root) {
+        TraceInfo.RootSummary summary = root.getSummary(KEY);
+        if (!(summary instanceof MybatisRepeatDetector)) {
+            return null;
+        }
+        List<TraceInfo.Digest> digests = new ArrayList<>();
+        summary.appendDigests(digests);
+        if (digests.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (TraceInfo.Digest digest : digests) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(digest.getK().substring(1)).append(": ").append(digest.getV());
+        }
+        return sb.toString();
+    }
+
+    private synchronized void record(String name, long fingerprint, boolean singleRow) {
+        Stat stat = stats.get(name);
+        if (stat == null) {
+            if (stats.size() >= MAX_STATEMENTS) {
+                return;
+            }
+            stat = new Stat(name);
+            stats.put(name, stat);
+        }
+        stat.count++;
+        Integer seen = stat.fingerprints.get(fingerprint);
+        if (seen != null) {
+            stat.fingerprints.put(fingerprint, seen + 1);
+            stat.maxSame = Math.max(stat.maxSame, seen + 1);
+        } else if (stat.fingerprints.size() < MAX_FINGERPRINTS) {
+            stat.fingerprints.put(fingerprint, 1);
+            stat.maxSame = Math.max(stat.maxSame, 1);
+        } else {
+            stat.overflow++;
+        }
+        // 同一语句不同参数的连续单行查询,中间插入其他语句就断开,相同参数算重复查询
+        if (singleRow && stat == last && fingerprint != lastFingerprint) {
+            run++;
+        } else {
+            run = singleRow ? 1 : 0;
+        }
+        last = stat;
+        lastFingerprint = fingerprint;
+        stat.maxRun = Math.max(stat.maxRun, run);
+    }
+
+    @Override
+    public synchronized void appendDigests(List<TraceInfo.Digest> digests) {
+        List<String> nPlusOne = new ArrayList<>();
+        List<String> duplicate = new ArrayList<>();
+        List<String> batchable = new ArrayList<>();
+        for (Stat stat : sorted()) {
+            int distinct = stat.fingerprints.size() + stat.overflow;
+            if (stat.count >= N_PLUS_ONE_THRESHOLD && distinct >= N_PLUS_ONE_THRESHOLD && nPlusOne.size() < TOP) {
+                nPlusOne.add(stat.name + "*" + stat.count + "(distinct " + distinct + ")");
+            }
+            if (stat.maxSame >= DUPLICATE_THRESHOLD && duplicate.size() < TOP) {
+                duplicate.add(stat.name + "*" + stat.count + "(same params " + stat.maxSame + ")");
+            }
+            if (stat.maxRun >= BATCHABLE_THRESHOLD && batchable.size() < TOP) {
+                batchable.add(stat.name + "*" + stat.count + "(single row run " + stat.maxRun + ")");
+            }
+        }
+        if (!nPlusOne.isEmpty()) {
+            digests.add(new TraceInfo.Digest("_sql_n_plus_one", String.join(",", nPlusOne)));
+        }
+        if (!duplicate.isEmpty()) {
+            digests.add(new TraceInfo.Digest("_sql_duplicate", String.join(",", duplicate)));
+        }
+        if (!batchable.isEmpty()) {
+            digests.add(new TraceInfo.Digest("_sql_batchable", String.join(",", batchable)));
+        }
+    }
+
+    private List<Stat> sorted() {
+        List<Stat> list = new ArrayList<>(stats.values());
+        Collections.sort(list, new Comparator<Stat>() {
+            @Override
+            public int compare(Stat a, Stat b) {
+                return Integer.compare(b.count, a.count);
+            }
+        });
+        return list;
+    }
+
+    private static class Stat {
+        private final String name;
+        private final Map<Long, Integer> fingerprints = new LinkedHashMap<>();
+        private int count;
+        private int overflow;
+        private int maxSame;
+        private int maxRun;
+
+        private Stat(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.testkit.server.enhance;
+
+import com.testkit.server.LatencyHistogram;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * mybatis 语句统计,按 MappedStatement.getId() 汇总次数、耗时分布、行数、错误数和最慢的几组参数
+ * 只要 mybatis 拦截器生效就一直记录,与是否在链路里无关; 记录只做计数器累加和一次直方图自增,
+ * 只有耗时进入最慢 top 时才渲染参数
+ * 通过 testkit server 的 sql-stats 方法查询
+ */
+public final class SqlStatsRegistry {
+
+    private static final int MAX_STATEMENTS = 1024;
+    private static final int SLOW_SAMPLES = 5;
+    private static final int MAX_PARAMS_LENGTH = 1024;
+
+    private static final Map<String, SqlStats> STATS = new ConcurrentHashMap<>();
+
+    /**
+     * 超过语句数上限后新语句都计入这里
+     */
+    private static final SqlStats OTHER = new SqlStats("(other)");
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean installed;
+    private static volatile long since = System.currentTimeMillis();
+
+    private SqlStatsRegistry() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * 拦截器已经插入 mybatis 时为 true,否则不会有数据
+     */
+    public static boolean isInstalled() {
+        return installed;
+    }
+
+    static void installed() {
+        installed = true;
+    }
+
+    static SqlStats stats(String id) {
+        SqlStats stats = STATS.get(id);
+        if (stats != null) {
+            return stats;
+        }
+        if (STATS.size() >= MAX_STATEMENTS) {
+            return OTHER;
+        }
+        SqlStats created = new SqlStats(id);
+        stats = STATS.putIfAbsent(id, created);
+        return stats == null ? created : stats;
+    }
+
+    /**
+     * 原地清零,拦截器持有的引用继续有效
+     */
+    public static void reset() {
+        for (SqlStats stats : STATS.values()) {
+            stats.reset();
+        }
+        OTHER.reset();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * @param sortBy total/count/avg/max/p99/errors/rows,默认 total
+     * @param filter 语句 id 包含该字符串,空表示全部
+     * @param limit  最多返回的语句数
+     */
+    public static Map<String, Object> snapshot(String sortBy, String filter, int limit) {
+        final String sort = sortBy == null || sortBy.trim().isEmpty() ? "total" : sortBy.trim();
+        List<SqlStats> list = new ArrayList<>();
+        for (SqlStats stats : STATS.values()) {
+            if (stats.latency.getCount() > 0 && (filter == null || filter.isEmpty() || stats.id.contains(filter))) {
+                list.add(stats);
+            }
+        }
+        if (OTHER.latency.getCount() > 0) {
+            list.add(OTHER);
+        }
+        final Map<SqlStats, Double> keys = new LinkedHashMap<>();
+        for (SqlStats stats : list) {
+            keys.put(stats, stats.sortKey(sort));
+        }
+        Collections.sort(list, new Comparator<SqlStats>() {
+            @Override
+            public int compare(SqlStats a, SqlStats b) {
+                return Double.compare(keys.get(b), keys.get(a));
+            }
+        });
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("installed", installed);
+        map.put("since", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(since)));
+        map.put("statements", list.size());
+        map.put("sortBy", sort);
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < list.size() && i < limit; i++) {
+            rows.add(list.get(i).toMap());
+        }
+        map.put("stats", rows);
+        return map;
+    }
+
+    static final class SqlStats {
+
+        private final String id;
+        /**
+         * 微秒
+         */
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final Sample[] slowest = new Sample[SLOW_SAMPLES];
+        /**
+         * 最慢 top 已满时其中最快的耗时,低于它的调用不需要渲染参数
+         */
+        private volatile long slowThreshold;
+
+        private SqlStats(String id) {
+            this.id = id;
+        }
+
+        void record(long nanos, Integer row, boolean error) {
+            latency.record(nanos / 1000);
+            if (row != null) {
+                rows.add(row);
+            }
+            if (error) {
+                errors.increment();
+            }
+        }
+
+        boolean isSlowCandidate(long nanos) {
+            return nanos > slowThreshold;
+        }
+
+        synchronized void sample(long nanos, String params, String reqId) {
+            int slot = -1;
+            for (int i = 0; i < slowest.length; i++) {
+                if (slowest[i] == null) {
+                    slot = i;
+                    break;
+                }
+                if (slot == -1 || slowest[i].nanos < slowest[slot].nanos) {
+                    slot = i;
+                }
+            }
+            if (slowest[slot] != null && slowest[slot].nanos >= nanos) {
+                return;
+            }
+            if (params != null && params.length() > MAX_PARAMS_LENGTH) {
+                params = params.substring(0, MAX_PARAMS_LENGTH) + "...";
+            }
+            slowest[slot] = new Sample(nanos, System.currentTimeMillis(), params, reqId);
+            long min = Long.MAX_VALUE;
+            for (Sample sample : slowest) {
+                if (sample == null) {
+                    return;
+                }
+                min = Math.min(min, sample.nanos);
+            }
+            slowThreshold = min;
+        }
+
+        synchronized void reset() {
+            latency.reset();
+            errors.reset();
+            rows.reset();
+            for (int i = 0; i < slowest.length; i++) {
+                slowest[i] = null;
+            }
+            slowThreshold = 0;
+        }
+
+        private double sortKey(String sortBy) {
+            switch (sortBy) {
+                case "count":
+                    return latency.getCount();
+                case "avg":
+                    return latency.getMean();
+                case "max":
+                    return latency.getMax();
+                case "p99":
+                    return latency.percentile(99);
+                case "errors":
+                    return errors.sum();
+                case "rows":
+                    return rows.sum();
+                default:
+                    return latency.getSum();
+            }
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            long count = latency.getCount();
+            map.put("id", id);
+            map.put("count", count);
+            map.put("errors", errors.sum());
+            map.put("totalMs", Math.round(latency.getSum() / 1000d));
+            Map<String, Object> snapshot = latency.snapshot(1000);
+            snapshot.remove("count");
+            map.put("latencyMs", snapshot);
+            map.put("rows", rows.sum());
+            map.put("avgRows", count == 0 ? 0 : Math.round(rows.sum() * 100d / count) / 100d);
+            List<Sample> samples = new ArrayList<>();
+            synchronized (this) {
+                for (Sample sample : slowest) {
+                    if (sample != null) {
+                        samples.add(sample);
+                    }
+                }
+            }
+            Collections.sort(samples, new Comparator<Sample>() {
+                @Override
+                public int compare(Sample a, Sample b) {
+                    return Long.compare(b.nanos, a.nanos);
+                }
+            });
+            List<Map<String, Object>> slow = new ArrayList<>();
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            for (Sample sample : samples) {
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("costMs", Math.round(sample.nanos / 1000d) / 1000d);
+                item.put("time", format.format(new Date(sample.time)));
+                item.put("params", sample.params);
+                item.put("reqId", sample.reqId);
+                slow.add(item);
+            }
+            map.put("slowest", slow);
+            return map;
+        }
+    }
+
+    private static final class Sample {
+        private final long nanos;
+        private final long time;
+        private final String params;
+        private final String reqId;
+
+        private Sample(long nanos, long time, String params, String reqId) {
+            this.nanos = nanos;
+            this.time = time;
+            this.params = params;
+            this.reqId = reqId;
+        }
+    }
+}
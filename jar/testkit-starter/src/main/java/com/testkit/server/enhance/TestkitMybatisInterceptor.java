@@ -1,25 +1,30 @@
 package com.testkit.server.enhance;
 
 import com.testkit.trace.TraceInfo;
+import com.testkit.trace.TraceSink;
 import com.testkit.server.ReflexUtils;
 import org.apache.ibatis.cache.CacheKey;
 import org.apache.ibatis.executor.Executor;
 import org.apache.ibatis.mapping.*;
 import org.apache.ibatis.plugin.*;
+import org.apache.ibatis.builder.StaticSqlSource;
 import org.apache.ibatis.reflection.ArrayUtil;
-import org.apache.ibatis.reflection.DefaultReflectorFactory;
 import org.apache.ibatis.reflection.MetaObject;
-import org.apache.ibatis.reflection.SystemMetaObject;
+import org.apache.ibatis.scripting.defaults.RawSqlSource;
+import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
 
 import java.sql.Array;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 拦截所有 select(不包含流式查询) update insert delete
  * 摘要记录
+ * 不在链路里的语句也会记录统计,见 SqlStatsRegistry
+ * 链路里的语句按参数指纹做 N+1/重复查询检测,见 MybatisRepeatDetector
  * 自配置实现部分场景模拟mybatis格式输出sql可用于常见工具解析mybatis日志sql
  * 建议此插件放在插件列表最前面
  *
@@ -32,6 +37,22 @@ import java.util.*;
 })
 public class TestkitMybatisInterceptor implements Interceptor {
 
+    private static final int MAX_STATEMENTS = 8192;
+
+    /**
+     * 动态 sql 每个 statement 缓存的不同 sql 文本数
+     */
+    private static final int MAX_SQL_VARIANTS = 32;
+
+    /**
+     * MappedStatement 没有重写 equals/hashCode,按实例缓存
+     */
+    private static final Map<MappedStatement, StatementInfo> STATEMENTS = new ConcurrentHashMap<>();
+
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private static final Object OUT_PARAMETER = new Object();
+
     private static final TestkitMybatisInterceptor bean = new TestkitMybatisInterceptor();
 
     private static final TestkitMybatisInterceptor sqlBean = new TestkitMybatisInterceptor(true);
@@ -62,70 +83,142 @@ public class TestkitMybatisInterceptor implements Interceptor {
         if (args.length < 2 || !(args[0] instanceof MappedStatement)) {
             return invocation.proceed();
         }
+        MappedStatement statement = (MappedStatement) args[0];
+        StatementInfo info = statementInfo(statement);
         TraceInfo current = TraceInfo.getCurrent();
         if (current == null) {
-            return invocation.proceed();
+            // 不在链路里时只统计
+            return proceed(invocation, statement, info, args, null);
         }
-        MappedStatement statement = (MappedStatement) args[0];
-        String biz;
-        String action;
-        try {
-//            应该不会有重复的
-            String id = statement.getId();
-            String[] split = id.split("\\.");
-            biz = split[split.length - 2];
-            action = split[split.length - 1];
-        } catch (Throwable e) {
-            biz = statement.getSqlCommandType().toString();
-            action = statement.getId();
+        current = TraceInfo.open(current, "mybatis", info.biz, info.action);
+        if (current == null) {
+            // 超过 span 预算,只计数
+            try {
+                return proceed(invocation, statement, info, args, null);
+            } finally {
+                TraceInfo.skipOut();
+            }
         }
-        current = new TraceInfo(current, "mybatis", biz, action).stepIn();
+        current.stepIn();
         try {
-            Object result = invocation.proceed();
-            Integer row = null;
+            Object result = proceed(invocation, statement, info, args, current);
+            Integer row = rows(statement, result);
             Boolean cachedQuery = false;
             if (statement.getSqlCommandType() == SqlCommandType.SELECT) {
-                if (result instanceof Collection) {
-                    row = ((Collection<?>) result).size();
-                } else if (result != null) {
-                    row = 1;
-                }
 //                    缓存sql
                 cachedQuery = args.length == 6 && args[4] instanceof CacheKey && args[5] instanceof BoundSql;
-            } else if (statement.getSqlCommandType() == SqlCommandType.UPDATE) {
-                if (result instanceof Number) {
-                    row = ((Number) result).intValue();
-                }
-            } else if (statement.getSqlCommandType() == SqlCommandType.INSERT) {
-                if (result instanceof Number) {
-                    row = ((Number) result).intValue();
-                }
-            } else if (statement.getSqlCommandType() == SqlCommandType.DELETE) {
-                if (result instanceof Number) {
-                    row = ((Number) result).intValue();
-                }
             }
-            List<TraceInfo.Digest> digests = new ArrayList<>();
+            // 摘要、重复检测和完整 sql 共用一个 BoundSql,静态 sql 不输出完整 sql 时不需要
+            BoundSql boundSql = boundSql(statement, info, args, sql);
+            boolean fromArgs = fromArgs(args);
+            List<TraceInfo.Digest> digests = new ArrayList<>(3);
             digests.add(new TraceInfo.Digest("row", row == null ? null : row.toString()));
             digests.add(new TraceInfo.Digest("cachedQuery", cachedQuery.toString()));
-            digests.add(new TraceInfo.Digest("sql", buildPreparedSql(statement, args)));
-            System.err.println(current.stepOut(result, null, null, digests));
+            digests.add(new TraceInfo.Digest("sql", buildPreparedSql(info, boundSql, fromArgs)));
+            detectRepeat(current, statement, info, boundSql, fromArgs, args[1], row);
+            TraceSink.span(current.stepOut(result, null, null, digests));
             if (sql) {
-                System.err.println(buildSql(result, statement, args, row));
+                TraceSink.line(buildSql(result, statement, info, boundSql, fromArgs, args[1], row));
             }
 
             return result;
         } catch (Throwable e) {
-            List<TraceInfo.Digest> digests = new ArrayList<>();
-            digests.add(new TraceInfo.Digest("sql", buildPreparedSql(statement, args)));
-            System.err.println(current.stepOut(null, e,null,digests));
+            List<TraceInfo.Digest> digests = new ArrayList<>(1);
+            digests.add(new TraceInfo.Digest("sql", buildPreparedSql(info, boundSql(statement, info, args, false), fromArgs(args))));
+            TraceSink.span(current.stepOut(null, e,null,digests));
             throw e;
         }
     }
 
+    /**
+     * 执行并记录语句统计,只有进入最慢 top 的调用才渲染参数
+     */
+    private Object proceed(Invocation invocation, MappedStatement statement, StatementInfo info, Object[] args, TraceInfo span) throws Throwable {
+        if (!SqlStatsRegistry.isEnabled()) {
+            return invocation.proceed();
+        }
+        long begin = System.nanoTime();
+        Object result = null;
+        boolean error = true;
+        try {
+            result = invocation.proceed();
+            error = false;
+            return result;
+        } finally {
+            long nanos = System.nanoTime() - begin;
+            try {
+                info.stats.record(nanos, error ? null : rows(statement, result), error);
+                if (info.stats.isSlowCandidate(nanos)) {
+                    info.stats.sample(nanos, renderParameters(statement, args), span == null ? null : span.getReqid());
+                }
+            } catch (Throwable ignore) {
+            }
+        }
+    }
+
+    private static Integer rows(MappedStatement statement, Object result) {
+        if (statement.getSqlCommandType() == SqlCommandType.SELECT) {
+            if (result instanceof Collection) {
+                return ((Collection<?>) result).size();
+            }
+            return result != null ? 1 : null;
+        }
+        if (statement.getSqlCommandType() == SqlCommandType.UPDATE
+                || statement.getSqlCommandType() == SqlCommandType.INSERT
+                || statement.getSqlCommandType() == SqlCommandType.DELETE) {
+            if (result instanceof Number) {
+                return ((Number) result).intValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按 sql 文本和参数值的指纹记录到根节点的重复检测里,只累加计数不持有 span
+     * boundSql 为 null 时是静态 sql,用缓存的文本和 parameterMappings
+     */
+    private static void detectRepeat(TraceInfo span, MappedStatement statement, StatementInfo info, BoundSql boundSql, boolean fromArgs, Object parameter, Integer row) {
+        try {
+            long fingerprint;
+            Object[] values;
+            if (boundSql != null) {
+                fingerprint = info.text(boundSql, fromArgs).log.hashCode();
+                values = parameterValues(statement, boundSql.getParameterMappings(), boundSql, parameter);
+            } else if (info.staticText != null) {
+                fingerprint = info.staticText.log.hashCode();
+                values = parameterValues(statement, info.staticMappings, null, parameter);
+            } else {
+                return;
+            }
+            for (Object value : values) {
+                if (value != OUT_PARAMETER) {
+                    fingerprint = fingerprint * 1000003L + (value == null ? 0 : value.hashCode());
+                }
+            }
+            boolean singleRow = statement.getSqlCommandType() == SqlCommandType.SELECT && (row == null || row <= 1);
+            MybatisRepeatDetector.record(span, info.biz + "." + info.action, fingerprint, singleRow);
+        } catch (Throwable ignore) {
+        }
+    }
+
+    private String renderParameters(MappedStatement statement, Object[] args) {
+        BoundSql boundSql = boundSql(statement, args);
+        if (boundSql == null) {
+            return null;
+        }
+        try {
+            StringBuilder sb = new StringBuilder();
+            appendParameterValues(sb, statement, boundSql, args[1]);
+            return sb.toString();
+        } catch (Throwable e) {
+            return "render error:" + e;
+        }
+    }
+
 
     @Override
     public Object plugin(Object target) {
+        SqlStatsRegistry.installed();
         return Plugin.wrap(target, this);
     }
 
@@ -133,20 +226,57 @@ public class TestkitMybatisInterceptor implements Interceptor {
     public void setProperties(Properties properties) {
     }
 
+    private static StatementInfo statementInfo(MappedStatement statement) {
+        StatementInfo info = STATEMENTS.get(statement);
+        if (info != null) {
+            return info;
+        }
+        info = new StatementInfo(statement);
+        if (STATEMENTS.size() >= MAX_STATEMENTS) {
+            // 正常应用的 statement 数量有限,超过说明在反复创建,不再缓存
+            return info;
+        }
+        StatementInfo exist = STATEMENTS.putIfAbsent(statement, info);
+        return exist == null ? info : exist;
+    }
 
-    protected String buildPreparedSql(MappedStatement statement, Object[] args) {
+    /**
+     * 带缓存的 query 方法直接用参数里的 BoundSql,其他 update 或 query 方法重新生成
+     */
+    private static BoundSql boundSql(MappedStatement statement, Object[] args) {
         try {
-            BoundSql boundSql;
-            if (args.length == 6) {
-                // 带缓存的 query 方法
-                boundSql = (BoundSql) args[5];
-            } else {
-                // 其他 update 或 query 方法
-                boundSql = statement.getBoundSql(args[1]);
+            if (fromArgs(args)) {
+                return (BoundSql) args[5];
             }
-            // 从 BoundSql 实例中获取 SQL 语句 sql简单去除换行
-            String removed = removeBreakingWhitespace(boundSql.getSql());
-            return removed.replace(";", "英文分号");
+            return statement.getBoundSql(args[1]);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /**
+     * 参数里的 BoundSql 总是直接用,可能被其他插件改写过(如分页插件追加 limit)
+     * 没有时静态 sql 已缓存且不需要完整 sql 的情况返回 null,不重新生成
+     */
+    private static BoundSql boundSql(MappedStatement statement, StatementInfo info, Object[] args, boolean required) {
+        if (!required && !fromArgs(args) && info.staticText != null) {
+            return null;
+        }
+        return boundSql(statement, args);
+    }
+
+    private static boolean fromArgs(Object[] args) {
+        return args.length == 6 && args[5] instanceof BoundSql;
+    }
+
+    /**
+     * @param boundSql 为 null 时使用静态 sql 的缓存
+     * @param fromArgs boundSql 是否来自参数
+     */
+    protected String buildPreparedSql(StatementInfo info, BoundSql boundSql, boolean fromArgs) {
+        try {
+            SqlText text = boundSql == null ? info.staticText : info.text(boundSql, fromArgs);
+            return text == null ? null : text.digest;
         } catch (Exception e) {
             return null;
         }
@@ -156,25 +286,20 @@ public class TestkitMybatisInterceptor implements Interceptor {
      * 构建sql输出
      *
      * @param statement
-     * @param args
+     * @param boundSql
+     * @param parameter
      * @param row
      * @return
      */
-    protected String buildSql(Object result, MappedStatement statement, Object[] args, Integer row) {
+    protected String buildSql(Object result, MappedStatement statement, StatementInfo info, BoundSql boundSql, boolean fromArgs, Object parameter, Integer row) {
+        if (boundSql == null) {
+            return null;
+        }
         try {
-            // 获取 BoundSql 对象，包含 SQL 语句和参数映射信息
-            BoundSql boundSql;
-            if (args.length == 6) {
-                // 带缓存的 query 方法
-                boundSql = (BoundSql) args[5];
-            } else {
-                // 其他 update 或 query 方法
-                boundSql = statement.getBoundSql(args[1]);
-            }
 //        count 特殊处理
             Number count = null;
             // 从 BoundSql 实例中获取 SQL 语句 sql简单去除换行
-            String sql = removeBreakingWhitespace(boundSql.getSql());
+            String sql = info.text(boundSql, fromArgs).log;
             if (row != null && row == 1 && result instanceof List && ((List<?>) result).size() == 1 && ((List<?>) result).get(0) instanceof Number) {
                 //          兼容pageHelper
                 if (sql.startsWith("select count(")
@@ -187,12 +312,17 @@ public class TestkitMybatisInterceptor implements Interceptor {
                 }
             }
 
+            StringBuilder sb = new StringBuilder(sql.length() + 128);
+            sb.append("\n==>  Preparing: ").append(sql).append("\n").append("==> Parameters: ");
             // 获取参数值
-            String parameterValues = getParameterValues(boundSql, args[1]);
-
-            String countStr = count == null ? "" : ("\n<==        Row: " + count);
-            String rowStr = row == null ? "" : statement.getSqlCommandType() == SqlCommandType.SELECT ? ("\n<==      Total: " + row) : ("\n<==    Updates: " + row);
-            return "\n==>  Preparing: " + sql + "\n" + "==> Parameters: " + parameterValues + countStr + rowStr + "\n";
+            appendParameterValues(sb, statement, boundSql, parameter);
+            if (count != null) {
+                sb.append("\n<==        Row: ").append(count);
+            }
+            if (row != null) {
+                sb.append(statement.getSqlCommandType() == SqlCommandType.SELECT ? "\n<==      Total: " : "\n<==    Updates: ").append(row);
+            }
+            return sb.append("\n").toString();
         } catch (Throwable ignore) {
             return null;
         }
@@ -204,57 +334,94 @@ public class TestkitMybatisInterceptor implements Interceptor {
      *
      * @param boundSql
      * @param parameter
-     * @return
      */
-    private String getParameterValues(BoundSql boundSql, Object parameter) {
-        List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
-        if (parameterMappings == null) {
-            return "";
-        }
-        StringBuilder parameterValues = new StringBuilder();
-        for (int i = 0; i < parameterMappings.size(); i++) {
-            ParameterMapping parameterMapping = parameterMappings.get(i);
-            if (parameterMapping.getMode() != ParameterMode.OUT) {
-                Object value = null;
-                String propertyName = parameterMapping.getProperty();
-                if (boundSql.hasAdditionalParameter(propertyName)) {
-                    value = boundSql.getAdditionalParameter(propertyName);
-                } else if (parameter != null) {
-                    MetaObject metaObject = MetaObject.forObject(parameter, SystemMetaObject.DEFAULT_OBJECT_FACTORY, SystemMetaObject.DEFAULT_OBJECT_WRAPPER_FACTORY, new DefaultReflectorFactory());
-                    value = metaObject.getValue(propertyName);
-                }
+    private void appendParameterValues(StringBuilder sb, MappedStatement statement, BoundSql boundSql, Object parameter) {
+        Object[] values = parameterValues(statement, boundSql.getParameterMappings(), boundSql, parameter);
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value == OUT_PARAMETER) {
+                continue;
+            }
+            // 将参数值添加到 StringBuilder 中
+            if (i > 0) {
+                sb.append(", ");
+            }
 
-                // 将参数值添加到 StringBuilder 中
-                if (i > 0) {
-                    parameterValues.append(", ");
-                }
+            if (value == null) {
+                sb.append("null");
+            } else {
+                sb.append(objectValueString(value)).append("(").append(value.getClass().getSimpleName()).append(")");
+            }
+        }
+    }
 
-                if (value == null) {
-                    parameterValues.append("null");
-                } else {
-                    parameterValues.append(objectValueString(value)).append("(").append(value.getClass().getSimpleName()).append(")");
+    /**
+     * 按 parameterMappings 顺序取参数值,OUT 参数为 OUT_PARAMETER
+     * 取值方式同 org.apache.ibatis.scripting.defaults.DefaultParameterHandler,MetaObject 每次调用只创建一个,
+     * 使用 Configuration 里共享的 ReflectorFactory
+     *
+     * @param boundSql 为 null 时没有 additional parameter(静态 sql)
+     */
+    private static Object[] parameterValues(MappedStatement statement, List<ParameterMapping> parameterMappings, BoundSql boundSql, Object parameter) {
+        if (parameterMappings == null || parameterMappings.isEmpty()) {
+            return NO_VALUES;
+        }
+        Configuration configuration = statement.getConfiguration();
+        MetaObject metaObject = null;
+        Object[] values = new Object[parameterMappings.size()];
+        for (int i = 0; i < values.length; i++) {
+            ParameterMapping parameterMapping = parameterMappings.get(i);
+            if (parameterMapping.getMode() == ParameterMode.OUT) {
+                values[i] = OUT_PARAMETER;
+                continue;
+            }
+            String propertyName = parameterMapping.getProperty();
+            if (boundSql != null && boundSql.hasAdditionalParameter(propertyName)) {
+                values[i] = boundSql.getAdditionalParameter(propertyName);
+            } else if (parameter == null) {
+                values[i] = null;
+            } else if (configuration.getTypeHandlerRegistry().hasTypeHandler(parameter.getClass())) {
+                // 单个简单类型参数
+                values[i] = parameter;
+            } else {
+                if (metaObject == null) {
+                    metaObject = configuration.newMetaObject(parameter);
                 }
+                values[i] = metaObject.getValue(propertyName);
             }
         }
-        return parameterValues.toString();
+        return values;
     }
 
 
     /**
-     * 去除sql中的换行
-     * copy from mybatis
+     * 去除sql中的换行,结果与 mybatis 用 StringTokenizer 拼接的一致(每个片段后面跟一个空格)
+     * 单次遍历,只分配一次
      *
      * @param original
      * @return
      */
-    private String removeBreakingWhitespace(String original) {
-        StringTokenizer whitespaceStripper = new StringTokenizer(original);
-        StringBuilder builder = new StringBuilder();
-        while (whitespaceStripper.hasMoreTokens()) {
-            builder.append(whitespaceStripper.nextToken());
-            builder.append(" ");
+    static String removeBreakingWhitespace(String original) {
+        int length = original.length();
+        char[] chars = new char[length + 1];
+        int size = 0;
+        boolean inToken = false;
+        for (int i = 0; i < length; i++) {
+            char c = original.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                if (inToken) {
+                    chars[size++] = ' ';
+                    inToken = false;
+                }
+            } else {
+                chars[size++] = c;
+                inToken = true;
+            }
         }
-        return builder.toString();
+        if (inToken) {
+            chars[size++] = ' ';
+        }
+        return new String(chars, 0, size);
     }
 
     /**
@@ -277,7 +444,7 @@ public class TestkitMybatisInterceptor implements Interceptor {
             } catch (Throwable e) {
                 return value.toString();
             }
-        } else if (value instanceof Enum || value.getClass().getPackage().getName().startsWith("java.")) {
+        } else if (value instanceof Enum || value.getClass().getName().startsWith("java.")) {
             return value.toString();
         }
         try {
@@ -286,4 +453,88 @@ public class TestkitMybatisInterceptor implements Interceptor {
             return value.toString();
         }
     }
+
+    /**
+     * 每个 MappedStatement 只解析一次的信息
+     */
+    protected static class StatementInfo {
+        private final String biz;
+        private final String action;
+        /**
+         * 静态 sql(RawSqlSource/StaticSqlSource)的文本与参数无关,第一次生成后直接使用
+         * 只从 statement.getBoundSql 生成的 BoundSql 缓存,参数里的 BoundSql 可能被插件改写过
+         */
+        private final boolean staticSql;
+        /**
+         * 静态 sql 的 parameterMappings 同样固定,先于 staticText 写入
+         */
+        private volatile List<ParameterMapping> staticMappings;
+        private volatile SqlText staticText;
+        private final Map<String, SqlText> variants = new ConcurrentHashMap<>();
+        private final SqlStatsRegistry.SqlStats stats;
+
+        private StatementInfo(MappedStatement statement) {
+            String biz;
+            String action;
+            try {
+//            应该不会有重复的
+                String id = statement.getId();
+                int last = id.lastIndexOf('.');
+                int prev = id.lastIndexOf('.', last - 1);
+                if (last <= 0) {
+                    throw new IllegalArgumentException(id);
+                }
+                biz = id.substring(prev + 1, last);
+                action = id.substring(last + 1);
+            } catch (Throwable e) {
+                biz = String.valueOf(statement.getSqlCommandType());
+                action = statement.getId();
+            }
+            this.biz = biz;
+            this.action = action;
+            SqlSource sqlSource = statement.getSqlSource();
+            this.staticSql = sqlSource instanceof RawSqlSource || sqlSource instanceof StaticSqlSource;
+            this.stats = SqlStatsRegistry.stats(statement.getId());
+        }
+
+        /**
+         * @param fromArgs 参数里的 BoundSql 按动态 sql 缓存文本
+         */
+        private SqlText text(BoundSql boundSql, boolean fromArgs) {
+            String raw = boundSql.getSql();
+            if (staticSql && !fromArgs) {
+                SqlText text = staticText;
+                if (text == null) {
+                    text = new SqlText(raw);
+                    staticMappings = boundSql.getParameterMappings();
+                    staticText = text;
+                }
+                return text;
+            }
+            SqlText text = variants.get(raw);
+            if (text == null) {
+                text = new SqlText(raw);
+                if (variants.size() < MAX_SQL_VARIANTS) {
+                    variants.put(raw, text);
+                }
+            }
+            return text;
+        }
+    }
+
+    private static class SqlText {
+        /**
+         * 去除换行后的 sql
+         */
+        private final String log;
+        /**
+         * 摘要里分号是分隔符,需要替换
+         */
+        private final String digest;
+
+        private SqlText(String raw) {
+            this.log = removeBreakingWhitespace(raw);
+            this.digest = log.indexOf(';') < 0 ? log : log.replace(";", "英文分号");
+        }
+    }
 }
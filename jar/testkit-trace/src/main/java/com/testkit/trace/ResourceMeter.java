@@ -0,0 +1,86 @@
+package com.testkit.trace;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * span 级资源计量: 当前线程的 cpu 时间和分配字节数,开销是两次 native 调用
+ * 请求级的完整计量(阻塞/等待、gc)在 starter 里,不依赖 trace agent
+ * begin/end 必须在同一个线程调用,跨线程时 end 只返回空结果
+ */
+public final class ResourceMeter {
+
+    private static final ThreadMXBean THREADS;
+
+    private static final com.sun.management.ThreadMXBean EXT_THREADS;
+
+    static {
+        ThreadMXBean threads = null;
+        com.sun.management.ThreadMXBean extThreads = null;
+        try {
+            threads = ManagementFactory.getThreadMXBean();
+            if (threads.isCurrentThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+                threads.setThreadCpuTimeEnabled(true);
+            }
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                extThreads = (com.sun.management.ThreadMXBean) threads;
+                if (extThreads.isThreadAllocatedMemorySupported() && !extThreads.isThreadAllocatedMemoryEnabled()) {
+                    extThreads.setThreadAllocatedMemoryEnabled(true);
+                }
+            }
+        } catch (Throwable e) {
+            System.err.println("Testkit resource meter init error, " + e);
+        }
+        THREADS = threads;
+        EXT_THREADS = extThreads;
+    }
+
+    private final long threadId;
+    private final long cpuNanos;
+    private final long allocBytes;
+
+    private ResourceMeter() {
+        this.threadId = Thread.currentThread().getId();
+        this.cpuNanos = cpuNanos();
+        this.allocBytes = allocBytes(threadId);
+    }
+
+    public static ResourceMeter beginLite() {
+        return new ResourceMeter();
+    }
+
+    /**
+     * @return cpu_ms、alloc_bytes 增量,不支持的项不输出
+     */
+    public Map<String, String> end() {
+        Map<String, String> map = new LinkedHashMap<>();
+        if (Thread.currentThread().getId() != threadId) {
+            return map;
+        }
+        if (cpuNanos >= 0) {
+            map.put("cpu_ms", String.valueOf(Math.round((cpuNanos() - cpuNanos) / 1000d) / 1000d));
+        }
+        if (allocBytes >= 0) {
+            map.put("alloc_bytes", String.valueOf(allocBytes(threadId) - allocBytes));
+        }
+        return map;
+    }
+
+    private static long cpuNanos() {
+        try {
+            return THREADS == null || !THREADS.isCurrentThreadCpuTimeSupported() ? -1 : THREADS.getCurrentThreadCpuTime();
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static long allocBytes(long threadId) {
+        try {
+            return EXT_THREADS == null || !EXT_THREADS.isThreadAllocatedMemorySupported() ? -1 : EXT_THREADS.getThreadAllocatedBytes(threadId);
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+}
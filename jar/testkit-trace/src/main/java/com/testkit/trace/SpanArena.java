@@ -0,0 +1,137 @@
+package com.testkit.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * 一条链路内所有 span 的存放区,由根节点持有
+ * 以序号为下标分块存放,子节点不再各自维护子节点 map,序列化时按父节点序号重建树
+ */
+class SpanArena {
+
+    private static final int CHUNK_BITS = 7;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_SUPPRESSED_KEYS = 256;
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    @SuppressWarnings("unchecked")
+    private volatile AtomicReferenceArray<TraceInfo>[] chunks = new AtomicReferenceArray[1];
+
+    /**
+     * 超过 span 预算后只计数
+     */
+    private final AtomicInteger suppressed = new AtomicInteger();
+    private volatile Map<String, AtomicInteger> suppressedBy;
+
+    /**
+     * @return 分配给该 span 的序号,从 1 开始
+     */
+    int add(TraceInfo span) {
+        int seq = sequence.incrementAndGet();
+        chunk(seq >>> CHUNK_BITS).lazySet(seq & CHUNK_MASK, span);
+        return seq;
+    }
+
+    TraceInfo get(int seq) {
+        AtomicReferenceArray<TraceInfo>[] current = chunks;
+        int index = seq >>> CHUNK_BITS;
+        if (index >= current.length || current[index] == null) {
+            return null;
+        }
+        return current[index].get(seq & CHUNK_MASK);
+    }
+
+    /**
+     * 已分配的最大序号
+     */
+    int size() {
+        return sequence.get();
+    }
+
+    private AtomicReferenceArray<TraceInfo> chunk(int index) {
+        AtomicReferenceArray<TraceInfo>[] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        return grow(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized AtomicReferenceArray<TraceInfo> grow(int index) {
+        AtomicReferenceArray<TraceInfo>[] current = chunks;
+        if (index >= current.length) {
+            AtomicReferenceArray<TraceInfo>[] larger = new AtomicReferenceArray[Math.max(index + 1, current.length * 2)];
+            System.arraycopy(current, 0, larger, 0, current.length);
+            current = larger;
+        }
+        if (current[index] == null) {
+            current[index] = new AtomicReferenceArray<>(CHUNK_SIZE);
+        }
+        // 整体替换数组,读者通过 volatile 读拿到已经初始化的块
+        chunks = current;
+        return current[index];
+    }
+
+    void suppress(String biz, String action) {
+        suppressed.incrementAndGet();
+        Map<String, AtomicInteger> counts = suppressedBy;
+        if (counts == null) {
+            synchronized (this) {
+                counts = suppressedBy;
+                if (counts == null) {
+                    counts = new ConcurrentHashMap<>();
+                    suppressedBy = counts;
+                }
+            }
+        }
+        String key = biz + "." + action;
+        AtomicInteger count = counts.get(key);
+        if (count == null) {
+            count = counts.computeIfAbsent(counts.size() >= MAX_SUPPRESSED_KEYS ? "other" : key, new Function<String, AtomicInteger>() {
+                @Override
+                public AtomicInteger apply(String k) {
+                    return new AtomicInteger();
+                }
+            });
+        }
+        count.incrementAndGet();
+    }
+
+    int suppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * 被跳过最多的方法,格式 biz.action*次数,逗号分隔
+     */
+    String suppressedTop(int limit) {
+        Map<String, AtomicInteger> counts = suppressedBy;
+        if (counts == null) {
+            return "";
+        }
+        List<Map.Entry<String, AtomicInteger>> entries = new ArrayList<>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicInteger>>() {
+            @Override
+            public int compare(Map.Entry<String, AtomicInteger> a, Map.Entry<String, AtomicInteger> b) {
+                return Integer.compare(b.getValue().get(), a.getValue().get());
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(entries.get(i).getKey()).append("*").append(entries.get(i).getValue().get());
+        }
+        return sb.toString();
+    }
+}
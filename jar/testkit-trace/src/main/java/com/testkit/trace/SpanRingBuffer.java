@@ -0,0 +1,86 @@
+package com.testkit.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界多生产者单消费者环形队列,生产者之间只竞争一次 cas,不加锁
+ * 每个槽位带序号: 序号 == 写位置 表示可写, 序号 == 写位置 + 1 表示可读
+ */
+class SpanRingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * 只有消费线程读写
+     */
+    private long head;
+    private final AtomicLong headSnapshot = new AtomicLong();
+
+    SpanRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return 队列满时返回 false
+     */
+    boolean offer(E e) {
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        items.lazySet(index, e);
+        sequences.lazySet(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * 只能由消费线程调用
+     */
+    E poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E e = items.get(index);
+        items.lazySet(index, null);
+        sequences.lazySet(index, head + capacity);
+        head++;
+        headSnapshot.lazySet(head);
+        return e;
+    }
+
+    int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - headSnapshot.get()));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,418 @@
+package com.testkit.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 链路热点聚合
+ * 把大量链路按调用路径(group#biz#action 组成的栈)增量合并成一棵调用树,每个节点累计次数、总耗时、自身耗时和错误数,
+ * 可以导出 flame graph 使用的 collapsed stack 格式(每行 a;b;c 自身耗时ms)
+ * <p>
+ * 开启后 TraceSink 的写线程在格式化 TRACE_PROFILER 时合并自动链路,testkit 发起的链路在请求结束时合并,业务线程不做额外工作;
+ * sink 队列满被丢弃的链路不会进入统计
+ * <p>
+ * 配置读 System property:
+ * testkit.trace.hotpath            启动时是否开启,默认 false,运行时通过 testkit server 的 trace-hotpath 方法开关
+ * testkit.trace.hotpath.max-nodes  树的节点上限,超过后新路径只计入 truncated,默认 20000
+ * testkit.trace.hotpath.max-depth  路径深度上限,更深的节点耗时算在上限处节点的自身耗时里,默认 64
+ */
+public final class TraceAggregator {
+
+    private static final int MAX_NODES = Math.max(16, intProperty("testkit.trace.hotpath.max-nodes", 20000));
+    private static final int MAX_DEPTH = Math.max(2, intProperty("testkit.trace.hotpath.max-depth", 64));
+
+    private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty("testkit.trace.hotpath", "false"));
+    /**
+     * 只合并根节点 biz#action 包含该字符串的链路,null 表示全部
+     */
+    private static volatile String rootFilter;
+    private static volatile Node root = new Node("all");
+    private static final AtomicInteger nodes = new AtomicInteger();
+    private static final LongAdder traces = new LongAdder();
+    private static final LongAdder filtered = new LongAdder();
+    private static final LongAdder truncated = new LongAdder();
+    private static volatile long startTime = System.currentTimeMillis();
+
+    private TraceAggregator() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 开启聚合,已经累计的数据保留
+     *
+     * @param filter 根节点过滤,空表示全部
+     */
+    public static synchronized void enable(String filter) {
+        rootFilter = filter == null || filter.trim().isEmpty() ? null : filter.trim();
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static synchronized void reset() {
+        root = new Node("all");
+        nodes.set(0);
+        traces.reset();
+        filtered.reset();
+        truncated.reset();
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 合并一条已经结束的链路,只接受根节点
+     */
+    public static void merge(TraceInfo traceInfo) {
+        if (!enabled || traceInfo == null || !traceInfo.isRoot()) {
+            return;
+        }
+        try {
+            if (!accept(traceInfo.biz() + "#" + traceInfo.action())) {
+                return;
+            }
+            int[][] childLinks = traceInfo.childLinks();
+            Node current = root;
+            current.count.increment();
+            merge(current, traceInfo, childLinks, 1);
+            if (traceInfo.cost() > 0) {
+                current.totalMs.add(traceInfo.cost());
+            }
+            traces.increment();
+        } catch (Throwable e) {
+            System.err.println("Testkit trace hotpath merge error, " + e);
+        }
+    }
+
+    /**
+     * 到深度上限或节点上限时不再展开,耗时算在父节点的自身耗时里
+     *
+     * @return 计入父节点子耗时的部分,未结束为 0
+     */
+    private static int merge(Node parent, TraceInfo span, int[][] childLinks, int depth) {
+        Node node = parent.child(span.group() + "#" + span.biz() + "#" + span.action());
+        if (node == parent) {
+            return 0;
+        }
+        int cost = Math.max(0, span.cost());
+        int childCost = 0;
+        if (childLinks != null && depth < MAX_DEPTH && span.seq() < childLinks[0].length) {
+            for (int child = childLinks[0][span.seq()]; child != 0; child = childLinks[1][child]) {
+                TraceInfo childSpan = span.span(child);
+                if (childSpan != null) {
+                    childCost += merge(node, childSpan, childLinks, depth + 1);
+                }
+            }
+        }
+        node.record(cost, Math.max(0, cost - childCost), span.cost() < 0, span.hasError());
+        return cost;
+    }
+
+    /**
+     * 合并 TRACE_PROFILER 文本,格式同 TraceInfo.toProfilerString 或 TraceCodec 的二进制格式,可以带 TRACE_PROFILER - 前缀
+     * 用于导入在其他地方收集的链路日志,每行按 linkid 找父节点
+     *
+     * @return 是否成功合并
+     */
+    public static boolean merge(String profiler) {
+        if (profiler == null) {
+            return false;
+        }
+        int prefix = profiler.indexOf("TRACE_PROFILER - ");
+        String text = prefix >= 0 ? profiler.substring(prefix + "TRACE_PROFILER - ".length()) : profiler;
+        try {
+            text = TraceCodec.decode(text.trim());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        String[] lines = text.trim().split("\\$M\\$");
+        List<Line> parsed = new ArrayList<>(lines.length);
+        for (String line : lines) {
+            Line item = Line.parse(line);
+            if (item == null) {
+                return false;
+            }
+            parsed.add(item);
+        }
+        if (parsed.isEmpty() || !"0".equals(parsed.get(0).linkid)) {
+            return false;
+        }
+        Line rootLine = parsed.get(0);
+        String[] rootKey = rootLine.key.split("#", -1);
+        if (rootKey.length < 3 || !accept(rootKey[1] + "#" + rootKey[2])) {
+            return false;
+        }
+        try {
+            Node all = root;
+            Map<String, Line> byLink = new HashMap<>();
+            for (Line line : parsed) {
+                byLink.put(line.linkid, line);
+            }
+            rootLine.depth = 1;
+            rootLine.node = all.child(rootLine.key);
+            if (rootLine.node == all) {
+                return false;
+            }
+            // 按深度优先顺序输出,父节点总在子节点前面
+            for (int i = 1; i < parsed.size(); i++) {
+                Line line = parsed.get(i);
+                int idx = line.linkid.lastIndexOf('.');
+                Line parent = idx < 0 ? null : byLink.get(line.linkid.substring(0, idx));
+                if (parent == null || parent.node == null || parent.depth >= MAX_DEPTH) {
+                    continue;
+                }
+                Node node = parent.node.child(line.key);
+                if (node == parent.node) {
+                    continue;
+                }
+                line.node = node;
+                line.depth = parent.depth + 1;
+                parent.childCost += Math.max(0, line.cost);
+            }
+            for (Line line : parsed) {
+                if (line.node != null) {
+                    int cost = Math.max(0, line.cost);
+                    line.node.record(cost, Math.max(0, cost - line.childCost), line.cost < 0, line.error);
+                }
+            }
+            all.count.increment();
+            if (rootLine.cost > 0) {
+                all.totalMs.add(rootLine.cost);
+            }
+            traces.increment();
+            return true;
+        } catch (Throwable e) {
+            System.err.println("Testkit trace hotpath merge error, " + e);
+            return false;
+        }
+    }
+
+    private static boolean accept(String rootKey) {
+        String filter = rootFilter;
+        if (filter != null && !rootKey.contains(filter)) {
+            filtered.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public static Map<String, Object> status() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("rootFilter", rootFilter);
+        map.put("since", startTime);
+        map.put("traces", traces.sum());
+        map.put("filtered", filtered.sum());
+        map.put("nodes", nodes.get());
+        map.put("maxNodes", MAX_NODES);
+        map.put("truncated", truncated.sum());
+        return map;
+    }
+
+    /**
+     * 调用树,子节点按总耗时倒序
+     *
+     * @param maxDepth   输出的最大深度,<=0 不限制
+     * @param minPercent 总耗时占全部链路总耗时的比例低于该值的节点不输出
+     */
+    public static Map<String, Object> tree(int maxDepth, double minPercent) {
+        Node current = root;
+        long total = current.totalMs.sum();
+        Map<String, Object> map = status();
+        map.put("totalMs", total);
+        map.put("children", children(current, 1, maxDepth <= 0 ? Integer.MAX_VALUE : maxDepth, minPercent, total));
+        return map;
+    }
+
+    private static List<Map<String, Object>> children(Node node, int depth, int maxDepth, double minPercent, long total) {
+        List<Map<String, Object>> list = new ArrayList<>();
+        if (depth > maxDepth) {
+            return list;
+        }
+        for (Node child : sorted(node)) {
+            long childTotal = child.totalMs.sum();
+            double percent = total == 0 ? 0 : childTotal * 100d / total;
+            if (total > 0 && percent < minPercent) {
+                continue;
+            }
+            long count = child.count.sum();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", child.name);
+            map.put("count", count);
+            map.put("totalMs", childTotal);
+            map.put("selfMs", child.selfMs.sum());
+            map.put("avgMs", count == 0 ? 0 : Math.round(childTotal * 100d / count) / 100d);
+            map.put("maxMs", child.maxMs.get());
+            map.put("percent", Math.round(percent * 100) / 100d);
+            map.put("errors", child.errors.sum());
+            map.put("errorRate", count == 0 ? 0 : Math.round(child.errors.sum() * 10000d / count) / 100d);
+            map.put("unfinished", child.unfinished.sum());
+            List<Map<String, Object>> children = children(child, depth + 1, maxDepth, minPercent, total);
+            if (!children.isEmpty()) {
+                map.put("children", children);
+            }
+            list.add(map);
+        }
+        return list;
+    }
+
+    /**
+     * flame graph 的 collapsed stack 格式,每个路径一行,值为自身耗时(ms),值为 0 的路径不输出
+     * 可以直接交给 flamegraph.pl / speedscope 等工具
+     */
+    public static String collapsed() {
+        StringBuilder sb = new StringBuilder();
+        for (Node child : sorted(root)) {
+            appendCollapsed(sb, new StringBuilder(), child);
+        }
+        return sb.toString();
+    }
+
+    private static void appendCollapsed(StringBuilder sb, StringBuilder stack, Node node) {
+        int length = stack.length();
+        if (length > 0) {
+            stack.append(';');
+        }
+        appendFrame(stack, node.name);
+        long self = node.selfMs.sum();
+        if (self > 0) {
+            sb.append(stack).append(' ').append(self).append('\n');
+        }
+        for (Node child : sorted(node)) {
+            appendCollapsed(sb, stack, child);
+        }
+        stack.setLength(length);
+    }
+
+    /**
+     * ; 和空白是格式里的分隔符
+     */
+    private static void appendFrame(StringBuilder stack, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            stack.append(c == ';' || Character.isWhitespace(c) ? '_' : c);
+        }
+    }
+
+    private static List<Node> sorted(Node node) {
+        List<Node> list = new ArrayList<>(node.children.values());
+        Collections.sort(list, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return Long.compare(b.totalMs.sum(), a.totalMs.sum());
+            }
+        });
+        return list;
+    }
+
+    private static int intProperty(String key, int defaultValue) {
+        try {
+            String value = System.getProperty(key);
+            return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+        } catch (Throwable e) {
+            System.err.println("Testkit trace hotpath config error, " + key + ":" + System.getProperty(key));
+            return defaultValue;
+        }
+    }
+
+    private static class Node {
+        private final String name;
+        private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMs = new LongAdder();
+        private final LongAdder selfMs = new LongAdder();
+        private final LongAccumulator maxMs = new LongAccumulator(Math::max, 0);
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder unfinished = new LongAdder();
+
+        private Node(String name) {
+            this.name = name;
+        }
+
+        /**
+         * 节点数到上限后新路径计入当前节点
+         */
+        private Node child(String key) {
+            Node child = children.get(key);
+            if (child != null) {
+                return child;
+            }
+            if (nodes.get() >= MAX_NODES) {
+                truncated.increment();
+                return this;
+            }
+            Node created = new Node(key);
+            child = children.putIfAbsent(key, created);
+            if (child == null) {
+                nodes.incrementAndGet();
+                return created;
+            }
+            return child;
+        }
+
+        private void record(int cost, int self, boolean unfinishedSpan, boolean error) {
+            count.increment();
+            if (unfinishedSpan) {
+                unfinished.increment();
+                return;
+            }
+            totalMs.add(cost);
+            selfMs.add(self);
+            maxMs.accumulate(cost);
+            if (error) {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * TRACE_PROFILER 的一行: linkid group#biz#action(Y,status,performance,begin,cost)digests
+     */
+    private static class Line {
+        private String linkid;
+        private String key;
+        private boolean error;
+        /**
+         * 未结束为 -1
+         */
+        private int cost;
+        private int childCost;
+        private int depth;
+        private Node node;
+
+        private static Line parse(String text) {
+            int space = text.indexOf(' ');
+            int open = space < 0 ? -1 : text.indexOf('(', space);
+            int close = open < 0 ? -1 : text.indexOf(')', open);
+            if (close < 0) {
+                return null;
+            }
+            String[] fields = text.substring(open + 1, close).split(",");
+            if (fields.length < 5) {
+                return null;
+            }
+            Line line = new Line();
+            line.linkid = text.substring(0, space).trim();
+            line.key = text.substring(space + 1, open);
+            line.error = "N".equals(fields[0]);
+            try {
+                line.cost = "-".equals(fields[fields.length - 1]) ? -1 : Integer.parseInt(fields[fields.length - 1].trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return line;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.testkit.trace;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 链路性能表的紧凑二进制编码,内容与 TraceInfo.toProfilerString 一一对应,decode 还原出完全相同的文本
+ * <p>
+ * 格式: TKB1: + base64(flags + body),flags 第 0 位表示 body 经过 deflate 压缩
+ * body 按深度优先顺序依次写每个 span:
+ * varint 父节点下标+1(0 表示起始节点,后面跟 linkid 字符串,否则跟 varint seq,linkid 由父节点拼出),
+ * group、biz、action 字符串,flags(第 0 位 error),zigzag begin,zigzag cost,
+ * cost >= 0 时跟 status 字符串,performance 字符串,varint 摘要数,每个摘要 k、v 两个字符串
+ * 字符串引用: varint 0 为 null,1 后面跟 varint 长度和 utf-8 字节并加入字符串表,n 表示字符串表第 n-2 个,
+ * 重复的 biz/action/sql 只写一次
+ * <p>
+ * testkit.trace.codec.deflate-min-bytes  body 超过该字节数时尝试压缩,压缩后更小才使用,默认 512,<=0 不压缩
+ */
+public final class TraceCodec {
+
+    public static final String PREFIX = "TKB1:";
+
+    private static final int FLAG_DEFLATE = 1;
+    private static final int SPAN_ERROR = 1;
+
+    private static final int DEFLATE_MIN_BYTES = intProperty("testkit.trace.codec.deflate-min-bytes", 512);
+
+    private TraceCodec() {
+    }
+
+    public static boolean isBinary(String profiler) {
+        return profiler != null && profiler.startsWith(PREFIX);
+    }
+
+    /**
+     * 还原成 toProfilerString 的文本,不是二进制格式时原样返回
+     *
+     * @throws IllegalArgumentException 数据损坏
+     */
+    public static String decode(String profiler) {
+        if (!isBinary(profiler)) {
+            return profiler;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(profiler.substring(PREFIX.length()).trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("illegal trace binary profiler, " + e.getMessage());
+        }
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("illegal trace binary profiler, empty");
+        }
+        if ((bytes[0] & FLAG_DEFLATE) != 0) {
+            bytes = inflate(bytes, 1);
+        } else {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return new Reader(bytes).read();
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, bytes.length - offset);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("illegal trace binary profiler, truncated");
+                }
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("illegal trace binary profiler, " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int intProperty(String key, int defaultValue) {
+        try {
+            String value = System.getProperty(key);
+            return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+        } catch (Throwable e) {
+            System.err.println("Testkit trace codec config error, " + key + ":" + System.getProperty(key));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 单条链路的编码器,由 TraceInfo 按深度优先顺序写入
+     */
+    static final class Writer {
+
+        private byte[] buf = new byte[512];
+        private int size;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int spans;
+
+        /**
+         * @param parentIndex 父节点在本次编码里的下标,起始节点为 -1
+         * @param linkid      只有起始节点需要
+         * @return 当前 span 的下标
+         */
+        int span(int parentIndex, String linkid, int seq, String group, String biz, String action, boolean error,
+                 String status, String performance, int begin, int cost, List<TraceInfo.Digest> digests) {
+            varint(parentIndex + 1);
+            if (parentIndex < 0) {
+                string(linkid);
+            } else {
+                varint(seq);
+            }
+            string(group);
+            string(biz);
+            string(action);
+            write(error ? SPAN_ERROR : 0);
+            varint(zigzag(begin));
+            varint(zigzag(cost));
+            if (cost >= 0) {
+                string(status);
+            }
+            string(performance);
+            int count = digests == null ? 0 : digests.size();
+            varint(count);
+            for (int i = 0; i < count; i++) {
+                TraceInfo.Digest digest = digests.get(i);
+                string(digest.getK());
+                string(digest.getV());
+            }
+            return spans++;
+        }
+
+        String finish() {
+            int flags = 0;
+            byte[] body = buf;
+            int length = size;
+            if (DEFLATE_MIN_BYTES > 0 && size > DEFLATE_MIN_BYTES) {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    deflater.setInput(buf, 0, size);
+                    deflater.finish();
+                    byte[] compressed = new byte[size];
+                    int n = 0;
+                    while (!deflater.finished() && n < compressed.length) {
+                        n += deflater.deflate(compressed, n, compressed.length - n);
+                    }
+                    if (deflater.finished() && n < size) {
+                        flags |= FLAG_DEFLATE;
+                        body = compressed;
+                        length = n;
+                    }
+                } finally {
+                    deflater.end();
+                }
+            }
+            byte[] bytes = new byte[length + 1];
+            bytes[0] = (byte) flags;
+            System.arraycopy(body, 0, bytes, 1, length);
+            return PREFIX + Base64.getEncoder().encodeToString(bytes);
+        }
+
+        private void string(String value) {
+            if (value == null) {
+                varint(0);
+                return;
+            }
+            Integer ref = strings.get(value);
+            if (ref != null) {
+                varint(ref + 2);
+                return;
+            }
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(1);
+            varint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private static int zigzag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+
+        private void varint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        private void write(int value) {
+            ensure(1);
+            buf[size++] = (byte) value;
+        }
+
+        private void ensure(int more) {
+            if (size + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] buf;
+        private int pos;
+        private final List<String> strings = new ArrayList<>();
+        private final List<String> linkids = new ArrayList<>();
+
+        private Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * 拼法与 TraceInfo.profilerLine 一致
+         */
+        private String read() {
+            StringBuilder sb = new StringBuilder(buf.length * 2);
+            try {
+                while (pos < buf.length) {
+                    if (!linkids.isEmpty()) {
+                        sb.append("$M$");
+                    }
+                    int parent = varint() - 1;
+                    String linkid;
+                    if (parent < 0) {
+                        linkid = string();
+                    } else {
+                        if (parent >= linkids.size()) {
+                            throw new IllegalArgumentException("illegal trace binary profiler, parent " + parent);
+                        }
+                        linkid = linkids.get(parent) + "." + varint();
+                    }
+                    linkids.add(linkid);
+                    String group = string();
+                    String biz = string();
+                    String action = string();
+                    boolean error = (read1() & SPAN_ERROR) != 0;
+                    int begin = unzigzag(varint());
+                    int cost = unzigzag(varint());
+                    String status = cost >= 0 ? string() : null;
+                    String performance = string();
+                    sb.append(linkid).append(' ').append(group).append('#').append(biz).append('#').append(action);
+                    if (cost < 0) {
+                        sb.append("(-,-,").append(performance).append(',').append(begin).append(",-)");
+                    } else {
+                        sb.append('(').append(error ? "N" : "Y").append(',').append(status == null ? "-" : status).append(',')
+                                .append(performance).append(',').append(begin).append(',').append(cost).append(')');
+                    }
+                    int count = varint();
+                    for (int i = 0; i < count; i++) {
+                        if (i > 0) {
+                            sb.append(';');
+                        }
+                        String k = string();
+                        String v = string();
+                        sb.append(k).append('|').append(v == null ? "-" : v);
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("illegal trace binary profiler, truncated");
+            }
+            return sb.toString();
+        }
+
+        private String string() {
+            int ref = varint();
+            if (ref == 0) {
+                return null;
+            }
+            if (ref > 1) {
+                if (ref - 2 >= strings.size()) {
+                    throw new IllegalArgumentException("illegal trace binary profiler, string ref " + ref);
+                }
+                return strings.get(ref - 2);
+            }
+            int length = varint();
+            if (length < 0 || pos + length > buf.length) {
+                throw new IllegalArgumentException("illegal trace binary profiler, truncated");
+            }
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            strings.add(value);
+            return value;
+        }
+
+        private int varint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = buf[pos++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("illegal trace binary profiler, varint too long");
+        }
+
+        private int read1() {
+            return buf[pos++];
+        }
+
+        private static int unzigzag(int value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
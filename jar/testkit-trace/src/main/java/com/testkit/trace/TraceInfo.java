@@ -9,7 +9,6 @@ import java.time.temporal.ChronoField;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -17,10 +16,32 @@ public class TraceInfo {
 
     private static final ThreadLocal<TraceInfo> traceThreadLocal = new ThreadLocal<>();
 
+    private static final int BINARY_MIN_SPANS = 8;
+
+    /**
+     * 当前线程上因为 span 预算被跳过、尚未退出的方法层数
+     */
+    private static final ThreadLocal<int[]> skipDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
     private final TraceInfo parent;
     private TraceInfo root;
-    private AtomicInteger sequence;
+    /**
+     * 在整棵链路里的序号,根节点为 0,同时是 arena 的下标
+     */
+    private int seq;
+    /**
+     * 只有根节点持有,子节点通过 root 访问
+     */
     private String reqid;
+    private SpanArena arena;
+    /**
+     * 序列化时才拼接
+     */
     private String linkid;
     private final long beginTime;
     private final String group;
@@ -30,10 +51,26 @@ public class TraceInfo {
     private int end = -1;
     private int cost;
     private List<Digest> digests;
-    private Map<String, TraceInfo> segments = new ConcurrentHashMap<>();
     private String status;
     private Throwable error;
     private String performance;
+    /**
+     * 是否给每个 span 记录 cpu 和分配,由根节点决定
+     */
+    private boolean meterSpans;
+    /**
+     * 根节点的 _req_id 等摘要是否已经追加
+     */
+    private boolean summaryDigests;
+    /**
+     * 只有根节点持有,挂在链路上的增量统计
+     */
+    private volatile Map<String, RootSummary> summaries;
+    private ResourceMeter meter;
+    /**
+     * 抽中计时的 span 创建耗费的纳秒,stepOut 时加上退出耗时作为一个样本,0 表示不计时
+     */
+    private long openCostNanos;
 
     public static TraceInfo getCurrent() {
         try {
@@ -55,11 +92,80 @@ public class TraceInfo {
     }
 
     public static TraceInfo buildRoot(String reqid, String group, String biz, String action) {
+        return buildRoot(reqid, group, biz, action, false);
+    }
+
+    /**
+     * @param meterSpans 每个 span 额外记录 _cpu_ms 和 _alloc_bytes,每个节点多两次 native 调用
+     */
+    public static TraceInfo buildRoot(String reqid, String group, String biz, String action, boolean meterSpans) {
+        skipDepth.get()[0] = 0;
         TraceInfo traceInfo = new TraceInfo(null, group, biz, action);
         traceInfo.reqid = reqid + "@0";
+        if (meterSpans) {
+            traceInfo.meterSpans = true;
+            traceInfo.meter = ResourceMeter.beginLite();
+        }
         return traceInfo;
     }
 
+    /**
+     * 经过采样的创建入口,增强代码使用
+     * parent 为空时按采样策略决定是否开启新链路; 链路 span 数超过预算时只计数,返回 null 并记录跳过层数,
+     * 调用方在方法退出(正常或异常)时必须调用 skipOut
+     *
+     * @return 不采样或超过预算时返回 null
+     */
+    public static TraceInfo open(TraceInfo parent, String group, String biz, String action) {
+        try {
+            if (parent == null) {
+                if (!TraceSampler.sampleRoot()) {
+                    return null;
+                }
+                skipDepth.get()[0] = 0;
+                return new TraceInfo(null, group, biz, action);
+            }
+            SpanArena spans = parent.root.arena;
+            int next = spans == null ? 1 : spans.size() + 1;
+            int budget = TraceSampler.spanBudget();
+            if (budget > 0 && next > budget) {
+                parent.root.arena().suppress(biz, action);
+                TraceSampler.onSuppressed();
+                skipDepth.get()[0]++;
+                return null;
+            }
+            TraceSampler.onSpan();
+            if (!TraceSampler.shouldTime(next)) {
+                return new TraceInfo(parent, group, biz, action);
+            }
+            long begin = System.nanoTime();
+            TraceInfo traceInfo = new TraceInfo(parent, group, biz, action);
+            traceInfo.openCostNanos = Math.max(1, System.nanoTime() - begin);
+            return traceInfo;
+        } catch (Throwable e) {
+            System.err.println("Testkit trace open error");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 退出一个被跳过的方法
+     *
+     * @return 当前线程有被跳过的层数时返回 true,此时异常处理不应该结束当前 span
+     */
+    public static boolean skipOut() {
+        try {
+            int[] depth = skipDepth.get();
+            if (depth[0] > 0) {
+                depth[0]--;
+                return true;
+            }
+        } catch (Throwable e) {
+        }
+        return false;
+    }
+
     public TraceInfo(TraceInfo parent, String group, String biz, String action) {
         this.beginTime = System.currentTimeMillis();
         this.parent = parent;
@@ -72,15 +178,14 @@ public class TraceInfo {
         try {
             if (this.parent != null) {
                 this.root = this.parent.root;
-                this.sequence = this.parent.sequence;
-                this.reqid = this.parent.reqid;
-                this.linkid = this.parent.linkid + "." + this.sequence.incrementAndGet();
+                this.seq = this.root.arena().add(this);
                 this.begin = (int) (beginTime - this.root.beginTime);
-                this.parent.segments.put(this.linkid, this);
+                if (this.root.meterSpans) {
+                    this.meter = ResourceMeter.beginLite();
+                }
             } else {
                 this.root = this;
                 this.linkid = "0";
-                this.sequence = new AtomicInteger(0);
                 this.begin = 0;
                 this.reqid = generateRandomString(16) + "@0";
             }
@@ -90,6 +195,32 @@ public class TraceInfo {
         }
     }
 
+    /**
+     * 第一个子节点出现时才创建,叶子链路不分配
+     */
+    private SpanArena arena() {
+        SpanArena current = arena;
+        if (current == null) {
+            synchronized (this) {
+                current = arena;
+                if (current == null) {
+                    current = new SpanArena();
+                    arena = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private String linkid() {
+        String current = linkid;
+        if (current == null) {
+            current = parent.linkid() + "." + seq;
+            linkid = current;
+        }
+        return current;
+    }
+
     public int fetchCurrentDepth() {
         int depth = 1;
         TraceInfo current = this;
@@ -121,6 +252,7 @@ public class TraceInfo {
             return this;
         }
 
+        long timeBegin = openCostNanos != 0 ? System.nanoTime() : 0;
         try {
             this.cost = (int) (System.currentTimeMillis() - this.beginTime);
             this.end = this.begin + this.cost;
@@ -155,7 +287,22 @@ public class TraceInfo {
                 this.status = status;
             }
             this.digests = digests;
+            if (meter != null) {
+                // 跨线程结束的 span 拿到空结果
+                for (Map.Entry<String, String> entry : meter.end().entrySet()) {
+                    if (this.digests == null) {
+                        this.digests = new ArrayList<>();
+                    }
+                    this.digests.add(new Digest("_" + entry.getKey(), entry.getValue()));
+                }
+                meter = null;
+            }
             set(this.parent);
+            if (timeBegin != 0) {
+                // 一个 span 只记一个样本: 创建 + 退出
+                TraceSampler.recordCost(openCostNanos + System.nanoTime() - timeBegin);
+                openCostNanos = 0;
+            }
         } catch (Throwable e) {
             System.err.println("Testkit trace stepOut error");
             e.printStackTrace();
@@ -177,11 +324,7 @@ public class TraceInfo {
      */
     public String toProfilerString() {
         try {
-            if (digests == null) {
-                digests = new ArrayList<>();
-            }
-            digests.add(new Digest("_req_id", reqid));
-            digests.add(new Digest("_time", formatTimestampManual(beginTime)));
+            appendSummaryDigests();
             return String.join("$M$", profiler());
         } catch (Throwable e) {
             System.err.println("Testkit trace toProfilerString error");
@@ -190,6 +333,98 @@ public class TraceInfo {
         }
     }
 
+    /**
+     * 与 toProfilerString 内容相同的二进制编码,TKB1: 开头,用 TraceCodec.decode 还原成文本
+     * span 很少时编码后反而比文本大,和编码失败时一样直接返回文本
+     *
+     * @see TraceCodec
+     */
+    public String toProfilerBinary() {
+        SpanArena spans = root.arena;
+        if (spans == null || spans.size() < BINARY_MIN_SPANS) {
+            return toProfilerString();
+        }
+        try {
+            appendSummaryDigests();
+            int i = 0;
+            do {
+                try {
+                    TraceCodec.Writer out = new TraceCodec.Writer();
+                    int[][] childLinks = childLinks();
+                    if (childLinks == null) {
+                        writeProfiler(out, -1);
+                    } else {
+                        writeProfiler(out, root.arena, this, -1, childLinks[0], childLinks[1]);
+                    }
+                    return out.finish();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            } while (++i <= 3);
+        } catch (Throwable e) {
+            System.err.println("Testkit trace toProfilerBinary error");
+            e.printStackTrace();
+        }
+        return toProfilerString();
+    }
+
+    /**
+     * 根节点摘要只追加一次,文本和二进制格式可以都输出
+     */
+    private void appendSummaryDigests() {
+        if (summaryDigests) {
+            return;
+        }
+        summaryDigests = true;
+        if (digests == null) {
+            digests = new ArrayList<>();
+        }
+        // 插件按 ")_req_id|" 取根节点耗时,_req_id 要排在 _cpu_ms、_suppressed 等摘要前面
+        digests.add(0, new Digest("_req_id", root.reqid));
+        digests.add(1, new Digest("_time", formatTimestampManual(beginTime)));
+        SpanArena spans = root.arena;
+        if (spans != null && spans.suppressed() > 0) {
+            digests.add(new Digest("_suppressed", String.valueOf(spans.suppressed())));
+            digests.add(new Digest("_suppressed_top", spans.suppressedTop(10)));
+        }
+        Map<String, RootSummary> current = root.summaries;
+        if (current != null) {
+            for (RootSummary summary : current.values()) {
+                try {
+                    summary.appendDigests(digests);
+                } catch (Throwable e) {
+                    System.err.println("Testkit trace summary error, " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 根节点上的统计,没有返回 null
+     */
+    public RootSummary getSummary(String key) {
+        Map<String, RootSummary> current = root.summaries;
+        return current == null ? null : current.get(key);
+    }
+
+    /**
+     * 在根节点上挂一个统计,已经存在时返回已有的
+     */
+    public RootSummary putSummaryIfAbsent(String key, RootSummary summary) {
+        TraceInfo r = root;
+        Map<String, RootSummary> current = r.summaries;
+        if (current == null) {
+            synchronized (r) {
+                current = r.summaries;
+                if (current == null) {
+                    current = new ConcurrentHashMap<>();
+                    r.summaries = current;
+                }
+            }
+        }
+        RootSummary exist = current.putIfAbsent(key, summary);
+        return exist == null ? summary : exist;
+    }
 
     /**
      * 性能表
@@ -215,13 +450,116 @@ public class TraceInfo {
     }
 
     private void appendProfiler(List<String> links) {
+        int[][] childLinks = childLinks();
+        if (childLinks == null) {
+            links.add(profilerLine());
+            return;
+        }
+        appendProfiler(links, root.arena, this, childLinks[0], childLinks[1]);
+    }
+
+    private static void writeProfiler(TraceCodec.Writer out, SpanArena spans, TraceInfo span, int parentIndex, int[] firstChild, int[] nextSibling) {
+        int index = span.writeProfiler(out, parentIndex);
+        if (span.seq >= firstChild.length) {
+            return;
+        }
+        for (int child = firstChild[span.seq]; child != 0; child = nextSibling[child]) {
+            writeProfiler(out, spans, spans.get(child), index, firstChild, nextSibling);
+        }
+    }
+
+    private int writeProfiler(TraceCodec.Writer out, int parentIndex) {
+        return out.span(parentIndex, parentIndex < 0 ? linkid() : null, seq, group, biz, action, error != null, status, performance, begin, cost, digests);
+    }
+
+    /**
+     * 按父节点序号把子节点串成链表,兄弟节点保持创建顺序
+     *
+     * @return {firstChild, nextSibling},下标和值都是序号,0 表示没有; 没有子节点时返回 null
+     */
+    int[][] childLinks() {
+        SpanArena spans = root.arena;
+        if (spans == null) {
+            return null;
+        }
+        int size = spans.size();
+        int[] firstChild = new int[size + 1];
+        int[] lastChild = new int[size + 1];
+        int[] nextSibling = new int[size + 1];
+        for (int i = 1; i <= size; i++) {
+            TraceInfo span = spans.get(i);
+            if (span == null) {
+                // 其他线程已经拿到序号但还没放进来
+                continue;
+            }
+            int p = span.parent.seq;
+            if (p > size) {
+                continue;
+            }
+            if (firstChild[p] == 0) {
+                firstChild[p] = i;
+            } else {
+                nextSibling[lastChild[p]] = i;
+            }
+            lastChild[p] = i;
+        }
+        return new int[][]{firstChild, nextSibling};
+    }
+
+    TraceInfo span(int seq) {
+        SpanArena spans = root.arena;
+        return spans == null ? null : spans.get(seq);
+    }
+
+    int seq() {
+        return seq;
+    }
+
+    boolean isRoot() {
+        return parent == null;
+    }
+
+    String group() {
+        return group;
+    }
+
+    String biz() {
+        return biz;
+    }
+
+    String action() {
+        return action;
+    }
+
+    /**
+     * 未结束为 -1
+     */
+    int cost() {
+        return end == -1 ? -1 : cost;
+    }
+
+    boolean hasError() {
+        return error != null;
+    }
+
+    private static void appendProfiler(List<String> links, SpanArena spans, TraceInfo span, int[] firstChild, int[] nextSibling) {
+        links.add(span.profilerLine());
+        if (span.seq >= firstChild.length) {
+            return;
+        }
+        for (int child = firstChild[span.seq]; child != 0; child = nextSibling[child]) {
+            appendProfiler(links, spans, spans.get(child), firstChild, nextSibling);
+        }
+    }
+
+    private String profilerLine() {
         //id group#biz#action(Y,status,performance,begin,cost)da=v1|db=v2
         //未结束
         String profiler;
         if (cost < 0) {
-            profiler = linkid + " " + group + "#" + biz + "#" + action + "(-,-," + performance + "," + begin + ",-)";
+            profiler = linkid() + " " + group + "#" + biz + "#" + action + "(-,-," + performance + "," + begin + ",-)";
         } else {
-            profiler = linkid + " " + group + "#" + biz + "#" + action + "(" + (error == null ? "Y" : "N") + "," + (status == null ? "-" : status) + "," + performance + "," + begin + "," + cost + ")";
+            profiler = linkid() + " " + group + "#" + biz + "#" + action + "(" + (error == null ? "Y" : "N") + "," + (status == null ? "-" : status) + "," + performance + "," + begin + "," + cost + ")";
         }
         if (digests != null) {
             profiler += digests.stream().map(new Function<Digest, String>() {
@@ -231,24 +569,16 @@ public class TraceInfo {
                 }
             }).collect(Collectors.joining(";"));
         }
-        links.add(profiler);
-        if (segments.isEmpty()) {
-            return;
-        }
-        for (TraceInfo value : this.segments.values()) {
-//            if (value.fetchCurrentDepth() > value.getSingleClsDepth()) {
-//                continue;
-//            }
-            value.appendProfiler(links);
-        }
+        return profiler;
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
+        String linkid = linkid();
         sb.append("TRACE_MONITOR - ")
                 .append(linkid).append(" ")
-                .append("[").append(reqid).append(",0,")
+                .append("[").append(root.reqid).append(",0,")
                 .append(linkid).append("]").append(group).append(";").append(biz).append(";").append(action).append(",")
                 .append((error == null ? "Y" : "N")).append(",")
                 .append((status == null ? "-" : status)).append(",")
@@ -275,7 +605,7 @@ public class TraceInfo {
 
 
     public String getReqid() {
-        return reqid;
+        return root.reqid;
     }
 
 
@@ -292,6 +622,14 @@ public class TraceInfo {
         return sb.toString();
     }
 
+    /**
+     * 随 span 增量更新、挂在根节点上的统计,不持有 span
+     * 链路序列化(toProfilerString/toProfilerBinary)时追加为根节点摘要
+     */
+    public interface RootSummary {
+        void appendDigests(List<Digest> digests);
+    }
+
     public static class Digest implements Serializable {
 
         private static final long serialVersionUID = -4221416475600320143L;
@@ -0,0 +1,64 @@
+package com.testkit.trace;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 运行时调整链路增强范围的入口
+ * agent 启动时注册实现,testkit server 的 trace-rules 方法通过这里调用,没有 agent 时 handler 为空
+ * 应用启动完成后 starter 调用 contextReady,agent 据此执行延迟增强并输出增强耗时报告
+ */
+public final class TraceRules {
+
+    public static final String ALLOWS = "allows";
+    public static final String DENYS = "denys";
+    public static final String PACKAGES = "packages";
+    public static final String CLS_SUFFIX = "clsSuffix";
+
+    private static volatile Handler handler;
+
+    private TraceRules() {
+    }
+
+    public static void register(Handler handler) {
+        TraceRules.handler = handler;
+    }
+
+    public static Handler handler() {
+        return handler;
+    }
+
+    /**
+     * 应用启动完成,可以重复调用,只有第一次生效
+     */
+    public static void contextReady() {
+        Handler current = handler;
+        if (current != null) {
+            current.contextReady();
+        }
+    }
+
+    public interface Handler {
+
+        /**
+         * 当前生效的规则
+         */
+        Map<String, Object> list();
+
+        /**
+         * 增加或删除规则,并重新增强受影响的已加载类
+         *
+         * @param add   true 为增加,false 为删除
+         * @param rules key 为 allows/denys/packages/clsSuffix,规则格式与 agent 参数一致
+         * @return 生效后的规则和本次重新增强的统计
+         */
+        Map<String, Object> update(boolean add, Map<String, Set<String>> rules);
+
+        /**
+         * 类增强的耗时统计
+         */
+        Map<String, Object> transformReport();
+
+        void contextReady();
+    }
+}
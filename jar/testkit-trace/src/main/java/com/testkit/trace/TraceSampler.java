@@ -0,0 +1,242 @@
+package com.testkit.trace;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 链路采样和开销控制
+ * 1. 自动产生的根链路(DispatcherServlet)按概率采样,并限制每秒链路数; testkit 主动发起的链路不采样
+ * 2. 单条链路的 span 数超过预算后不再创建子 span,只按 group#biz#action 计数,输出在根节点的 _suppressed 摘要里
+ * 3. 自适应模式下每秒估算一次 span 开销占进程 cpu 的比例,超过阈值时降低采样概率,低于一半时逐步恢复
+ * <p>
+ * 初始值读 System property testkit.trace.sample.*,运行时通过 testkit server 的 trace-sampling 方法修改
+ */
+public final class TraceSampler {
+
+    /**
+     * 每 64 个 span 计时一次(创建+退出算一个样本),估算单个 span 的开销
+     */
+    private static final int COST_SAMPLE_MASK = 63;
+
+    private static volatile double probability = doubleProperty("testkit.trace.sample.probability", 1d);
+    private static volatile int maxTracesPerSecond = (int) doubleProperty("testkit.trace.sample.max-per-second", 0);
+    private static volatile int spanBudget = (int) doubleProperty("testkit.trace.sample.span-budget", 0);
+    private static volatile boolean adaptive = Boolean.parseBoolean(System.getProperty("testkit.trace.sample.adaptive", "false"));
+    private static volatile double maxOverheadPercent = doubleProperty("testkit.trace.sample.max-overhead-percent", 5d);
+    /**
+     * 自适应后实际使用的概率,不超过 probability
+     */
+    private static volatile double effectiveProbability = probability;
+
+    private static final AtomicLong rateWindow = new AtomicLong();
+    private static final AtomicInteger rateCount = new AtomicInteger();
+
+    private static final LongAdder sampledRoots = new LongAdder();
+    private static final LongAdder droppedByProbability = new LongAdder();
+    private static final LongAdder droppedByRate = new LongAdder();
+    private static final LongAdder suppressedSpans = new LongAdder();
+    private static final LongAdder spans = new LongAdder();
+    private static final LongAdder costSamples = new LongAdder();
+    private static final LongAdder costNanos = new LongAdder();
+
+    private static volatile double lastOverheadPercent;
+    /**
+     * 最近一个自适应窗口内的平均 span 开销,窗口内没有样本时沿用上一个
+     */
+    private static volatile double windowSpanCostNs;
+    private static volatile Thread controller;
+
+    static {
+        if (adaptive) {
+            ensureController();
+        }
+    }
+
+    private TraceSampler() {
+    }
+
+    /**
+     * 是否为一个新的自动根链路采样
+     */
+    static boolean sampleRoot() {
+        double p = effectiveProbability;
+        if (p < 1d && (p <= 0d || ThreadLocalRandom.current().nextDouble() >= p)) {
+            droppedByProbability.increment();
+            return false;
+        }
+        int limit = maxTracesPerSecond;
+        if (limit > 0) {
+            long second = System.currentTimeMillis() / 1000;
+            long window = rateWindow.get();
+            if (window != second && rateWindow.compareAndSet(window, second)) {
+                rateCount.set(0);
+            }
+            if (rateCount.incrementAndGet() > limit) {
+                droppedByRate.increment();
+                return false;
+            }
+        }
+        sampledRoots.increment();
+        return true;
+    }
+
+    static int spanBudget() {
+        return spanBudget;
+    }
+
+    static void onSuppressed() {
+        suppressedSpans.increment();
+    }
+
+    static boolean shouldTime(int seq) {
+        return (seq & COST_SAMPLE_MASK) == 0;
+    }
+
+    static void onSpan() {
+        spans.increment();
+    }
+
+    static void recordCost(long nanos) {
+        costSamples.increment();
+        costNanos.add(nanos);
+    }
+
+    /**
+     * 运行时修改,参数为 null 表示不变
+     */
+    public static synchronized Map<String, Object> update(Double probability, Integer maxTracesPerSecond, Integer spanBudget,
+                                                         Boolean adaptive, Double maxOverheadPercent) {
+        if (probability != null) {
+            if (probability < 0 || probability > 1) {
+                throw new IllegalArgumentException("probability must between 0 and 1");
+            }
+            TraceSampler.probability = probability;
+            TraceSampler.effectiveProbability = probability;
+        }
+        if (maxTracesPerSecond != null) {
+            TraceSampler.maxTracesPerSecond = Math.max(0, maxTracesPerSecond);
+        }
+        if (spanBudget != null) {
+            TraceSampler.spanBudget = Math.max(0, spanBudget);
+        }
+        if (maxOverheadPercent != null) {
+            if (maxOverheadPercent <= 0 || maxOverheadPercent > 100) {
+                throw new IllegalArgumentException("maxOverheadPercent must between 0 and 100");
+            }
+            TraceSampler.maxOverheadPercent = maxOverheadPercent;
+        }
+        if (adaptive != null) {
+            TraceSampler.adaptive = adaptive;
+            if (adaptive) {
+                ensureController();
+            } else {
+                effectiveProbability = TraceSampler.probability;
+            }
+        }
+        return status();
+    }
+
+    public static Map<String, Object> status() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("probability", probability);
+        map.put("effectiveProbability", effectiveProbability);
+        map.put("maxTracesPerSecond", maxTracesPerSecond);
+        map.put("spanBudget", spanBudget);
+        map.put("adaptive", adaptive);
+        map.put("maxOverheadPercent", maxOverheadPercent);
+        map.put("lastOverheadPercent", Math.round(lastOverheadPercent * 1000) / 1000d);
+        map.put("sampledRoots", sampledRoots.sum());
+        map.put("droppedByProbability", droppedByProbability.sum());
+        map.put("droppedByRate", droppedByRate.sum());
+        map.put("spans", spans.sum());
+        map.put("suppressedSpans", suppressedSpans.sum());
+        long samples = costSamples.sum();
+        map.put("avgSpanCostNs", samples == 0 ? null : costNanos.sum() / samples);
+        map.put("windowSpanCostNs", windowSpanCostNs == 0 ? null : Math.round(windowSpanCostNs));
+        return map;
+    }
+
+    private static synchronized void ensureController() {
+        if (controller != null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                controlLoop();
+            }
+        }, "testkit-trace-sampler");
+        thread.setDaemon(true);
+        thread.start();
+        controller = thread;
+    }
+
+    private static void controlLoop() {
+        com.sun.management.OperatingSystemMXBean os = null;
+        try {
+            java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+            if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+                os = (com.sun.management.OperatingSystemMXBean) bean;
+            }
+        } catch (Throwable e) {
+            System.err.println("Testkit trace sampler can not read process cpu, " + e);
+        }
+        if (os == null) {
+            return;
+        }
+        long lastCpu = os.getProcessCpuTime();
+        long lastSpans = spans.sum();
+        long lastSamples = costSamples.sum();
+        long lastCostNanos = costNanos.sum();
+        while (true) {
+            LockSupport.parkNanos(1_000_000_000L);
+            try {
+                long cpu = os.getProcessCpuTime();
+                long spanCount = spans.sum();
+                long samples = costSamples.sum();
+                long sampleNanos = costNanos.sum();
+                if (samples > lastSamples) {
+                    // 按窗口内的样本算均值,反映当前的 span 开销而不是启动以来的平均
+                    windowSpanCostNs = (sampleNanos - lastCostNanos) / (double) (samples - lastSamples);
+                }
+                lastSamples = samples;
+                lastCostNanos = sampleNanos;
+                double avgCost = windowSpanCostNs;
+                if (!adaptive || cpu <= lastCpu || avgCost == 0) {
+                    lastCpu = cpu;
+                    lastSpans = spanCount;
+                    continue;
+                }
+                double overhead = (spanCount - lastSpans) * avgCost * 100d / (cpu - lastCpu);
+                lastOverheadPercent = overhead;
+                lastCpu = cpu;
+                lastSpans = spanCount;
+                double current = effectiveProbability;
+                if (overhead > maxOverheadPercent) {
+                    // 乘性下降,加性恢复
+                    effectiveProbability = Math.max(0.001d, current / 2);
+                } else if (overhead < maxOverheadPercent / 2 && current < probability) {
+                    effectiveProbability = Math.min(probability, current + Math.max(0.01d, probability / 10));
+                }
+            } catch (Throwable e) {
+                System.err.println("Testkit trace sampler error, " + e);
+            }
+        }
+    }
+
+    private static double doubleProperty(String key, double defaultValue) {
+        try {
+            String value = System.getProperty(key);
+            return value == null || value.trim().isEmpty() ? defaultValue : Double.parseDouble(value.trim());
+        } catch (Throwable e) {
+            System.err.println("Testkit trace sampler config error, " + key + ":" + System.getProperty(key));
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.testkit.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 链路输出
+ * 业务线程只把结束的 span 放进无锁环形队列,由单个后台线程批量格式化后写到 stderr / 滚动文件 / 内存
+ * 输出格式与原来的 System.err.println 完全一致,插件解析 TRACE_PROFILER 的逻辑不受影响
+ * <p>
+ * 配置读 System property(agent 参数里 testkit.trace.sink 开头的项也会设置进来):
+ * testkit.trace.sink                 stderr,file,memory 任意组合,默认 stderr
+ * testkit.trace.sink.capacity        队列容量,默认 65536
+ * testkit.trace.sink.overflow        队列满时的策略 drop/block/sample,默认 drop
+ * testkit.trace.sink.block-ms        block 策略最长等待,超时后丢弃,默认 100
+ * testkit.trace.sink.sample-rate     sample 策略在队列超过 3/4 后每 n 个 span 保留 1 个,默认 10
+ * testkit.trace.sink.file            文件路径,默认 ~/.spring-testkit/trace/trace.log
+ * testkit.trace.sink.file-max-mb     单个文件大小,默认 64
+ * testkit.trace.sink.file-max-count  保留的历史文件数,默认 5
+ * testkit.trace.sink.memory-lines    内存中保留的行数,默认 10000
+ * testkit.trace.sink.profiler-format TRACE_PROFILER 行的格式 text/binary,默认 text,binary 见 TraceCodec
+ */
+public final class TraceSink {
+
+    private static final int BATCH = 512;
+
+    private static final String PROFILER_PREFIX = "TRACE_PROFILER - ";
+
+    private static final SpanRingBuffer<Object> BUFFER;
+    private static final Overflow OVERFLOW;
+    private static final long BLOCK_NANOS;
+    private static final int SAMPLE_RATE;
+    private static final int HIGH_WATER;
+    private static final boolean TO_STDERR;
+    private static final RollingFile FILE;
+    private static final MemoryStore MEMORY;
+    private static final boolean BINARY_PROFILER;
+
+    private static final LongAdder EMITTED = new LongAdder();
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final LongAdder SAMPLED_OUT = new LongAdder();
+    private static final LongAdder BLOCKED = new LongAdder();
+    private static final AtomicLong WRITTEN = new AtomicLong();
+    private static final AtomicLong BATCHES = new AtomicLong();
+    private static final AtomicLong WRITE_ERRORS = new AtomicLong();
+    private static final AtomicLong SAMPLE_TICKET = new AtomicLong();
+
+    private static volatile Thread writer;
+
+    static {
+        BUFFER = new SpanRingBuffer<>(intProperty("testkit.trace.sink.capacity", 65536));
+        OVERFLOW = Overflow.parse(System.getProperty("testkit.trace.sink.overflow"));
+        BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(intProperty("testkit.trace.sink.block-ms", 100));
+        SAMPLE_RATE = Math.max(1, intProperty("testkit.trace.sink.sample-rate", 10));
+        HIGH_WATER = BUFFER.capacity() / 4 * 3;
+        List<String> targets = Arrays.asList(System.getProperty("testkit.trace.sink", "stderr").toLowerCase().replace(" ", "").split(","));
+        TO_STDERR = targets.contains("stderr");
+        RollingFile file = null;
+        if (targets.contains("file")) {
+            String path = System.getProperty("testkit.trace.sink.file", System.getProperty("user.home") + File.separator + ".spring-testkit" + File.separator + "trace" + File.separator + "trace.log");
+            file = new RollingFile(new File(path), intProperty("testkit.trace.sink.file-max-mb", 64) * 1024L * 1024L, intProperty("testkit.trace.sink.file-max-count", 5));
+        }
+        FILE = file;
+        MEMORY = targets.contains("memory") ? new MemoryStore(intProperty("testkit.trace.sink.memory-lines", 10000)) : null;
+        BINARY_PROFILER = "binary".equalsIgnoreCase(System.getProperty("testkit.trace.sink.profiler-format", "text").trim());
+    }
+
+    private TraceSink() {
+    }
+
+    /**
+     * 单个 span 结束,输出 TraceInfo.toString()
+     */
+    public static void span(TraceInfo traceInfo) {
+        if (traceInfo != null) {
+            emit(traceInfo, true);
+        }
+    }
+
+    /**
+     * 整条链路结束,输出 TRACE_PROFILER 行,格式化在写线程完成
+     */
+    public static void profiler(TraceInfo traceInfo) {
+        if (traceInfo != null) {
+            emit(new Profiler(traceInfo), false);
+        }
+    }
+
+    /**
+     * 已经格式化好的行,例如 mybatis 的完整 sql
+     */
+    public static void line(String line) {
+        if (line != null) {
+            emit(line, true);
+        }
+    }
+
+    private static void emit(Object record, boolean sampleable) {
+        EMITTED.increment();
+        ensureWriter();
+        if (OVERFLOW == Overflow.SAMPLE && sampleable && BUFFER.size() >= HIGH_WATER
+                && SAMPLE_TICKET.incrementAndGet() % SAMPLE_RATE != 0) {
+            // 链路汇总行不参与采样,否则整条链路都看不到了
+            SAMPLED_OUT.increment();
+            return;
+        }
+        if (BUFFER.offer(record)) {
+            return;
+        }
+        if (OVERFLOW == Overflow.BLOCK) {
+            BLOCKED.increment();
+            long deadline = System.nanoTime() + BLOCK_NANOS;
+            while (System.nanoTime() < deadline) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(50_000L);
+                if (BUFFER.offer(record)) {
+                    return;
+                }
+            }
+        }
+        DROPPED.increment();
+    }
+
+    private static void ensureWriter() {
+        if (writer != null) {
+            return;
+        }
+        synchronized (TraceSink.class) {
+            if (writer != null) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drainLoop();
+                }
+            }, "testkit-trace-sink");
+            thread.setDaemon(true);
+            thread.start();
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                }, "testkit-trace-sink-flush"));
+            } catch (Throwable ignore) {
+            }
+            writer = thread;
+        }
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            try {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(2_000_000L);
+                }
+            } catch (Throwable e) {
+                WRITE_ERRORS.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 写线程和关闭钩子都会调用,用锁保证单消费者
+     */
+    private static synchronized int drain() {
+        int total = 0;
+        StringBuilder sb = new StringBuilder(8192);
+        List<String> lines = MEMORY == null ? null : new ArrayList<>(BATCH);
+        while (true) {
+            int count = 0;
+            Object record;
+            while (count < BATCH && (record = BUFFER.poll()) != null) {
+                String line = format(record);
+                sb.append(line).append(System.lineSeparator());
+                if (lines != null) {
+                    lines.add(line);
+                }
+                count++;
+            }
+            if (count == 0) {
+                return total;
+            }
+            write(sb.toString(), lines);
+            sb.setLength(0);
+            if (lines != null) {
+                lines.clear();
+            }
+            total += count;
+            WRITTEN.addAndGet(count);
+            BATCHES.incrementAndGet();
+        }
+    }
+
+    private static String format(Object record) {
+        try {
+            if (record instanceof Profiler) {
+                TraceInfo traceInfo = ((Profiler) record).traceInfo;
+                String line = PROFILER_PREFIX + (BINARY_PROFILER ? traceInfo.toProfilerBinary() : traceInfo.toProfilerString());
+                TraceAggregator.merge(traceInfo);
+                return line;
+            }
+            return String.valueOf(record);
+        } catch (Throwable e) {
+            return "Testkit trace format error, " + e;
+        }
+    }
+
+    private static void write(String batch, List<String> lines) {
+        if (TO_STDERR) {
+            System.err.print(batch);
+            System.err.flush();
+        }
+        if (FILE != null) {
+            try {
+                FILE.write(batch.getBytes(StandardCharsets.UTF_8));
+            } catch (Throwable e) {
+                WRITE_ERRORS.incrementAndGet();
+            }
+        }
+        if (MEMORY != null) {
+            MEMORY.addAll(lines);
+        }
+    }
+
+    /**
+     * 内存模式下最近的 n 行,未开启返回空
+     */
+    public static List<String> recent(int limit) {
+        return MEMORY == null ? new ArrayList<>() : MEMORY.recent(limit);
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        List<String> targets = new ArrayList<>();
+        if (TO_STDERR) {
+            targets.add("stderr");
+        }
+        if (FILE != null) {
+            targets.add("file:" + FILE.file.getAbsolutePath());
+        }
+        if (MEMORY != null) {
+            targets.add("memory");
+        }
+        map.put("targets", targets);
+        map.put("overflow", OVERFLOW.name().toLowerCase());
+        map.put("profilerFormat", BINARY_PROFILER ? "binary" : "text");
+        map.put("capacity", BUFFER.capacity());
+        map.put("queued", BUFFER.size());
+        map.put("emitted", EMITTED.sum());
+        map.put("written", WRITTEN.get());
+        map.put("batches", BATCHES.get());
+        map.put("dropped", DROPPED.sum());
+        map.put("sampledOut", SAMPLED_OUT.sum());
+        map.put("blocked", BLOCKED.sum());
+        map.put("writeErrors", WRITE_ERRORS.get());
+        return map;
+    }
+
+    private static int intProperty(String key, int defaultValue) {
+        try {
+            String value = System.getProperty(key);
+            return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+        } catch (Throwable e) {
+            System.err.println("Testkit trace sink config error, " + key + ":" + System.getProperty(key));
+            return defaultValue;
+        }
+    }
+
+    enum Overflow {
+        DROP, BLOCK, SAMPLE;
+
+        static Overflow parse(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return DROP;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Testkit trace sink unknown overflow:" + value + ", use drop");
+                return DROP;
+            }
+        }
+    }
+
+    private static class Profiler {
+        private final TraceInfo traceInfo;
+
+        private Profiler(TraceInfo traceInfo) {
+            this.traceInfo = traceInfo;
+        }
+    }
+
+    private static class RollingFile {
+        private final File file;
+        private final long maxBytes;
+        private final int maxCount;
+        private OutputStream out;
+        private long size;
+
+        private RollingFile(File file, long maxBytes, int maxCount) {
+            this.file = file;
+            this.maxBytes = Math.max(1024 * 1024, maxBytes);
+            this.maxCount = Math.max(1, maxCount);
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            if (out == null) {
+                File dir = file.getParentFile();
+                if (dir != null) {
+                    dir.mkdirs();
+                }
+                out = new FileOutputStream(file, true);
+                size = file.length();
+            }
+            out.write(bytes);
+            out.flush();
+            size += bytes.length;
+            if (size >= maxBytes) {
+                roll();
+            }
+        }
+
+        private void roll() throws IOException {
+            out.close();
+            out = null;
+            File oldest = new File(file.getPath() + "." + maxCount);
+            if (oldest.exists()) {
+                oldest.delete();
+            }
+            for (int i = maxCount - 1; i >= 1; i--) {
+                File from = new File(file.getPath() + "." + i);
+                if (from.exists()) {
+                    from.renameTo(new File(file.getPath() + "." + (i + 1)));
+                }
+            }
+            file.renameTo(new File(file.getPath() + ".1"));
+        }
+    }
+
+    private static class MemoryStore {
+        private final int maxLines;
+        private final ArrayDeque<String> lines;
+
+        private MemoryStore(int maxLines) {
+            this.maxLines = Math.max(1, maxLines);
+            this.lines = new ArrayDeque<>(Math.min(this.maxLines, 1024));
+        }
+
+        private synchronized void addAll(List<String> batch) {
+            for (String line : batch) {
+                if (lines.size() >= maxLines) {
+                    lines.pollFirst();
+                }
+                lines.addLast(line);
+            }
+        }
+
+        private synchronized List<String> recent(int limit) {
+            int skip = Math.max(0, lines.size() - Math.max(0, limit));
+            List<String> list = new ArrayList<>(lines.size() - skip);
+            int i = 0;
+            for (String line : lines) {
+                if (i++ >= skip) {
+                    list.add(line);
+                }
+            }
+            return list;
+        }
+    }
+}
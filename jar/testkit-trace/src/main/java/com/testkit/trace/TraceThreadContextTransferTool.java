@@ -1,10 +1,21 @@
 package com.testkit.trace;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 /**
  * 线程切换工具
@@ -14,22 +25,49 @@ import java.util.stream.Collectors;
  */
 public class TraceThreadContextTransferTool {
 
+    /**
+     * fork 或提交到 ForkJoinPool 时记录的链路,任务在 doExec 开始时取出
+     * ForkJoinTask 本身可能直接在工作线程执行(不经过 Runnable.run),只能按任务对象记录
+     * 按任务对象的弱引用记录,提交后一直没执行就被丢弃的任务回收后随之清理
+     */
+    private static final ConcurrentHashMap<ForkKey, TraceInfo> FORKED = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ForkJoinTask<?>> FORKED_QUEUE = new ReferenceQueue<>();
+    private static final AtomicInteger FORKED_SIZE = new AtomicInteger();
+    /**
+     * 还被引用但一直没有执行的任务超过上限后,随机淘汰一批,新的任务仍然记录
+     */
+    private static final int MAX_FORKED = 65536;
+    private static final LongAdder FORKED_COLLECTED = new LongAdder();
+    private static final LongAdder FORKED_EVICTED = new LongAdder();
+    /**
+     * 正在以 fork 时的链路执行的任务
+     */
+    private static final ThreadLocal<ArrayDeque<Resumed>> RESUMED = new ThreadLocal<ArrayDeque<Resumed>>() {
+        @Override
+        protected ArrayDeque<Resumed> initialValue() {
+            return new ArrayDeque<>(4);
+        }
+    };
+    private static final AtomicInteger RESUMED_SIZE = new AtomicInteger();
+
 
     /**
      *
      * 全局切换器包装Runnable
+     * 当前线程没有链路时直接返回原对象,不产生额外对象
      *
      * @param runnable 非空
      * @return
      */
-    public static TransitiveRunnableWrapper wrap(Runnable runnable) {
-        if (runnable == null) {
-            return null;
+    public static Runnable wrap(Runnable runnable) {
+        if (runnable == null || runnable instanceof TransitiveRunnableWrapper) {
+            return runnable;
         }
-        if (runnable instanceof TransitiveRunnableWrapper) {
-            return (TransitiveRunnableWrapper) runnable;
+        TraceInfo traceInfo = TraceInfo.getCurrent();
+        if (traceInfo == null) {
+            return runnable;
         }
-        return new TransitiveRunnableWrapper(runnable);
+        return new TransitiveRunnableWrapper(runnable, traceInfo);
     }
 
     /**
@@ -39,14 +77,15 @@ public class TraceThreadContextTransferTool {
      * @param <R>
      * @return
      */
-    public static <R> TransitiveCallableWrapper<R> wrap(Callable<R> callable) {
-        if (callable == null) {
-            return null;
+    public static <R> Callable<R> wrap(Callable<R> callable) {
+        if (callable == null || callable instanceof TransitiveCallableWrapper) {
+            return callable;
         }
-        if (callable instanceof TransitiveCallableWrapper) {
-            return (TransitiveCallableWrapper<R>) callable;
+        TraceInfo traceInfo = TraceInfo.getCurrent();
+        if (traceInfo == null) {
+            return callable;
         }
-        return new TransitiveCallableWrapper<>(callable);
+        return new TransitiveCallableWrapper<>(callable, traceInfo);
     }
 
     /**
@@ -56,14 +95,15 @@ public class TraceThreadContextTransferTool {
      * @param <R>
      * @return
      */
-    public static <R> TransitiveSupplierWrapper<R> wrap(Supplier<R> supplier) {
-        if (supplier == null) {
-            return null;
+    public static <R> Supplier<R> wrap(Supplier<R> supplier) {
+        if (supplier == null || supplier instanceof TransitiveSupplierWrapper) {
+            return supplier;
         }
-        if (supplier instanceof TransitiveSupplierWrapper) {
-            return (TransitiveSupplierWrapper<R>) supplier;
+        TraceInfo traceInfo = TraceInfo.getCurrent();
+        if (traceInfo == null) {
+            return supplier;
         }
-        return new TransitiveSupplierWrapper<>(supplier);
+        return new TransitiveSupplierWrapper<>(supplier, traceInfo);
     }
 
 
@@ -73,11 +113,15 @@ public class TraceThreadContextTransferTool {
      * @param runnables
      * @return
      */
-    public static List<? extends TransitiveRunnableWrapper> wrapRuns(Collection<? extends Runnable> runnables) {
-        if (runnables == null) {
-            return null;
+    public static Collection<Runnable> wrapRuns(Collection<? extends Runnable> runnables) {
+        if (runnables == null || TraceInfo.getCurrent() == null) {
+            return (Collection<Runnable>) runnables;
+        }
+        List<Runnable> list = new ArrayList<>(runnables.size());
+        for (Runnable runnable : runnables) {
+            list.add(wrap(runnable));
         }
-        return runnables.stream().map(TraceThreadContextTransferTool::wrap).collect(Collectors.toList());
+        return list;
     }
 
     /**
@@ -87,11 +131,15 @@ public class TraceThreadContextTransferTool {
      * @param <R>
      * @return
      */
-    public static <R> List<? extends TransitiveCallableWrapper<R>> wrapCalls(Collection<? extends Callable<R>> callables) {
-        if (callables == null) {
-            return null;
+    public static <R> Collection<Callable<R>> wrapCalls(Collection<? extends Callable<R>> callables) {
+        if (callables == null || TraceInfo.getCurrent() == null) {
+            return (Collection<Callable<R>>) callables;
         }
-        return callables.stream().map(TraceThreadContextTransferTool::wrap).collect(Collectors.toList());
+        List<Callable<R>> list = new ArrayList<>(callables.size());
+        for (Callable<R> callable : callables) {
+            list.add(wrap(callable));
+        }
+        return list;
     }
 
     /**
@@ -101,11 +149,150 @@ public class TraceThreadContextTransferTool {
      * @param <R>
      * @return
      */
-    public static <R> List<? extends TransitiveSupplierWrapper<R>> wrapSuppliers(Collection<? extends Supplier<R>> suppliers) {
-        if (suppliers == null) {
-            return null;
+    public static <R> Collection<Supplier<R>> wrapSuppliers(Collection<? extends Supplier<R>> suppliers) {
+        if (suppliers == null || TraceInfo.getCurrent() == null) {
+            return (Collection<Supplier<R>>) suppliers;
+        }
+        List<Supplier<R>> list = new ArrayList<>(suppliers.size());
+        for (Supplier<R> supplier : suppliers) {
+            list.add(wrap(supplier));
+        }
+        return list;
+    }
+
+    /**
+     * ForkJoinTask.fork 和 ForkJoinPool 提交任务时调用,记录当前链路
+     */
+    public static void captureFork(ForkJoinTask<?> task) {
+        if (task == null) {
+            return;
+        }
+        TraceInfo traceInfo = TraceInfo.getCurrent();
+        if (traceInfo == null) {
+            return;
+        }
+        expungeForked();
+        if (FORKED_SIZE.get() >= MAX_FORKED) {
+            evictForked();
+        }
+        if (FORKED.put(new ForkKey(task, FORKED_QUEUE), traceInfo) == null) {
+            FORKED_SIZE.incrementAndGet();
+        }
+    }
+
+    /**
+     * 清理已经被回收的任务
+     */
+    private static void expungeForked() {
+        Reference<? extends ForkJoinTask<?>> ref;
+        while ((ref = FORKED_QUEUE.poll()) != null) {
+            if (FORKED.remove(ref) != null) {
+                FORKED_SIZE.decrementAndGet();
+                FORKED_COLLECTED.increment();
+            }
+        }
+    }
+
+    private static void evictForked() {
+        int evict = MAX_FORKED / 8;
+        Iterator<ForkKey> iterator = FORKED.keySet().iterator();
+        while (evict > 0 && iterator.hasNext()) {
+            ForkKey key = iterator.next();
+            if (FORKED.remove(key) != null) {
+                FORKED_SIZE.decrementAndGet();
+                evict--;
+                FORKED_EVICTED.increment();
+            }
+        }
+        System.err.println("Testkit trace forked tasks over " + MAX_FORKED + ", evicted:" + FORKED_EVICTED.sum());
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("forkedPending", FORKED_SIZE.get());
+        map.put("forkedMax", MAX_FORKED);
+        map.put("forkedCollected", FORKED_COLLECTED.sum());
+        map.put("forkedEvicted", FORKED_EVICTED.sum());
+        return map;
+    }
+
+    /**
+     * ForkJoinTask.doExec 开始时调用,把 fork 时的链路设置到执行线程
+     * 没有记录任何任务时只有一次 volatile 读
+     */
+    public static void enterForked(ForkJoinTask<?> task) {
+        if (FORKED_SIZE.get() == 0) {
+            return;
+        }
+        TraceInfo traceInfo = FORKED.remove(new ForkKey(task, null));
+        if (traceInfo == null) {
+            return;
+        }
+        FORKED_SIZE.decrementAndGet();
+        TraceInfo previous = TraceInfo.getCurrent();
+        if (traceInfo == previous) {
+            return;
+        }
+        TraceInfo.set(traceInfo);
+        // 工作线程在 join 时可能嵌套执行其他任务,按栈恢复
+        RESUMED.get().push(new Resumed(task, previous));
+        RESUMED_SIZE.incrementAndGet();
+    }
+
+    /**
+     * ForkJoinTask.doExec 结束时调用(包括异常),恢复执行线程原来的链路
+     */
+    public static void exitForked(ForkJoinTask<?> task) {
+        if (RESUMED_SIZE.get() == 0) {
+            return;
+        }
+        ArrayDeque<Resumed> stack = RESUMED.get();
+        Resumed top = stack.peek();
+        if (top == null || top.task != task) {
+            return;
+        }
+        stack.pop();
+        RESUMED_SIZE.decrementAndGet();
+        TraceInfo.set(top.previous);
+    }
+
+    /**
+     * 按任务对象身份比较的弱引用,ForkJoinTask 子类可能重写 equals/hashCode
+     */
+    private static final class ForkKey extends WeakReference<ForkJoinTask<?>> {
+        private final int hash;
+
+        private ForkKey(ForkJoinTask<?> task, ReferenceQueue<ForkJoinTask<?>> queue) {
+            super(task, queue);
+            this.hash = System.identityHashCode(task);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof ForkKey)) {
+                return false;
+            }
+            Object task = get();
+            return task != null && task == ((ForkKey) obj).get();
+        }
+    }
+
+    private static class Resumed {
+        private final ForkJoinTask<?> task;
+        private final TraceInfo previous;
+
+        private Resumed(ForkJoinTask<?> task, TraceInfo previous) {
+            this.task = task;
+            this.previous = previous;
         }
-        return suppliers.stream().map(TraceThreadContextTransferTool::wrap).collect(Collectors.toList());
     }
 
 
@@ -128,26 +315,31 @@ public class TraceThreadContextTransferTool {
          */
         private final TraceInfo traceInfo;
 
-        public AbsTransitiveWrapper(T delegate) {
+        public AbsTransitiveWrapper(T delegate, TraceInfo traceInfo) {
             if (delegate == null) {
                 throw new IllegalArgumentException("delegate can not be null");
             }
             this.delegate = delegate;
-            this.traceInfo = TraceInfo.getCurrent();
+            this.traceInfo = traceInfo;
         }
 
         /**
          * 将存储的对象放到当前线程中(在目标线程中执行)
+         *
+         * @return 目标线程原来的链路
          */
-        protected void write() {
+        protected TraceInfo write() {
+            TraceInfo previous = TraceInfo.getCurrent();
             TraceInfo.set(traceInfo);
+            return previous;
         }
 
         /**
-         * 清理被污染的数据
+         * 恢复目标线程原来的链路
+         * ForkJoinPool 的工作线程在 join 时会顺带执行其他任务,不能直接清空
          */
-        protected void clean() {
-            TraceInfo.set(null);
+        protected void clean(TraceInfo previous) {
+            TraceInfo.set(previous);
         }
 
         public TraceInfo getTraceInfo() {
@@ -171,8 +363,8 @@ public class TraceThreadContextTransferTool {
      */
     private static class TransitiveRunnableWrapper extends AbsTransitiveWrapper<Runnable> implements Runnable {
 
-        private TransitiveRunnableWrapper(Runnable runnable) {
-            super(runnable);
+        private TransitiveRunnableWrapper(Runnable runnable, TraceInfo traceInfo) {
+            super(runnable, traceInfo);
         }
 
         @Override
@@ -181,11 +373,11 @@ public class TraceThreadContextTransferTool {
             if (Thread.currentThread() == getMainThread() || getTraceInfo() == null) {
                 delegate.run();
             } else {
+                TraceInfo previous = write();
                 try {
-                    write();
                     delegate.run();
                 } finally {
-                    clean();
+                    clean(previous);
                 }
             }
         }
@@ -201,8 +393,8 @@ public class TraceThreadContextTransferTool {
      */
     private static class TransitiveCallableWrapper<R> extends AbsTransitiveWrapper<Callable<R>> implements Callable<R> {
 
-        private TransitiveCallableWrapper(Callable<R> callable) {
-            super(callable);
+        private TransitiveCallableWrapper(Callable<R> callable, TraceInfo traceInfo) {
+            super(callable, traceInfo);
         }
 
         @Override
@@ -211,11 +403,11 @@ public class TraceThreadContextTransferTool {
             if (Thread.currentThread() == getMainThread() || getTraceInfo() == null) {
                 return delegate.call();
             } else {
+                TraceInfo previous = write();
                 try {
-                    write();
                     return delegate.call();
                 } finally {
-                    clean();
+                    clean(previous);
                 }
             }
         }
@@ -231,8 +423,8 @@ public class TraceThreadContextTransferTool {
      */
     private static class TransitiveSupplierWrapper<R> extends AbsTransitiveWrapper<Supplier<R>> implements Supplier<R> {
 
-        private TransitiveSupplierWrapper(Supplier<R> supplier) {
-            super(supplier);
+        private TransitiveSupplierWrapper(Supplier<R> supplier, TraceInfo traceInfo) {
+            super(supplier, traceInfo);
         }
 
         @Override
@@ -241,11 +433,11 @@ public class TraceThreadContextTransferTool {
             if (Thread.currentThread() == getMainThread() || getTraceInfo() == null) {
                 return delegate.get();
             } else {
+                TraceInfo previous = write();
                 try {
-                    write();
                     return delegate.get();
                 } finally {
-                    clean();
+                    clean(previous);
                 }
             }
         }
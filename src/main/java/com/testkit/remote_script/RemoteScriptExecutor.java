@@ -134,6 +134,8 @@ The plugin calls functions in the Groovy script. Implement these functions:
      - method      : String             Request method
      - params      : Map<String,String> Request parameters
      - trace       : boolean            Enable tracing (optional)
+     - traceFormat : String             "text" (default) or "binary": profile link as compact "TKB1:" string,
+                                        decode with com.testkit.trace.TraceCodec.decode (optional)
      - prepare     : boolean            Enable preprocessing (optional)
      - interceptor : String             Interceptor config (optional)
    
@@ -142,8 +144,20 @@ The plugin calls functions in the Groovy script. Implement these functions:
      - "function-call": Submit [function-call] task
      - "flexible-test": Submit [flexible-test] task
      - "view-value"   : View variable value
-     - "get_task_ret" : Get task result
+     - "get_task_ret" : Get task result (long-poll, params: reqId, timeout seconds)
+     - "submit_and_wait": Submit and wait in one call (params: tool, timeout, plus tool params)
      - "stop_task"    : Stop task
+     - "trace-sampling": Query/update trace sampling (params, all optional: probability, maxTracesPerSecond,
+                         spanBudget, adaptive, maxOverheadPercent)
+     - "trace-rules"  : List/add/remove agent trace rules without restart (params: action=list|add|remove,
+                         allows, denys, packages, clsSuffix - comma separated, same format as agent config)
+     - "trace-hotpath": Aggregate traces into a call tree (params: action=status|start|stop|reset|tree|collapsed|merge,
+                         root - only for start, maxDepth/minPercent - only for tree,
+                         profilers - newline separated TRACE_PROFILER lines, only for merge)
+     - "sql-stats"    : MyBatis statement statistics by MappedStatement id (params: action=list|reset|enable|disable,
+                         sortBy=total|count|avg|max|p99|errors|rows, filter - id contains, limit - default 50)
+     - "cache-stats"  : Spring cache hit/miss/load statistics (params: action=list|reset|enable|disable, by=cache|method,
+                         sortBy=access|hits|misses|hitRatio|load|saved|size, filter - name contains, limit - default 50)
    
    Response: Directly forward Testkit Server response (keep structure consistent)
    {
@@ -151,7 +165,9 @@ The plugin calls functions in the Groovy script. Implement these functions:
        "cost"    : int,                           // execution time in milliseconds
        "message" : String,                        // error message (when success=false)
        "data"    : Object,                        // response data (varies by method)
-       "profile" : [{"link":..., "cost":...}]     // trace profiler (when trace=true)
+       "profile" : [{"link":..., "cost":...,      // trace profiler (when trace=true)
+                     "cpu_ms":..., "alloc_bytes":..., "blocked_count":..., "waited_count":..., "gc_count":..., "gc_ms":...,  // resource usage of the calling thread
+                     "sqlFindings":...}]          // repeated mybatis statements in the trace (n_plus_one/duplicate/batchable), only when found
    }
    
    Response data by method:
@@ -160,7 +176,16 @@ The plugin calls functions in the Groovy script. Implement these functions:
      - "flexible-test": String (reqId) - use get_task_ret to poll result
      - "view-value"   : String (reqId) - use get_task_ret to poll result
      - "get_task_ret" : Final execution result (same Ret structure)
+     - "submit_and_wait": Final execution result; on "time out" data is the reqId for get_task_ret
      - "stop_task"    : boolean (true=cancelled, false=not found)
+     - "trace-sampling": Current sampling status and counters
+     - "trace-rules"  : Current rules, plus retransform stats {retransformed, failed, errors, costMs} for add/remove
+     - "trace-hotpath": status counters; tree: nested {name, count, totalMs, selfMs, avgMs, maxMs, percent, errorRate, children};
+                         collapsed: flame graph collapsed stack text, one "a;b;c selfMs" per line
+     - "sql-stats"    : {enabled, installed, since, statements, stats:[{id, count, errors, totalMs,
+                         latencyMs{min, mean, p50, p90, p99, p999, max}, rows, avgRows, slowest:[{costMs, time, params, reqId}]}]}
+     - "cache-stats"  : {enabled, installed, since, by, entries, stats:[{name, hits, misses, hitRatio, puts, evictions,
+                         loadMs{min, mean, p50, p90, p99, p999, max}, savedMs, valueBytes{samples, avg, max}}]}
 
 ────────────────────────────────────────────────────────────────────────────────
 5. sendArthasRequest(String appName, String partition, String ip, int port, Map params)
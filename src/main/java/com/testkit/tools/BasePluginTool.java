@@ -40,6 +40,7 @@ import com.intellij.ui.awt.RelativePoint;
 import com.intellij.ui.components.JBScrollPane;
 import com.testkit.util.HttpUtil;
 import com.testkit.util.RemoteScriptCallUtils;
+import com.testkit.util.TraceParser;
 import com.intellij.ui.components.JBTextField;
 import com.intellij.util.ui.JBUI;
 import org.apache.commons.collections.CollectionUtils;
@@ -525,6 +526,10 @@ public abstract class BasePluginTool {
                     if (request == null) {
                         return;
                     }
+                    if (!isRemoteInstance && request.getBooleanValue("trace")) {
+                        // 本地实例的 starter 与插件同版本,远程实例可能不认识该字段
+                        request.put("traceFormat", "binary");
+                    }
 
                     // Step 1: 提交请求，获取 reqId
                     if (isRemoteInstance) {
@@ -591,7 +596,7 @@ public abstract class BasePluginTool {
             return;
         }
 
-        List<Map<String, String>> profile = result.getObject("profile", new TypeReference<List<Map<String, String>>>() {});
+        List<Map<String, String>> profile = TraceParser.decodeProfiles(result.getObject("profile", new TypeReference<List<Map<String, String>>>() {}));
 
         if (!result.getBooleanValue("success")) {
             String message = result.getString("message");
@@ -3,6 +3,7 @@ package com.testkit.util;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.testkit.trace.TraceCodec;
 
 import java.util.*;
 import java.util.function.Function;
@@ -27,6 +28,18 @@ public class TraceParser {
             return new ArrayList<>();
         }
         String profiler = content.substring(content.indexOf("TRACE_PROFILER -") + "TRACE_PROFILER -".length()).trim();
+        if (TraceCodec.isBinary(profiler)) {
+            // 二进制行到空白处结束
+            int end = 0;
+            while (end < profiler.length() && !Character.isWhitespace(profiler.charAt(end))) {
+                end++;
+            }
+            try {
+                profiler = TraceCodec.decode(profiler.substring(0, end));
+            } catch (IllegalArgumentException ex) {
+                return new ArrayList<>();
+            }
+        }
         String reqid = null;
         String cost = null;
         int i = profiler.indexOf("_req_id|");
@@ -48,6 +61,26 @@ public class TraceParser {
     }
 
 
+    /**
+     * 服务端按 traceFormat=binary 返回的 link 还原成文本,页面只认文本格式
+     */
+    public static List<Map<String, String>> decodeProfiles(List<Map<String, String>> profiles) {
+        if (profiles == null) {
+            return null;
+        }
+        for (Map<String, String> profile : profiles) {
+            if (profile == null || !TraceCodec.isBinary(profile.get("link"))) {
+                continue;
+            }
+            try {
+                profile.put("link", TraceCodec.decode(profile.get("link")));
+            } catch (IllegalArgumentException e) {
+                profile.remove("link");
+            }
+        }
+        return profiles;
+    }
+
     public static List<Map<String, String>> parseLinkLos(String content) {
         List<LogEntry> logEntries = parseLogs(content);
         List<Map<String, String>> listLogs = logEntries.stream()
@@ -1937,10 +1937,10 @@ public class SettingsDialog {
 
 
         JLabel allowClassLabel = new JLabel("Allow Class/Method:");
-        allowClassLabel.setToolTipText("Tracing class/method allow list, multiple use,split;Support full class name or specify method (eg com.Test#methodName) consecutively");
+        allowClassLabel.setToolTipText("Tracing class/method allow list, multiple use,split;Support full class name or specify method (eg com.Test#methodName, com.Test#get*, com.Test#re:(get|find).*) consecutively");
         allowClassLabel.setPreferredSize(labelDimension);
         traceAllowListField = new JBTextField(traceConfig.getAllows(), 20);
-        traceAllowListField.getEmptyText().setText("Tracing class/method allow list, multiple use,split;Support full class name or specify method (eg com.Test#methodName) consecutively");
+        traceAllowListField.getEmptyText().setText("Tracing class/method allow list, multiple use,split;Support full class name or specify method (eg com.Test#methodName, com.Test#get*, com.Test#re:(get|find).*) consecutively");
 
         gbc.gridx = 0;
         gbc.gridy = 6;
@@ -1952,10 +1952,10 @@ public class SettingsDialog {
         traceOptionsPanel.add(traceAllowListField, gbc);
 
         JLabel denyClassLabel = new JLabel("Deny Class/Method:");
-        denyClassLabel.setToolTipText("Tracing class/method deny list, multiple use,split;Support full class name or specify method (eg com.Test#methodName) consecutively");
+        denyClassLabel.setToolTipText("Tracing class/method deny list, multiple use,split;Support full class name or specify method (eg com.Test#methodName, com.Test#get*, com.Test#re:(get|find).*) consecutively");
         denyClassLabel.setPreferredSize(labelDimension);
         traceDenyListField = new JBTextField(traceConfig.getDenys(), 20);
-        traceDenyListField.getEmptyText().setText("Tracing class/method deny list, multiple use,split;Support full class name or specify method (eg com.Test#methodName) consecutively");
+        traceDenyListField.getEmptyText().setText("Tracing class/method deny list, multiple use,split;Support full class name or specify method (eg com.Test#methodName, com.Test#get*, com.Test#re:(get|find).*) consecutively");
 
         gbc.gridx = 0;
         gbc.gridy = 7;
@@ -1130,9 +1130,11 @@ public class TestkitToolWindow {
         this.outputProfile = outputProfile;
         if (traceAction != null) {
 //            System.out.println("不可见,"+ (outputProfile != null && !outputProfile.isEmpty()));
-            if (outputProfile != null && !outputProfile.isEmpty() && !actionGroup.containsAction(traceAction)) {
+            // profile 里也可能只有资源计量,没有 link 时不展示链路
+            boolean hasLink = outputProfile != null && outputProfile.stream().anyMatch(item -> item != null && item.containsKey("link"));
+            if (hasLink && !actionGroup.containsAction(traceAction)) {
                 actionGroup.add(traceAction);
-            } else if ((outputProfile == null || outputProfile.isEmpty()) && actionGroup.containsAction(traceAction)) {
+            } else if (!hasLink && actionGroup.containsAction(traceAction)) {
                 actionGroup.remove(traceAction);
             }
 